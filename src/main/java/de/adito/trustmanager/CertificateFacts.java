@@ -0,0 +1,133 @@
+package de.adito.trustmanager;
+
+import de.adito.trustmanager.internal.WeakIdentityCache;
+import de.adito.trustmanager.revocation.KeyIdentifiers;
+
+import java.security.*;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.*;
+
+/**
+ * This class remembers facts derived from a certificate object, eg. its fingerprint or whether it is self signed.
+ * Each fact is computed at most once per certificate object. The facts are held as long as the certificate object
+ * is reachable.
+ */
+public final class CertificateFacts
+{
+    private static final WeakIdentityCache<X509Certificate, CertificateFacts> FACTS = new WeakIdentityCache<>();
+
+    private final long notBefore;
+    private final long notAfter;
+    private volatile CertificateFingerprint fingerprint;
+    private volatile Boolean selfSigned;
+    private volatile HostnameMatcher hostnameMatcher;
+
+    private CertificateFacts(X509Certificate pCertificate)
+    {
+        notBefore = pCertificate.getNotBefore().getTime();
+        notAfter = pCertificate.getNotAfter().getTime();
+    }
+
+    public static CertificateFingerprint getFingerprint(X509Certificate pCertificate)
+    {
+        CertificateFacts facts = _of(pCertificate);
+        CertificateFingerprint result = facts.fingerprint;
+        if (result == null)
+            facts.fingerprint = result = CertificateFingerprint.of(pCertificate);
+        return result;
+    }
+
+    /**
+     * This method tries to verify the certificate signature with its own public key, if the certificate could be self
+     * signed at all, see {@link #checkSelfSigned}.
+     */
+    public static boolean isSelfSigned(X509Certificate pCertificate) throws CertificateException
+    {
+        CertificateFacts facts = _of(pCertificate);
+        Boolean result = facts.selfSigned;
+        if (result == null)
+            facts.selfSigned = result = checkSelfSigned(pCertificate);
+        return result;
+    }
+
+    /**
+     * @return the DNS names and IP addresses of the subject alternative names, in the order of the certificate
+     */
+    public static Set<String> getSubjectAlternativeNames(X509Certificate pCertificate)
+    {
+        return getHostnameMatcher(pCertificate).getNames();
+    }
+
+    /**
+     * @return the names of the certificate, prepared to verify host names
+     */
+    public static HostnameMatcher getHostnameMatcher(X509Certificate pCertificate)
+    {
+        CertificateFacts facts = _of(pCertificate);
+        HostnameMatcher result = facts.hostnameMatcher;
+        if (result == null)
+            facts.hostnameMatcher = result = HostnameMatcher.of(pCertificate);
+        return result;
+    }
+
+    /**
+     * @return true, if pTime (in milliseconds) is within the validity window of the certificate
+     */
+    public static boolean isValidAt(X509Certificate pCertificate, long pTime)
+    {
+        CertificateFacts facts = _of(pCertificate);
+        return facts.notBefore <= pTime && pTime <= facts.notAfter;
+    }
+
+    /**
+     * @return the end of the validity window in milliseconds
+     */
+    public static long getNotAfter(X509Certificate pCertificate)
+    {
+        return _of(pCertificate).notAfter;
+    }
+
+    private static CertificateFacts _of(X509Certificate pCertificate)
+    {
+        return FACTS.computeIfAbsent(pCertificate, CertificateFacts::new);
+    }
+
+    /**
+     * The cheap checks come first: a self signed certificate has the same issuer and subject, and its authority key
+     * identifier, if any, is its own subject key identifier. Only if both checks pass, the signature is verified.
+     * The result is not remembered, use {@link #isSelfSigned}.
+     */
+    static boolean checkSelfSigned(X509Certificate pCertificate) throws CertificateException
+    {
+        if (!pCertificate.getIssuerX500Principal().equals(pCertificate.getSubjectX500Principal()))
+            return false;
+        byte[] authorityKeyId = KeyIdentifiers.getAuthorityKeyIdentifier(pCertificate);
+        if (authorityKeyId != null)
+        {
+            byte[] subjectKeyId = KeyIdentifiers.getSubjectKeyIdentifier(pCertificate);
+            if (subjectKeyId != null && !Arrays.equals(authorityKeyId, subjectKeyId))
+                return false;
+        }
+        return _verifySelfSigned(pCertificate);
+    }
+
+    private static boolean _verifySelfSigned(X509Certificate pCertificate) throws CertificateException
+    {
+        try
+        {
+            pCertificate.verify(pCertificate.getPublicKey());
+            return true;
+
+        } catch (SignatureException | InvalidKeyException exc)
+        {
+            // Invalid signature or key -> not self-signed
+            return false;
+
+        } catch (NoSuchProviderException | NoSuchAlgorithmException exc)
+        {
+            //not able to tell if cert is sef-signed; exception might be displayed as unknown
+            return true;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package de.adito.trustmanager;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+
+/**
+ * The SHA-256 fingerprint of a certificate, held in four longs. It is used as key for the trustStore lookups, a hex
+ * String is only created for display and as alias in a keyStore. The digest is reused per thread.
+ */
+public final class CertificateFingerprint implements Comparable<CertificateFingerprint>
+{
+    public static final int LENGTH = 32;
+
+    private static final ThreadLocal<ThreadDigest> DIGEST = ThreadLocal.withInitial(ThreadDigest::new);
+
+    private final long l0;
+    private final long l1;
+    private final long l2;
+    private final long l3;
+
+    private CertificateFingerprint(long pL0, long pL1, long pL2, long pL3)
+    {
+        l0 = pL0;
+        l1 = pL1;
+        l2 = pL2;
+        l3 = pL3;
+    }
+
+    public static CertificateFingerprint of(X509Certificate pCertificate)
+    {
+        ThreadDigest digest = DIGEST.get();
+        digest.update(pCertificate);
+        return digest.finish();
+    }
+
+    /**
+     * @return one fingerprint over all certificates of the chain
+     */
+    public static CertificateFingerprint ofChain(X509Certificate[] pChain)
+    {
+        ThreadDigest digest = DIGEST.get();
+        for (X509Certificate certificate : pChain)
+            digest.update(certificate);
+        return digest.finish();
+    }
+
+    /**
+     * @param pBytes the 32 bytes of a SHA-256 fingerprint, starting at pOffset
+     */
+    public static CertificateFingerprint fromBytes(byte[] pBytes, int pOffset)
+    {
+        return new CertificateFingerprint(_getLong(pBytes, pOffset), _getLong(pBytes, pOffset + 8),
+                                          _getLong(pBytes, pOffset + 16), _getLong(pBytes, pOffset + 24));
+    }
+
+    public byte[] toByteArray()
+    {
+        byte[] bytes = new byte[LENGTH];
+        _putLong(bytes, 0, l0);
+        _putLong(bytes, 8, l1);
+        _putLong(bytes, 16, l2);
+        _putLong(bytes, 24, l3);
+        return bytes;
+    }
+
+    /**
+     * @return the colon separated hex form, eg. to display it or to use it as alias in a keyStore
+     */
+    public String toHexString()
+    {
+        return TrustManagerUtil.toHexString(toByteArray());
+    }
+
+    /**
+     * Compares this fingerprint with the 32 bytes at pIndex of pBuffer without creating an object, eg. to search a
+     * sorted index file.
+     */
+    public int compareTo(ByteBuffer pBuffer, int pIndex)
+    {
+        int result = Long.compareUnsigned(l0, pBuffer.getLong(pIndex));
+        if (result == 0)
+            result = Long.compareUnsigned(l1, pBuffer.getLong(pIndex + 8));
+        if (result == 0)
+            result = Long.compareUnsigned(l2, pBuffer.getLong(pIndex + 16));
+        if (result == 0)
+            result = Long.compareUnsigned(l3, pBuffer.getLong(pIndex + 24));
+        return result;
+    }
+
+    @Override
+    public int compareTo(CertificateFingerprint pOther)
+    {
+        int result = Long.compareUnsigned(l0, pOther.l0);
+        if (result == 0)
+            result = Long.compareUnsigned(l1, pOther.l1);
+        if (result == 0)
+            result = Long.compareUnsigned(l2, pOther.l2);
+        if (result == 0)
+            result = Long.compareUnsigned(l3, pOther.l3);
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object pObj)
+    {
+        if (this == pObj)
+            return true;
+        if (!(pObj instanceof CertificateFingerprint))
+            return false;
+        CertificateFingerprint other = (CertificateFingerprint) pObj;
+        return l0 == other.l0 && l1 == other.l1 && l2 == other.l2 && l3 == other.l3;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        //the bits of a SHA-256 hash are already evenly distributed
+        return (int) (l0 ^ (l0 >>> 32));
+    }
+
+    @Override
+    public String toString()
+    {
+        return toHexString();
+    }
+
+    private static long _getLong(byte[] pBytes, int pOffset)
+    {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+            value = (value << 8) | (pBytes[pOffset + i] & 0xff);
+        return value;
+    }
+
+    private static void _putLong(byte[] pBytes, int pOffset, long pValue)
+    {
+        for (int i = 7; i >= 0; i--)
+        {
+            pBytes[pOffset + i] = (byte) pValue;
+            pValue >>>= 8;
+        }
+    }
+
+    /**
+     * The digest and its output buffer of one thread.
+     */
+    private static final class ThreadDigest
+    {
+        private final MessageDigest digest;
+        private final byte[] buffer = new byte[LENGTH];
+
+        ThreadDigest()
+        {
+            try
+            {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void update(X509Certificate pCertificate)
+        {
+            try
+            {
+                digest.update(pCertificate.getEncoded());
+            } catch (CertificateEncodingException e)
+            {
+                digest.reset();
+                throw new IllegalStateException(e);
+            }
+        }
+
+        CertificateFingerprint finish()
+        {
+            try
+            {
+                digest.digest(buffer, 0, LENGTH);
+            } catch (DigestException e)
+            {
+                throw new IllegalStateException(e);
+            }
+            return fromBytes(buffer, 0);
+        }
+    }
+}
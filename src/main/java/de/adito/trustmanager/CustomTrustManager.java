@@ -1,25 +1,72 @@
 package de.adito.trustmanager;
 
 import de.adito.trustmanager.confirmingui.CertificateExceptionDetail;
+import de.adito.trustmanager.revocation.ERevocationMode;
+import de.adito.trustmanager.revocation.OcspCache;
 import de.adito.trustmanager.store.ICustomTrustStore;
 
 import javax.net.ssl.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.net.Socket;
 import java.security.cert.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class initiates a list of TrustManagers to test if the certificate is already trusted by any of these TMs. If it
  * is not trusted, the certificateException will be caught and the JDialog will be prompted.
  * The Java trustManager or a trustManager with a keystore set by the systemProperties will be used as default.
  * All trustManagers are initialised to throw a certificateRevokedException.
+ * Chains accepted by the default trustManagers are remembered in a verdict cache, so repeated handshakes with the same
+ * server skip the validation until the verdict expires.
  */
 public abstract class CustomTrustManager extends X509ExtendedTrustManager
 {
+    /**
+     * Maximum number of accepted chains to remember, 0 disables the verdict cache
+     */
+    public static final String VERDICT_CACHE_SIZE_SYSTEM_PROPERTY = "adito.trustmanager.verdictcache.size";
+    /**
+     * Time in milliseconds an accepted chain will be remembered, eg. to notice a revoked certificate eventually
+     */
+    public static final String VERDICT_CACHE_TTL_SYSTEM_PROPERTY = "adito.trustmanager.verdictcache.ttl";
+    /**
+     * If true, the custom trustStore will be asked before the default trustManagers. Certificates the user already
+     * accepted will then skip the failing validation, but also the revocation check of the default trustManagers.
+     */
+    public static final String CUSTOM_TRUST_STORE_FIRST_SYSTEM_PROPERTY = "adito.trustmanager.customstore.first";
+    /**
+     * If true, the default trustManagers validate a chain concurrently and the first acceptance or revocation wins
+     */
+    public static final String PARALLEL_VALIDATION_SYSTEM_PROPERTY = "adito.trustmanager.parallel.enabled";
+    /**
+     * Number of threads shared by all parallel validations, four per processor by default, because the validations
+     * mostly wait for revocation information. If all of them are busy, further validations are queued and if the queue
+     * is full too, the handshake validates with its own thread.
+     */
+    public static final String PARALLEL_THREADS_SYSTEM_PROPERTY = "adito.trustmanager.parallel.threads";
+    /**
+     * If true, the certificates of the custom trustStore are announced as accepted issuers, too
+     */
+    public static final String ACCEPTED_ISSUERS_CUSTOM_STORE_SYSTEM_PROPERTY = "adito.trustmanager.acceptedissuers.customstore";
+    /**
+     * If true, a chain is validated by the default trustManager that most likely accepts it first, based on the former
+     * validations of chains of the same issuer. The other default trustManagers are only asked if it rejects the chain.
+     */
+    public static final String ADAPTIVE_ORDER_SYSTEM_PROPERTY = "adito.trustmanager.adaptive.enabled";
+    
     private final List<X509ExtendedTrustManager> defaultTrustManagers;
-    private ICustomTrustStore trustStore;
-    private boolean acceptedCert;
-    private int countHandledTMs;
+    private final TrustVerdictCache verdictCache;
+    private final boolean customTrustStoreFirst;
+    private final boolean parallelValidation;
+    private final ICustomTrustStore trustStore;
+    private final boolean customStoreIssuers;
+    private final boolean adaptiveOrder;
+    private final DelegateRouter router;
+    private volatile AcceptedIssuers acceptedIssuers;
     
     /**
      * The constructor will throw a nullPointerException if it has no trustStore to safe the trusted certificates and if
@@ -38,18 +85,31 @@ public abstract class CustomTrustManager extends X509ExtendedTrustManager
         if (defaultTrustManagers.isEmpty())
             throw new NullPointerException("no trustManager found");
         
-        acceptedCert = false;
-        countHandledTMs = 0;
+        verdictCache = new TrustVerdictCache(Integer.getInteger(VERDICT_CACHE_SIZE_SYSTEM_PROPERTY, 1024),
+                                             Long.getLong(VERDICT_CACHE_TTL_SYSTEM_PROPERTY, 5 * 60 * 1000L));
+        customTrustStoreFirst = Boolean.getBoolean(CUSTOM_TRUST_STORE_FIRST_SYSTEM_PROPERTY);
+        parallelValidation = defaultTrustManagers.size() > 1 && Boolean.getBoolean(PARALLEL_VALIDATION_SYSTEM_PROPERTY);
+        customStoreIssuers = Boolean.getBoolean(ACCEPTED_ISSUERS_CUSTOM_STORE_SYSTEM_PROPERTY);
+        adaptiveOrder = defaultTrustManagers.size() > 1 && Boolean.getBoolean(ADAPTIVE_ORDER_SYSTEM_PROPERTY);
+        router = new DelegateRouter(Collections.unmodifiableList(defaultTrustManagers), adaptiveOrder);
     }
 
+    /**
+     * The issuers of the default trustManagers, followed by the certificates of the custom trustStore if
+     * {@link #ACCEPTED_ISSUERS_CUSTOM_STORE_SYSTEM_PROPERTY} is set, without duplicates. The array is built once and only
+     * built again if the custom trustStore changed or {@link #invalidateVerdictCache()} was called. Callers may modify the
+     * returned array, so every call gets a copy of it.
+     */
     public X509Certificate[] getAcceptedIssuers()
     {
-        List<X509Certificate> certificates = new LinkedList<>();
-        for (X509ExtendedTrustManager trustManager : defaultTrustManagers)
+        AcceptedIssuers current = acceptedIssuers;
+        long storeVersion = customStoreIssuers ? trustStore.getVersion() : 0;
+        if (current == null || current.storeVersion != storeVersion)
         {
-            certificates.addAll(Arrays.asList(trustManager.getAcceptedIssuers()));
+            current = _buildAcceptedIssuers(current, storeVersion);
+            acceptedIssuers = current;
         }
-        return certificates.toArray(new X509Certificate[0]);
+        return current.issuers.clone();
     }
     
     public void checkClientTrusted(X509Certificate[] pChain, String pAuthType)
@@ -71,106 +131,425 @@ public abstract class CustomTrustManager extends X509ExtendedTrustManager
     
     public void checkServerTrusted(X509Certificate[] pChain, String pAuthType) throws CertificateException
     {
-        for (X509ExtendedTrustManager defaultTrustManager : defaultTrustManagers)
-        {
-            try
-            {
-                defaultTrustManager.checkServerTrusted(pChain, pAuthType);
-                acceptedCert = true;
-                
-            } catch (CertificateException e)
-            {
-                _handleCertificateException(pChain, e, null);
-            }
-        }
+        _checkServerTrusted(pChain, pAuthType, null, pTrustManager -> pTrustManager.checkServerTrusted(pChain, pAuthType));
     }
     
     @Override
     public void checkServerTrusted(X509Certificate[] pChain, String pAuthType, Socket pSocket) throws CertificateException
     {
-        for (X509ExtendedTrustManager defaultTrustManager : defaultTrustManagers)
-        {
-            try
-            {
-                defaultTrustManager.checkServerTrusted(pChain, pAuthType, pSocket);
-                acceptedCert = true;
-                
-            } catch (CertificateException e)
-            {
-                _handleCertificateException(pChain, e, pSocket.getInetAddress().getHostName());
-            }
-        }
+        if (pSocket instanceof SSLSocket)
+            _addStapledResponses(pChain, ((SSLSocket) pSocket).getHandshakeSession());
+        _checkServerTrusted(pChain, pAuthType, _getPeerHost(pSocket),
+                            pTrustManager -> pTrustManager.checkServerTrusted(pChain, pAuthType, pSocket));
     }
     
     @Override
     public void checkServerTrusted(X509Certificate[] pChain, String pAuthType, SSLEngine pSSLEngine) throws CertificateException
     {
-        for (X509ExtendedTrustManager defaultTrustManager : defaultTrustManagers)
+        _addStapledResponses(pChain, pSSLEngine.getHandshakeSession());
+        _checkServerTrusted(pChain, pAuthType, pSSLEngine.getPeerHost(),
+                            pTrustManager -> pTrustManager.checkServerTrusted(pChain, pAuthType, pSSLEngine));
+    }
+    
+    /**
+     * Drops all cached verdicts, eg. after the trust material of the default trustManagers has changed. Every chain will
+     * be fully validated again by its next handshake. The accepted issuers are collected again and the issuers are no
+     * longer routed to the trustManager that accepted them before.
+     */
+    public void invalidateVerdictCache()
+    {
+        verdictCache.invalidate();
+        acceptedIssuers = null;
+        router.clearRoutes();
+    }
+    
+    /**
+     * @return the acceptances, rejections and durations of the default trustManagers, in the order they were given.
+     * Validations that were answered by the verdict cache or the custom trustStore are not counted.
+     */
+    public List<TrustManagerStatistics> getStatistics()
+    {
+        return router.getStatistics();
+    }
+    
+    /**
+     * The issuers of the default trustManagers don't change with the custom trustStore, so they are reused from the
+     * former snapshot. The version is read before the certificates, so a concurrent change leads to another rebuild.
+     */
+    private AcceptedIssuers _buildAcceptedIssuers(AcceptedIssuers pFormer, long pStoreVersion)
+    {
+        Map<CertificateFingerprint, X509Certificate> defaultIssuers;
+        if (pFormer != null)
+            defaultIssuers = pFormer.defaultIssuers;
+        else
         {
-            try
+            defaultIssuers = new LinkedHashMap<>();
+            for (X509ExtendedTrustManager trustManager : defaultTrustManagers)
+                for (X509Certificate issuer : trustManager.getAcceptedIssuers())
+                    defaultIssuers.putIfAbsent(CertificateFacts.getFingerprint(issuer), issuer);
+        }
+        
+        Collection<X509Certificate> issuers = defaultIssuers.values();
+        if (customStoreIssuers)
+        {
+            Map<CertificateFingerprint, X509Certificate> allIssuers = new LinkedHashMap<>(defaultIssuers);
+            for (X509Certificate certificate : trustStore.getCertificates())
+                allIssuers.putIfAbsent(CertificateFacts.getFingerprint(certificate), certificate);
+            issuers = allIssuers.values();
+        }
+        return new AcceptedIssuers(defaultIssuers, issuers.toArray(new X509Certificate[0]), pStoreVersion);
+    }
+    
+    /**
+     * A chain that was accepted by the default trustManagers before will not be validated again, as long as its verdict
+     * is cached. Only chains that were accepted without asking the custom trustStore will be cached.
+     * If {@link #CUSTOM_TRUST_STORE_FIRST_SYSTEM_PROPERTY} is set, an already accepted certificate returns before the
+     * default trustManagers and the classification of their exceptions.
+     * All state of a single handshake is kept in local variables, so concurrent handshakes don't influence each other.
+     */
+    private void _checkServerTrusted(X509Certificate[] pChain, String pAuthType, String pSimpleInfo, ITrustCheck pCheck)
+            throws CertificateException
+    {
+        if (verdictCache.isTrusted(pChain, pAuthType, pSimpleInfo))
+            return;
+        long statusVersion = verdictCache.getStatusVersion();
+        if (customTrustStoreFirst && pChain != null && pChain.length > 0 && trustStore.get(_getFingerprint(pChain)) != null)
+            return;
+        
+        if (parallelValidation)
+            _checkParallel(pChain, pAuthType, pSimpleInfo, pCheck, statusVersion);
+        else
+            _checkSequential(pChain, pAuthType, pSimpleInfo, pCheck, statusVersion);
+    }
+    
+    /**
+     * The default trustManagers are asked one after another, the first one accepting the chain ends the validation.
+     * If {@link #ADAPTIVE_ORDER_SYSTEM_PROPERTY} is set, the preferred trustManager is asked first. A revocation it
+     * finds is thrown right away. If it rejects the chain otherwise, the others are asked in their usual order and its
+     * exception is handled at its usual position, so the result only differs if the preferred trustManager accepts the
+     * chain.
+     */
+    private void _checkSequential(X509Certificate[] pChain, String pAuthType, String pSimpleInfo, ITrustCheck pCheck, long pStatusVersion)
+            throws CertificateException
+    {
+        int preferred = adaptiveOrder ? router.getPreferred(pChain) : 0;
+        CertificateException preferredException = null;
+        if (preferred > 0)
+        {
+            preferredException = _check(preferred, pChain, pCheck);
+            if (preferredException == null)
+            {
+                verdictCache.putTrusted(pChain, pAuthType, pSimpleInfo, pStatusVersion);
+                return;
+            }
+            if (_isRevoked(preferredException))
+                throw preferredException;
+        }
+        
+        CertificateException deferredException = null;
+        for (int i = 0; i < defaultTrustManagers.size(); i++)
+        {
+            CertificateException e = i == preferred && preferredException != null ? preferredException : _check(i, pChain, pCheck);
+            if (e == null)
             {
-                defaultTrustManager.checkServerTrusted(pChain, pAuthType, pSSLEngine);
-                acceptedCert = true;
-                
-            } catch (CertificateException e)
+                verdictCache.putTrusted(pChain, pAuthType, pSimpleInfo, pStatusVersion);
+                return;
+            }
+            if (!_isTrustManagerSpecific(pChain, e, pSimpleInfo))
             {
-                _handleCertificateException(pChain, e, pSSLEngine.getPeerHost());
+                _tryCustomTrustManager(pChain, e, pSimpleInfo);
+                return;
             }
+            deferredException = _getDeferred(deferredException, e);
         }
+        _tryCustomTrustManager(pChain, deferredException, pSimpleInfo);
     }
     
     /**
-     * In case of a certificateException, the other trustManagers will be tested for untrustedRoot and selfSigned. Otherwise
-     * the JDialog will be prompted.
+     * Validates the chain with one default trustManager and records the result for the adaptive order.
+     *
+     * @return the exception of the trustManager, null if it accepted the chain
      */
-    private void _handleCertificateException(X509Certificate[] pChain, CertificateException pException, String pSimpleInfo) throws CertificateException
+    private CertificateException _check(int pIndex, X509Certificate[] pChain, ITrustCheck pCheck)
     {
-        if (pChain == null || pChain.length == 0)
-            throw pException;
-        Throwable cause = pException.getCause();
-        if (cause instanceof CertPathValidatorException)
+        long start = System.nanoTime();
+        try
         {
-            Throwable rootCause = cause.getCause();
-            if (rootCause instanceof CertificateRevokedException)
-                throw pException;
+            pCheck.check(defaultTrustManagers.get(pIndex));
+            router.record(pIndex, pChain, true, System.nanoTime() - start);
+            return null;
+        } catch (CertificateException e)
+        {
+            router.record(pIndex, pChain, false, System.nanoTime() - start);
+            return e;
         }
-        //get the type of the thrown exception to determine behaviour -> go to exceptionDialog or test the other trustManagers
-        List<CertificateExceptionDetail.EType> list = CertificateExceptionDetail.createExceptionDetail(pChain, pException, pSimpleInfo).getTypes();
-        
-        if (defaultTrustManagers.size() != 1 && list.size() == 1 && (list.contains(CertificateExceptionDetail.EType.UNTRUSTED_ROOT) ||
-                list.contains(CertificateExceptionDetail.EType.SELF_SIGNED)))
+    }
+    
+    /**
+     * All default trustManagers validate the chain at the same time, so a slow one (eg. because of revocation checks)
+     * does not delay the handshake if another one accepts the chain. The first acceptance or revocation decides, the
+     * validations that are still running are cancelled then. If none accepts the chain, the exceptions are handled in
+     * the order of the trustManagers, just like {@link #_checkSequential}. The results are counted for the statistics,
+     * but the adaptive order does not apply, because all trustManagers are asked anyway.
+     */
+    private void _checkParallel(X509Certificate[] pChain, String pAuthType, String pSimpleInfo, ITrustCheck pCheck, long pStatusVersion)
+            throws CertificateException
+    {
+        int count = defaultTrustManagers.size();
+        CertificateException[] exceptions = new CertificateException[count];
+        AtomicInteger pending = new AtomicInteger(count);
+        CompletableFuture<Boolean> accepted = new CompletableFuture<>();
+        List<Future<?>> validations = new ArrayList<>(count);
+        try
         {
-            if (acceptedCert)//if there is more than one trustManager, but one already recognized the certificate
-                return;
+            for (int i = 0; i < count && !accepted.isDone(); i++)
+            {
+                int index = i;
+                validations.add(ParallelValidation.EXECUTOR.submit(() -> {
+                    if (accepted.isDone())
+                        return;
+                    CertificateException exception;
+                    try
+                    {
+                        exception = _check(index, pChain, pCheck);
+                    } catch (RuntimeException e)
+                    {
+                        exception = new CertificateException(e);
+                    }
+                    exceptions[index] = exception;
+                    if (exception == null)
+                        accepted.complete(true);
+                    else if (_isRevoked(exception))
+                        accepted.completeExceptionally(exception);
+                    else if (pending.decrementAndGet() == 0)
+                        accepted.complete(false);
+                }));
+            }
             
-            if (countHandledTMs < defaultTrustManagers.size() - 1)
-            {//keep track of number of already tested trustManagers. if all don't accept the cert, the exceptionDialog will appear
-                countHandledTMs++;
+            if (accepted.get())
+            {
+                verdictCache.putTrusted(pChain, pAuthType, pSimpleInfo, pStatusVersion);
                 return;
             }
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new CertificateException("interrupted while validating the certificate", e);
+        } catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof CertificateException)
+                throw (CertificateException) e.getCause();
+            throw new CertificateException(e.getCause());
+        } finally
+        {
+            for (Future<?> validation : validations)
+                validation.cancel(true);
         }
-        //reset counter and acceptedCert in case there are other servers tested later
-        countHandledTMs = 0;
-        acceptedCert = false;
-        _tryCustomTrustManager(pChain, pException, pSimpleInfo);
+        
+        CertificateException deferredException = null;
+        for (CertificateException exception : exceptions)
+        {
+            if (!_isTrustManagerSpecific(pChain, exception, pSimpleInfo))
+            {
+                _tryCustomTrustManager(pChain, exception, pSimpleInfo);
+                return;
+            }
+            deferredException = _getDeferred(deferredException, exception);
+        }
+        _tryCustomTrustManager(pChain, deferredException, pSimpleInfo);
+    }
+    
+    /**
+     * The host name of the handshake session is preferred, because the socket's address might need a reverse lookup.
+     */
+    private static String _getPeerHost(Socket pSocket)
+    {
+        if (pSocket instanceof SSLSocket)
+        {
+            SSLSession session = ((SSLSocket) pSocket).getHandshakeSession();
+            if (session != null && session.getPeerHost() != null)
+                return session.getPeerHost();
+        }
+        return pSocket.getInetAddress().getHostName();
+    }
+    
+    /**
+     * In OCSP mode, the response the server stapled to the handshake is put into the {@link OcspCache}, where the
+     * {@link de.adito.trustmanager.revocation.OcspRevocationChecker} of the default trustManagers finds it. The cache is
+     * used instead of passing the response along, because the default trustManagers may validate on other threads.
+     * Stapling is only available since Java 9, so the method of the session is looked up at runtime.
+     */
+    @SuppressWarnings("unchecked")
+    private static void _addStapledResponses(X509Certificate[] pChain, SSLSession pSession)
+    {
+        if (pChain == null || pChain.length < 2 || !(pSession instanceof ExtendedSSLSession) || !TrustManagerBuilder.isRevocationEnabled() ||
+                TrustManagerBuilder.getRevocationMode() != ERevocationMode.OCSP || Stapling.GET_STATUS_RESPONSES == null)
+            return;
+        List<byte[]> responses;
+        try
+        {
+            responses = (List<byte[]>) Stapling.GET_STATUS_RESPONSES.invokeExact((ExtendedSSLSession) pSession);
+        } catch (UnsupportedOperationException e)
+        {
+            return;
+        } catch (Throwable e)
+        {
+            throw new RuntimeException(e);
+        }
+        if (!responses.isEmpty() && responses.get(0).length > 0)
+            OcspCache.getDefault().addStapledResponse(pChain[0], pChain[1], responses.get(0));
+    }
+    
+    /**
+     * In case of a certificateException, the other trustManagers will be tested for untrustedRoot and selfSigned, because
+     * they might know the root certificate. Otherwise the JDialog will be prompted.
+     *
+     * @return true, if another trustManager might still accept the certificate
+     */
+    private boolean _isTrustManagerSpecific(X509Certificate[] pChain, CertificateException pException, String pSimpleInfo)
+            throws CertificateException
+    {
+        if (pChain == null || pChain.length == 0)
+            throw pException;
+        if (_isRevoked(pException))
+            throw pException;
+        //a lazy trustManager that could not be created is skipped, like a missing OS trustManager
+        if (pException instanceof LazyTrustManager.UnavailableException)
+            return true;
+        if (defaultTrustManagers.size() == 1)
+            return false;
+        
+        //get the type of the thrown exception to determine behaviour -> go to exceptionDialog or test the other trustManagers
+        List<CertificateExceptionDetail.EType> list = CertificateExceptionDetail.createExceptionDetail(pChain, pException, pSimpleInfo).getTypes();
+        return list.size() == 1 && (list.contains(CertificateExceptionDetail.EType.UNTRUSTED_ROOT) ||
+                list.contains(CertificateExceptionDetail.EType.SELF_SIGNED));
     }
     
     /**
-     * This method will use the user's decision and add the certificate permanently or only trust it once.
+     * The user should see why a chain was rejected, not that a trustManager was unavailable.
+     */
+    private static CertificateException _getDeferred(CertificateException pDeferred, CertificateException pException)
+    {
+        if (pDeferred != null && pException instanceof LazyTrustManager.UnavailableException)
+            return pDeferred;
+        return pException;
+    }
+    
+    private static boolean _isRevoked(CertificateException pException)
+    {
+        Throwable cause = pException.getCause();
+        return cause instanceof CertPathValidatorException && cause.getCause() instanceof CertificateRevokedException;
+    }
+    
+    /**
+     * This method will use the user's decision and add the certificate permanently or only trust it once. If the
+     * decision already added the certificate, see {@link #addToTrustStore}, it is not added again.
      */
     private void _tryCustomTrustManager(X509Certificate[] pChain, CertificateException pException, String pSimpleInfo)
             throws CertificateException
     {
         {
             X509Certificate certificate = pChain[pChain.length - 1];
-            String alias = TrustManagerUtil.hashSHA1(certificate);
-            if (trustStore.get(alias) != null)
+            CertificateFingerprint fingerprint = _getFingerprint(pChain);
+            if (trustStore.get(fingerprint) != null || _isStoredBySha1(certificate))
                 return;
             boolean persist = checkCertificateAndShouldPersist(pChain, pException, pSimpleInfo);
-            trustStore.add(alias, certificate, persist);
+            if (trustStore.get(fingerprint) == null)
+                trustStore.add(fingerprint, certificate, persist);
         }
     }
     
+    /**
+     * Adds the last certificate of the chain to the custom trustStore. {@link #checkCertificateAndShouldPersist} may call
+     * this, eg. to store a decision before concurrent handshakes with the same certificate continue.
+     */
+    protected void addToTrustStore(X509Certificate[] pChain, boolean pPersist)
+    {
+        trustStore.add(_getFingerprint(pChain), pChain[pChain.length - 1], pPersist);
+    }
+    
+    /**
+     * Stores that only know aliases are asked for the SHA-256 alias by the fingerprint lookup, but certificates that were
+     * accepted before the fingerprint was introduced are stored under their SHA-1 alias. The own stores index every
+     * certificate by its fingerprint when they are loaded, so this is only asked before the user would be asked.
+     */
+    private boolean _isStoredBySha1(X509Certificate pCertificate)
+    {
+        return trustStore.get(TrustManagerUtil.hashSHA1(pCertificate)) != null;
+    }
+    
+    /**
+     * The last certificate of the chain identifies the chain in the custom trustStore.
+     */
+    private static CertificateFingerprint _getFingerprint(X509Certificate[] pChain)
+    {
+        return CertificateFacts.getFingerprint(pChain[pChain.length - 1]);
+    }
+    
     protected abstract boolean checkCertificateAndShouldPersist(X509Certificate[] pChain, CertificateException pE, String pSimpleInfo)
             throws CertificateException;
+    
+    /**
+     * One validation of the chain by a single default trustManager, depending on the checkServerTrusted variant.
+     */
+    private interface ITrustCheck
+    {
+        void check(X509ExtendedTrustManager pTrustManager) throws CertificateException;
+    }
+    
+    /**
+     * An immutable snapshot of the accepted issuers for one version of the custom trustStore.
+     */
+    private static final class AcceptedIssuers
+    {
+        private final Map<CertificateFingerprint, X509Certificate> defaultIssuers;
+        private final X509Certificate[] issuers;
+        private final long storeVersion;
+        
+        AcceptedIssuers(Map<CertificateFingerprint, X509Certificate> pDefaultIssuers, X509Certificate[] pIssuers, long pStoreVersion)
+        {
+            defaultIssuers = pDefaultIssuers;
+            issuers = pIssuers;
+            storeVersion = pStoreVersion;
+        }
+    }
+    
+    /**
+     * ExtendedSSLSession.getStatusResponses(), null before Java 9. Only looked up if OCSP is used.
+     */
+    private static final class Stapling
+    {
+        private static final MethodHandle GET_STATUS_RESPONSES = _find();
+        
+        private static MethodHandle _find()
+        {
+            try
+            {
+                return MethodHandles.publicLookup().findVirtual(ExtendedSSLSession.class, "getStatusResponses",
+                                                                MethodType.methodType(List.class));
+            } catch (NoSuchMethodException | IllegalAccessException e)
+            {
+                return null;
+            }
+        }
+    }
+    
+    /**
+     * The executor is only created if the parallel validation is used. Its threads and queue are bounded, if both are
+     * full the handshake thread validates itself.
+     */
+    private static final class ParallelValidation
+    {
+        private static final ExecutorService EXECUTOR = _create();
+        
+        private static ExecutorService _create()
+        {
+            int threads = Math.max(1, Integer.getInteger(PARALLEL_THREADS_SYSTEM_PROPERTY, 4 * Runtime.getRuntime().availableProcessors()));
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(threads * 4),
+                                                                 TrustManagerUtil.newDaemonThreadFactory("trustmanager-validation"),
+                                                                 new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
 }
\ No newline at end of file
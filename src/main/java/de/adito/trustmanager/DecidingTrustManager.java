@@ -0,0 +1,201 @@
+package de.adito.trustmanager;
+
+import de.adito.trustmanager.store.ICustomTrustStore;
+
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class asks an {@link ITrustDecisionProvider} about certificates that were not accepted by the default
+ * trustManagers. The handshake waits at most until the deadline, afterwards the default decision will be used.
+ * Concurrent handshakes with the same certificate share one pending decision, so the provider is asked only once and
+ * the certificate is added to the custom trustStore only once.
+ */
+public class DecidingTrustManager extends CustomTrustManager
+{
+    /**
+     * Time in milliseconds a handshake waits for a decision, 0 waits until the decision is made
+     */
+    public static final String DECISION_TIMEOUT_SYSTEM_PROPERTY = "adito.trustmanager.decision.timeout";
+    /**
+     * The {@link ETrustDecision} that is used if no decision was made before the deadline
+     */
+    public static final String DEFAULT_DECISION_SYSTEM_PROPERTY = "adito.trustmanager.decision.default";
+
+    private final ITrustDecisionProvider decisionProvider;
+    private final long timeout;
+    private final ETrustDecision defaultDecision;
+    private final ConcurrentMap<CertificateFingerprint, CompletableFuture<ETrustDecision>> pendingDecisions = new ConcurrentHashMap<>();
+    private final AtomicLong decisionCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * The deadline and default decision are read from {@link #DECISION_TIMEOUT_SYSTEM_PROPERTY} and
+     * {@link #DEFAULT_DECISION_SYSTEM_PROPERTY}. An unknown default decision rejects the certificate.
+     */
+    public DecidingTrustManager(ICustomTrustStore pTrustStore, Iterable<X509ExtendedTrustManager> pTrustManagers,
+                                ITrustDecisionProvider pDecisionProvider)
+    {
+        this(pTrustStore, pTrustManagers, pDecisionProvider, Long.getLong(DECISION_TIMEOUT_SYSTEM_PROPERTY, 0),
+             _getDefaultDecision());
+    }
+
+    /**
+     * @param pTimeout         milliseconds to wait for a decision, 0 waits until the decision is made
+     * @param pDefaultDecision used if no decision was made before the deadline
+     */
+    public DecidingTrustManager(ICustomTrustStore pTrustStore, Iterable<X509ExtendedTrustManager> pTrustManagers,
+                                ITrustDecisionProvider pDecisionProvider, long pTimeout, ETrustDecision pDefaultDecision)
+    {
+        super(pTrustStore, pTrustManagers);
+        if (pDecisionProvider == null)
+            throw new NullPointerException("decisionProvider is null");
+        if (pDefaultDecision == null)
+            throw new NullPointerException("defaultDecision is null");
+        decisionProvider = pDecisionProvider;
+        timeout = pTimeout;
+        defaultDecision = pDefaultDecision;
+    }
+
+    @Override
+    protected boolean checkCertificateAndShouldPersist(X509Certificate[] pChain, CertificateException pE, String pSimpleInfo)
+            throws CertificateException
+    {
+        CertificateFingerprint fingerprint = CertificateFacts.getFingerprint(pChain[pChain.length - 1]);
+        CompletableFuture<ETrustDecision> decision = isCoalescingAllowed() ? pendingDecisions.get(fingerprint) : null;
+        ETrustDecision result;
+        if (decision == null)
+        {
+            CompletableFuture<ETrustDecision> newDecision = new CompletableFuture<>();
+            decision = isCoalescingAllowed() ? pendingDecisions.putIfAbsent(fingerprint, newDecision) : null;
+            if (decision == null)
+                result = _decide(fingerprint, newDecision, pChain, pE, pSimpleInfo);
+            else
+                result = _awaitCoalesced(decision);
+        } else
+            result = _awaitCoalesced(decision);
+
+        switch (result)
+        {
+            case TRUST_ONCE:
+                return false;
+            case PERSIST:
+                return true;
+            default:
+                throw pE;
+        }
+    }
+
+    /**
+     * @return the number of decisions the provider was asked for
+     */
+    public long getDecisionCount()
+    {
+        return decisionCount.get();
+    }
+
+    /**
+     * @return the number of handshakes that got the decision that was requested by another handshake
+     */
+    public long getCoalescedCount()
+    {
+        return coalescedCount.get();
+    }
+
+    /**
+     * If a thread can't wait for the decision of another handshake, eg. because it is needed to make that decision,
+     * it will ask the provider on its own.
+     */
+    protected boolean isCoalescingAllowed()
+    {
+        return true;
+    }
+
+    private static ETrustDecision _getDefaultDecision()
+    {
+        String decision = System.getProperty(DEFAULT_DECISION_SYSTEM_PROPERTY);
+        if (decision != null)
+            for (ETrustDecision value : ETrustDecision.values())
+                if (value.name().equals(decision))
+                    return value;
+        //a misspelled property must neither break the trustManager nor trust anything
+        return ETrustDecision.REJECT;
+    }
+
+    /**
+     * The certificate is added to the trustStore before the pending decision is removed, so a handshake with the same
+     * certificate either waits for the decision or finds the certificate in the trustStore.
+     */
+    private ETrustDecision _decide(CertificateFingerprint pFingerprint, CompletableFuture<ETrustDecision> pPending,
+                                   X509Certificate[] pChain, CertificateException pE, String pSimpleInfo)
+    {
+        ETrustDecision result = ETrustDecision.REJECT;
+        try
+        {
+            result = _awaitDecision(_requestDecision(pChain, pE, pSimpleInfo), true);
+            if (result != ETrustDecision.REJECT)
+                addToTrustStore(pChain, result == ETrustDecision.PERSIST);
+        } finally
+        {
+            pendingDecisions.remove(pFingerprint, pPending);
+            pPending.complete(result);
+        }
+        return result;
+    }
+
+    private ETrustDecision _awaitCoalesced(CompletableFuture<ETrustDecision> pDecision)
+    {
+        coalescedCount.incrementAndGet();
+        return _awaitDecision(pDecision, false);
+    }
+
+    private CompletableFuture<ETrustDecision> _requestDecision(X509Certificate[] pChain, CertificateException pE, String pSimpleInfo)
+    {
+        decisionCount.incrementAndGet();
+        CompletableFuture<ETrustDecision> decision = new CompletableFuture<>();
+        try
+        {
+            CompletableFuture<ETrustDecision> providerDecision = decisionProvider.decide(pChain, pE, pSimpleInfo);
+            providerDecision.whenComplete((pResult, pThrowable) -> {
+                if (pThrowable != null)
+                    decision.completeExceptionally(pThrowable);
+                else
+                    decision.complete(pResult);
+            });
+            //a cancelled decision tells the provider that nobody is waiting anymore
+            decision.whenComplete((pResult, pThrowable) -> providerDecision.cancel(false));
+        } catch (RuntimeException e)
+        {
+            decision.completeExceptionally(e);
+        }
+        return decision;
+    }
+
+    /**
+     * Only the handshake that requested the decision cancels it after its deadline, the other handshakes started
+     * waiting later and will get the default decision as well.
+     */
+    private ETrustDecision _awaitDecision(CompletableFuture<ETrustDecision> pDecision, boolean pRequested)
+    {
+        try
+        {
+            ETrustDecision decision = timeout > 0 ? pDecision.get(timeout, TimeUnit.MILLISECONDS) : pDecision.get();
+            return decision == null ? ETrustDecision.REJECT : decision;
+        } catch (TimeoutException | CancellationException e)
+        {
+            if (pRequested)
+                pDecision.cancel(false);
+            return defaultDecision;
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return ETrustDecision.REJECT;
+        } catch (ExecutionException e)
+        {
+            return ETrustDecision.REJECT;
+        }
+    }
+}
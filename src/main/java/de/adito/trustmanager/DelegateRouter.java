@@ -0,0 +1,145 @@
+package de.adito.trustmanager;
+
+import javax.net.ssl.X509ExtendedTrustManager;
+import javax.security.auth.x500.X500Principal;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the acceptances, rejections and the time of every default trustManager and remembers which one accepted the
+ * chains of an issuer. The issuer is the one of the last certificate of the chain, ie. usually the root certificate.
+ * A chain of a known issuer is routed to the trustManager that accepted it last time, any other chain to the one with
+ * the best acceptance rate. The best trustManager is determined again after every rejection, after each of the first 64
+ * validations and after every 64 validations afterwards. Without the adaptive order, only the counters are updated.
+ */
+final class DelegateRouter
+{
+    private static final int MAX_ROUTES = 1024;
+    private static final int UPDATE_INTERVAL = 64;
+
+    private final List<X509ExtendedTrustManager> trustManagers;
+    private final Counters[] counters;
+    private final ConcurrentHashMap<X500Principal, Integer> routes = new ConcurrentHashMap<>();
+    private final LongAdder validations = new LongAdder();
+    private final boolean adaptive;
+    private volatile int best;
+
+    /**
+     * @param pAdaptive false, if the routes are not used and only the statistics are needed
+     */
+    DelegateRouter(List<X509ExtendedTrustManager> pTrustManagers, boolean pAdaptive)
+    {
+        trustManagers = pTrustManagers;
+        adaptive = pAdaptive;
+        counters = new Counters[pTrustManagers.size()];
+        for (int i = 0; i < counters.length; i++)
+            counters[i] = new Counters();
+    }
+
+    /**
+     * @return the index of the trustManager that most likely accepts the chain
+     */
+    int getPreferred(X509Certificate[] pChain)
+    {
+        X500Principal issuer = _getIssuer(pChain);
+        Integer route = issuer == null ? null : routes.get(issuer);
+        return route == null ? best : route;
+    }
+
+    /**
+     * @param pNanos duration of the validation
+     */
+    void record(int pIndex, X509Certificate[] pChain, boolean pAccepted, long pNanos)
+    {
+        Counters counter = counters[pIndex];
+        counter.nanos.add(pNanos);
+        (pAccepted ? counter.accepted : counter.rejected).increment();
+        if (!adaptive)
+            return;
+
+        X500Principal issuer = _getIssuer(pChain);
+        if (pAccepted)
+        {
+            if (issuer != null && !Integer.valueOf(pIndex).equals(routes.get(issuer)))
+            {
+                //the routes are only a hint, so they are simply dropped if there are too many issuers
+                if (routes.size() >= MAX_ROUTES)
+                    routes.clear();
+                routes.put(issuer, pIndex);
+            }
+        } else if (issuer != null)
+            routes.remove(issuer, pIndex);
+
+        validations.increment();
+        long count = validations.sum();
+        if (!pAccepted || count <= UPDATE_INTERVAL || count % UPDATE_INTERVAL == 0)
+            best = _findBest();
+    }
+
+    /**
+     * Forgets the routes, eg. because the trust material changed. The counters are kept.
+     */
+    void clearRoutes()
+    {
+        routes.clear();
+    }
+
+    List<TrustManagerStatistics> getStatistics()
+    {
+        int[] routedIssuers = new int[counters.length];
+        for (Integer route : routes.values())
+            routedIssuers[route]++;
+        List<TrustManagerStatistics> statistics = new ArrayList<>(counters.length);
+        for (int i = 0; i < counters.length; i++)
+            statistics.add(new TrustManagerStatistics(trustManagers.get(i), counters[i].accepted.sum(), counters[i].rejected.sum(),
+                                                      counters[i].nanos.sum(), routedIssuers[i]));
+        return statistics;
+    }
+
+    /**
+     * The highest acceptance rate wins, if the rates are equal the faster trustManager. If they are equal too, the
+     * order of the trustManagers decides. Only the counters are read, the routes are not walked.
+     */
+    private int _findBest()
+    {
+        int bestIndex = 0;
+        for (int i = 1; i < counters.length; i++)
+            if (counters[i].isBetterThan(counters[bestIndex]))
+                bestIndex = i;
+        return bestIndex;
+    }
+
+    private static X500Principal _getIssuer(X509Certificate[] pChain)
+    {
+        if (pChain == null || pChain.length == 0)
+            return null;
+        return pChain[pChain.length - 1].getIssuerX500Principal();
+    }
+
+    private static final class Counters
+    {
+        private final LongAdder accepted = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        /**
+         * Same order as {@link TrustManagerStatistics#getAcceptanceRate()} and
+         * {@link TrustManagerStatistics#getAverageNanos()}, without creating the statistics.
+         */
+        boolean isBetterThan(Counters pOther)
+        {
+            long acceptedSum = accepted.sum();
+            long total = acceptedSum + rejected.sum();
+            long otherAccepted = pOther.accepted.sum();
+            long otherTotal = otherAccepted + pOther.rejected.sum();
+            double rate = total == 0 ? 0 : (double) acceptedSum / total;
+            double otherRate = otherTotal == 0 ? 0 : (double) otherAccepted / otherTotal;
+            if (rate != otherRate)
+                return rate > otherRate;
+            return acceptedSum > 0 && nanos.sum() / total < (otherTotal == 0 ? 0 : pOther.nanos.sum() / otherTotal);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package de.adito.trustmanager;
+
+/**
+ * The possible decisions of an {@link ITrustDecisionProvider} about a certificate that was not accepted by the default
+ * trustManagers.
+ */
+public enum ETrustDecision
+{
+    /**
+     * The certificate is trusted until the application ends
+     */
+    TRUST_ONCE,
+    /**
+     * The certificate will be added permanently to the custom trustStore
+     */
+    PERSIST,
+    /**
+     * The handshake will fail with the original certificateException
+     */
+    REJECT
+}
@@ -0,0 +1,201 @@
+package de.adito.trustmanager;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.*;
+
+/**
+ * Matches host names against the names of a certificate like RFC 6125: DNS names of the subject alternative names match
+ * case-insensitively, a wildcard is only allowed as complete left-most label ("*.example.org") and matches exactly one
+ * label. IP addresses only match IP address names. The common name is only used if there are no DNS names.
+ * <p>
+ * The names are read once per certificate, see {@link CertificateFacts#getHostnameMatcher}. Matching a lower case host
+ * name does not allocate.
+ */
+public final class HostnameMatcher
+{
+    //nameType of the subject alternative names
+    private static final int DNS_NAME = 2;
+    private static final int IP_ADDRESS = 7;
+
+    private final Set<String> names;
+    private final Set<String> exactNames;
+    private final String[] wildcardSuffixes;
+    private final Set<String> ipAddresses;
+
+    private HostnameMatcher(Set<String> pNames, Set<String> pExactNames, List<String> pWildcardSuffixes, Set<String> pIpAddresses)
+    {
+        names = pNames;
+        exactNames = pExactNames;
+        wildcardSuffixes = pWildcardSuffixes.toArray(new String[0]);
+        ipAddresses = pIpAddresses;
+    }
+
+    static HostnameMatcher of(X509Certificate pCertificate)
+    {
+        Set<String> names = new LinkedHashSet<>();
+        Set<String> exactNames = new HashSet<>();
+        List<String> wildcardSuffixes = new ArrayList<>();
+        Set<String> ipAddresses = new HashSet<>();
+        Collection<List<?>> altNames;
+        try
+        {
+            altNames = pCertificate.getSubjectAlternativeNames();
+        } catch (CertificateParsingException e)
+        {
+            altNames = null;
+        }
+        boolean hasDnsNames = false;
+        if (altNames != null)
+        {
+            for (List<?> entry : altNames)
+            {
+                Integer nameType = (Integer) entry.get(0);
+                if (!(entry.get(1) instanceof String))
+                    continue;
+                String name = (String) entry.get(1);
+                if (nameType == DNS_NAME)
+                {
+                    hasDnsNames = true;
+                    names.add(name);
+                    _addDnsName(name, exactNames, wildcardSuffixes);
+                }
+                else if (nameType == IP_ADDRESS)
+                {
+                    names.add(name);
+                    String address = _normalizeIpAddress(name);
+                    if (address != null)
+                        ipAddresses.add(address);
+                }
+            }
+        }
+        if (!hasDnsNames)
+        {
+            String commonName = _getCommonName(pCertificate);
+            if (commonName != null)
+                _addDnsName(commonName, exactNames, wildcardSuffixes);
+        }
+        return new HostnameMatcher(Collections.unmodifiableSet(names), exactNames, wildcardSuffixes, ipAddresses);
+    }
+
+    /**
+     * @param pHost a DNS name or an IP address literal
+     * @return true, if the certificate is valid for the host
+     */
+    public boolean matches(String pHost)
+    {
+        if (pHost == null || pHost.isEmpty())
+            return false;
+        if (_isIpAddress(pHost))
+        {
+            String address = _normalizeIpAddress(pHost);
+            return address != null && ipAddresses.contains(address);
+        }
+        String host = _normalizeDnsName(pHost);
+        if (exactNames.contains(host))
+            return true;
+        int dot = host.indexOf('.');
+        if (dot <= 0)
+            return false;
+        int suffixLength = host.length() - dot - 1;
+        for (String suffix : wildcardSuffixes)
+            if (suffix.length() == suffixLength && host.regionMatches(dot + 1, suffix, 0, suffixLength))
+                return true;
+        return false;
+    }
+
+    /**
+     * @return the DNS names and IP addresses of the subject alternative names, in the order of the certificate
+     */
+    public Set<String> getNames()
+    {
+        return names;
+    }
+
+    /**
+     * "*.example.org" is stored as suffix "example.org". Partial wildcards ("w*.example.org") and wildcards for a single
+     * label suffix ("*.org") never match.
+     */
+    private static void _addDnsName(String pName, Set<String> pExactNames, List<String> pWildcardSuffixes)
+    {
+        String name = _normalizeDnsName(pName);
+        if (name.startsWith("*."))
+        {
+            String suffix = name.substring(2);
+            if (suffix.indexOf('.') > 0 && suffix.indexOf('*') < 0)
+                pWildcardSuffixes.add(suffix);
+        }
+        else if (name.indexOf('*') < 0 && !name.isEmpty())
+            pExactNames.add(name);
+    }
+
+    /**
+     * @return the lower case name without trailing dot, the same string if it is already normalized
+     */
+    private static String _normalizeDnsName(String pName)
+    {
+        String name = pName.endsWith(".") ? pName.substring(0, pName.length() - 1) : pName;
+        for (int i = 0; i < name.length(); i++)
+        {
+            char c = name.charAt(i);
+            if (c >= 'A' && c <= 'Z' || c > 0x7f)
+                return name.toLowerCase(Locale.ROOT);
+        }
+        return name;
+    }
+
+    private static boolean _isIpAddress(String pHost)
+    {
+        if (pHost.indexOf(':') >= 0)
+            return true;
+        for (int i = 0; i < pHost.length(); i++)
+        {
+            char c = pHost.charAt(i);
+            if ((c < '0' || c > '9') && c != '.')
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Only literals are passed to {@link InetAddress#getByName}, so there is never a name lookup.
+     *
+     * @return the canonical form of the address, null if it is not an IP address
+     */
+    private static String _normalizeIpAddress(String pAddress)
+    {
+        String address = pAddress.startsWith("[") && pAddress.endsWith("]") ? pAddress.substring(1, pAddress.length() - 1) : pAddress;
+        if (!_isIpAddress(address) || address.isEmpty())
+            return null;
+        try
+        {
+            return InetAddress.getByName(address).getHostAddress();
+        } catch (UnknownHostException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @return the most specific common name of the subject
+     */
+    private static String _getCommonName(X509Certificate pCertificate)
+    {
+        try
+        {
+            List<Rdn> rdns = new LdapName(pCertificate.getSubjectX500Principal().getName()).getRdns();
+            for (int i = rdns.size() - 1; i >= 0; i--)
+                if ("CN".equalsIgnoreCase(rdns.get(i).getType()))
+                    return String.valueOf(rdns.get(i).getValue());
+        } catch (InvalidNameException e)
+        {
+            //a subject that can't be parsed has no usable common name
+        }
+        return null;
+    }
+}
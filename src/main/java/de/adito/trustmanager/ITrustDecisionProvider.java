@@ -0,0 +1,18 @@
+package de.adito.trustmanager;
+
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Decides what to do with a certificate that was not accepted by the default trustManagers, eg. by asking the user.
+ * The decision is made asynchronously, so {@link DecidingTrustManager} can stop waiting for it after a deadline.
+ * If the returned future gets cancelled, nobody is waiting for the decision anymore and the provider may clean up.
+ * <p>
+ * The deadline starts when {@link #decide} returns. A provider that blocks the calling thread, eg. with a modal dialog
+ * on the event dispatch thread, has to enforce the deadline itself, by cancelling the returned future.
+ */
+public interface ITrustDecisionProvider
+{
+    CompletableFuture<ETrustDecision> decide(X509Certificate[] pChain, CertificateException pException, String pSimpleInfo);
+}
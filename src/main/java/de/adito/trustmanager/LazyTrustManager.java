@@ -0,0 +1,129 @@
+package de.adito.trustmanager;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.net.Socket;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.*;
+
+/**
+ * A trustManager that is created by a supplier on a background thread, eg. because loading its keyStore takes a while.
+ * Creating this trustManager returns immediately, only the first real validation waits until the supplier has finished.
+ * If the supplier fails or returns null, every validation fails with an {@link UnavailableException}, so
+ * {@link CustomTrustManager} asks its next trustManager, just as if this one was never added.
+ */
+public class LazyTrustManager extends X509ExtendedTrustManager
+{
+    private static final ExecutorService WARMUP = Executors.newCachedThreadPool(TrustManagerUtil.newDaemonThreadFactory("trustmanager-warmup"));
+
+    private final CompletableFuture<X509ExtendedTrustManager> trustManager;
+
+    /**
+     * The supplier is started on a background thread right away.
+     */
+    public LazyTrustManager(Callable<X509ExtendedTrustManager> pSupplier)
+    {
+        trustManager = new CompletableFuture<>();
+        WARMUP.execute(() -> {
+            try
+            {
+                trustManager.complete(pSupplier.call());
+            } catch (Throwable e)
+            {
+                trustManager.completeExceptionally(e);
+            }
+        });
+    }
+
+    /**
+     * @return true, if the supplier has finished, no matter if it was successful
+     */
+    public boolean isInitialized()
+    {
+        return trustManager.isDone();
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] pChain, String pAuthType, Socket pSocket) throws CertificateException
+    {
+        _get().checkClientTrusted(pChain, pAuthType, pSocket);
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] pChain, String pAuthType, Socket pSocket) throws CertificateException
+    {
+        _get().checkServerTrusted(pChain, pAuthType, pSocket);
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] pChain, String pAuthType, SSLEngine pSSLEngine) throws CertificateException
+    {
+        _get().checkClientTrusted(pChain, pAuthType, pSSLEngine);
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] pChain, String pAuthType, SSLEngine pSSLEngine) throws CertificateException
+    {
+        _get().checkServerTrusted(pChain, pAuthType, pSSLEngine);
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] pChain, String pAuthType) throws CertificateException
+    {
+        _get().checkClientTrusted(pChain, pAuthType);
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] pChain, String pAuthType) throws CertificateException
+    {
+        _get().checkServerTrusted(pChain, pAuthType);
+    }
+
+    /**
+     * @return no issuers, if the trustManager could not be created
+     */
+    @Override
+    public X509Certificate[] getAcceptedIssuers()
+    {
+        try
+        {
+            return _get().getAcceptedIssuers();
+        } catch (CertificateException e)
+        {
+            return new X509Certificate[0];
+        }
+    }
+
+    private X509ExtendedTrustManager _get() throws CertificateException
+    {
+        X509ExtendedTrustManager result;
+        try
+        {
+            result = trustManager.get();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new UnavailableException("interrupted while waiting for the trustManager", e);
+        } catch (ExecutionException e)
+        {
+            throw new UnavailableException("trustManager could not be initialized", e.getCause());
+        }
+        if (result == null)
+            throw new UnavailableException("trustManager is not available", null);
+        return result;
+    }
+
+    /**
+     * The supplier did not create a trustManager, so nothing was validated.
+     */
+    public static final class UnavailableException extends CertificateException
+    {
+        private static final long serialVersionUID = 1L;
+
+        UnavailableException(String pMessage, Throwable pCause)
+        {
+            super(pMessage, pCause);
+        }
+    }
+}
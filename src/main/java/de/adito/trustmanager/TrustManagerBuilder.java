@@ -1,6 +1,7 @@
 package de.adito.trustmanager;
 
 import de.adito.trustmanager.confirmingui.*;
+import de.adito.trustmanager.revocation.*;
 import de.adito.trustmanager.store.*;
 
 import javax.net.ssl.*;
@@ -16,6 +17,19 @@ import java.util.*;
 
 public class TrustManagerBuilder
 {
+  /**
+   * If true, the default TrustManagers are created on a background thread, see {@link #createLazyDefaultTrustManagers()}
+   */
+  public static final String LAZY_INITIALIZATION_SYSTEM_PROPERTY = "adito.trustmanager.lazy.enabled";
+  /**
+   * Source of the revocation information if revocation is enabled, "crl" (default) or "ocsp", see {@link ERevocationMode}
+   */
+  public static final String REVOCATION_MODE_SYSTEM_PROPERTY = "adito.trustmanager.revocation.mode";
+  /**
+   * If true, handshakes don't wait for CRLs or OCSP responses: the last known revocation status is used and missing or
+   * outdated information is loaded in the background. A revoked certificate is rejected from the next handshake on.
+   */
+  public static final String REVOCATION_ASYNC_SYSTEM_PROPERTY = "adito.trustmanager.revocation.async";
 
   private TrustManagerBuilder()
   {
@@ -31,9 +45,18 @@ public class TrustManagerBuilder
       throws CertificateException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, KeyStoreException, IOException
   {
     if (pAllowDialog)
-      return new ConfirmingUITrustManager(pTrustStore, createDefaultTrustManagers());
+      return new ConfirmingUITrustManager(pTrustStore, _createDefaultTrustManagers());
     else
-      return new NoConfirmingTrustManager(pTrustStore, createDefaultTrustManagers());
+      return new NoConfirmingTrustManager(pTrustStore, _createDefaultTrustManagers());
+  }
+
+  /**
+   * The provider decides about certificates that were not accepted by the default TrustManagers, see {@link DecidingTrustManager}.
+   */
+  public static TrustManager buildDecidingTrustManager(ICustomTrustStore pTrustStore, ITrustDecisionProvider pDecisionProvider)
+      throws CertificateException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, KeyStoreException, IOException
+  {
+    return new DecidingTrustManager(pTrustStore, _createDefaultTrustManagers(), pDecisionProvider);
   }
 
   /**
@@ -55,6 +78,25 @@ public class TrustManagerBuilder
     return tms;
   }
 
+  /**
+   * Creates the same TrustManagers as {@link #createDefaultTrustManagers()}, but their keyStores are loaded on a background
+   * thread. This method returns immediately, the first handshake waits until the TrustManagers are ready. A TrustManager
+   * that could not be built is skipped during the validation, just like it is left out by {@link #createDefaultTrustManagers()}.
+   */
+  public static List<X509ExtendedTrustManager> createLazyDefaultTrustManagers()
+  {
+    List<X509ExtendedTrustManager> tms = new ArrayList<>();
+
+    //the OS trustManager only exists on windows, this is known without loading it
+    String osName = System.getProperty("os.name");
+    if (osName.startsWith("Windows"))
+      tms.add(new LazyTrustManager(() -> buildOsTrustManager(osName)));
+
+    tms.add(new LazyTrustManager(TrustManagerBuilder::buildJavaTrustManager));
+
+    return tms;
+  }
+
   public static X509ExtendedTrustManager buildJavaTrustManager()
       throws KeyStoreException, CertificateException, NoSuchAlgorithmException, IOException, InvalidAlgorithmParameterException
   {
@@ -67,9 +109,12 @@ public class TrustManagerBuilder
         trustStorePath = securityPath + "cacerts";
     }
     String keyStorePassword = System.getProperty("javax.net.ssl.trustStorePassword", "changeit");
-    KeyStore jKSKeyStore = TrustManagerUtil.loadKeyStore(keyStorePassword, trustStorePath == null ? null : Paths.get(trustStorePath));
+    Path path = trustStorePath == null ? null : Paths.get(trustStorePath).toAbsolutePath();
 
-    return buildTrustManager(jKSKeyStore);
+    return TrustMaterialCache.get("file:" + path, path, keyStorePassword, () -> {
+      KeyStore jKSKeyStore = TrustManagerUtil.loadKeyStore(keyStorePassword, path);
+      return buildTrustManager(jKSKeyStore);
+    });
   }
 
   /**
@@ -81,32 +126,41 @@ public class TrustManagerBuilder
   public static X509ExtendedTrustManager buildOsTrustManager(String pOsName)
       throws NoSuchAlgorithmException, KeyStoreException, IOException, CertificateException, InvalidAlgorithmParameterException
   {
-    KeyManagerFactory osKeyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-
     if (pOsName.startsWith("Windows")) {
-      KeyStore osKeyStore = KeyStore.getInstance("Windows-ROOT");
-
-      osKeyStore.load(null, null);  //default truststore is used.
-      try {
-        osKeyManagerFactory.init(osKeyStore, null);
-      }
-      catch (UnrecoverableKeyException e) {
-        e.printStackTrace();
-        return null;
-      }
-
-      return buildTrustManager(osKeyStore);
+      return TrustMaterialCache.get("Windows-ROOT", null, null, () -> {
+        KeyManagerFactory osKeyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        KeyStore osKeyStore = KeyStore.getInstance("Windows-ROOT");
+
+        osKeyStore.load(null, null);  //default truststore is used.
+        try {
+          osKeyManagerFactory.init(osKeyStore, null);
+        }
+        catch (UnrecoverableKeyException e) {
+          e.printStackTrace();
+          return null;
+        }
+
+        return buildTrustManager(osKeyStore);
+      });
     }
     return null;
   }
 
+  /**
+   * The Java and OS TrustManagers are built once per process and keyStore file version. This method drops them, eg. after
+   * the content of the OS keyStore was changed. The next call builds new TrustManagers.
+   */
+  public static void invalidateCache()
+  {
+    TrustMaterialCache.invalidate();
+  }
+
   public static X509ExtendedTrustManager buildTrustManager(KeyStore pKeyStore)
       throws NoSuchAlgorithmException, InvalidAlgorithmParameterException, KeyStoreException
   {
     TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
 
-    Boolean revocationEnabled = Boolean.valueOf(System.getProperty("adito.trustmanager.revocation.enabled", "false"));
-    if (revocationEnabled) {
+    if (isRevocationEnabled()) {
       PKIXBuilderParameters tsPkixParams = _createRevocationChecker(pKeyStore);
       trustManagerFactory.init(new CertPathTrustManagerParameters(tsPkixParams));
     }
@@ -119,23 +173,48 @@ public class TrustManagerBuilder
     return (X509ExtendedTrustManager) tsTM[0];
   }
 
+  static boolean isRevocationEnabled()
+  {
+    return Boolean.valueOf(System.getProperty("adito.trustmanager.revocation.enabled", "false"));
+  }
+
+  static boolean isRevocationAsync()
+  {
+    return Boolean.getBoolean(REVOCATION_ASYNC_SYSTEM_PROPERTY);
+  }
+
+  static ERevocationMode getRevocationMode()
+  {
+    String mode = System.getProperty(REVOCATION_MODE_SYSTEM_PROPERTY, ERevocationMode.CRL.name());
+    return ERevocationMode.OCSP.name().equalsIgnoreCase(mode.trim()) ? ERevocationMode.OCSP : ERevocationMode.CRL;
+  }
+
+  private static List<X509ExtendedTrustManager> _createDefaultTrustManagers()
+      throws CertificateException, NoSuchAlgorithmException, KeyStoreException, IOException, InvalidAlgorithmParameterException
+  {
+    if (Boolean.getBoolean(LAZY_INITIALIZATION_SYSTEM_PROPERTY))
+      return createLazyDefaultTrustManagers();
+    return createDefaultTrustManagers();
+  }
+
   /**
-   * The KeyStore gets enabled to detect a revoked certificate.
+   * The KeyStore gets enabled to detect a revoked certificate. In CRL mode, the end-entity certificate is checked by a
+   * {@link CrlRevocationChecker} against the CRLs of {@link CrlCache#getDefault()}, which refreshes the CRLs of the checked
+   * certificates in the background. In OCSP mode, an {@link OcspRevocationChecker} uses the stapled or
+   * cached responses of {@link OcspCache#getDefault()}. Missing revocation information does not fail the handshake, see
+   * also {@link #REVOCATION_ASYNC_SYSTEM_PROPERTY}.
    */
   private static PKIXBuilderParameters _createRevocationChecker(KeyStore pKeyStore)
-      throws NoSuchAlgorithmException, KeyStoreException, InvalidAlgorithmParameterException
+      throws KeyStoreException, InvalidAlgorithmParameterException
   {
-    CertPathBuilder certPathBuilder = CertPathBuilder.getInstance("PKIX");
-    PKIXRevocationChecker revocationChecker = (PKIXRevocationChecker) certPathBuilder.getRevocationChecker();
-    revocationChecker.setOptions(EnumSet.of(
-        PKIXRevocationChecker.Option.PREFER_CRLS, // prefer CLR over OCSP
-        PKIXRevocationChecker.Option.ONLY_END_ENTITY,
-        PKIXRevocationChecker.Option.SOFT_FAIL, // handshake should not fail when CRL is not available
-        PKIXRevocationChecker.Option.NO_FALLBACK)); // don't fall back to OCSP checking
-
     PKIXBuilderParameters pkixParams = new PKIXBuilderParameters(pKeyStore, new X509CertSelector());
-    pkixParams.addCertPathChecker(revocationChecker);
+    pkixParams.setRevocationEnabled(false); // our checkers replace the one of the JDK
+    if (getRevocationMode() == ERevocationMode.OCSP) {
+      pkixParams.addCertPathChecker(new OcspRevocationChecker(OcspCache.getDefault(), pKeyStore, isRevocationAsync()));
+      return pkixParams;
+    }
 
+    pkixParams.addCertPathChecker(new CrlRevocationChecker(CrlCache.getDefault(), pKeyStore, isRevocationAsync()));
     return pkixParams;
   }
 }
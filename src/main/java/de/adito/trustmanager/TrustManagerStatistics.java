@@ -0,0 +1,80 @@
+package de.adito.trustmanager;
+
+import javax.net.ssl.X509ExtendedTrustManager;
+
+/**
+ * The validations of one default trustManager of a {@link CustomTrustManager}, see
+ * {@link CustomTrustManager#getStatistics()}. The values are read once, the object does not change afterwards.
+ */
+public final class TrustManagerStatistics
+{
+    private final X509ExtendedTrustManager trustManager;
+    private final long accepted;
+    private final long rejected;
+    private final long nanos;
+    private final int routedIssuers;
+
+    TrustManagerStatistics(X509ExtendedTrustManager pTrustManager, long pAccepted, long pRejected, long pNanos, int pRoutedIssuers)
+    {
+        trustManager = pTrustManager;
+        accepted = pAccepted;
+        rejected = pRejected;
+        nanos = pNanos;
+        routedIssuers = pRoutedIssuers;
+    }
+
+    public X509ExtendedTrustManager getTrustManager()
+    {
+        return trustManager;
+    }
+
+    /**
+     * @return number of chains this trustManager accepted
+     */
+    public long getAccepted()
+    {
+        return accepted;
+    }
+
+    /**
+     * @return number of chains this trustManager rejected
+     */
+    public long getRejected()
+    {
+        return rejected;
+    }
+
+    /**
+     * @return share of the validations that were accepted, 0 if the trustManager was never asked
+     */
+    public double getAcceptanceRate()
+    {
+        long total = accepted + rejected;
+        return total == 0 ? 0 : (double) accepted / total;
+    }
+
+    /**
+     * @return average duration of a validation in nanoseconds, 0 if the trustManager was never asked
+     */
+    public long getAverageNanos()
+    {
+        long total = accepted + rejected;
+        return total == 0 ? 0 : nanos / total;
+    }
+
+    /**
+     * @return number of issuers whose chains are validated by this trustManager first, see
+     * {@link CustomTrustManager#ADAPTIVE_ORDER_SYSTEM_PROPERTY}
+     */
+    public int getRoutedIssuers()
+    {
+        return routedIssuers;
+    }
+
+    @Override
+    public String toString()
+    {
+        return trustManager + ": " + accepted + " accepted, " + rejected + " rejected, " + getAverageNanos() + " ns average, " +
+                routedIssuers + " issuers routed";
+    }
+}
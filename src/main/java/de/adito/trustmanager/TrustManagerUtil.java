@@ -1,10 +1,16 @@
 package de.adito.trustmanager;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.MessageDigest;
@@ -12,6 +18,8 @@ import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * TrustManagerUtil helps handling keyStores and certificates, eg create a unique certificate alias to store it in a trustStore.
@@ -45,13 +53,118 @@ public class TrustManagerUtil
         }
     }
     
+    /**
+     * The keyStore is written with {@link #writeAtomically(Path, byte[])}, so a crash never leaves a partly written file.
+     */
     public static void saveKeyStore(KeyStore pKeyStore, String pPassword, Path pPath)
             throws IOException, CertificateException, NoSuchAlgorithmException, KeyStoreException
     {
-        try (OutputStream out = Files.newOutputStream(pPath))
+        writeAtomically(pPath, storeKeyStore(pKeyStore, pPassword));
+    }
+    
+    /**
+     * @return the serialized keyStore, as it would be written to a file
+     */
+    public static byte[] storeKeyStore(KeyStore pKeyStore, String pPassword)
+            throws IOException, CertificateException, NoSuchAlgorithmException, KeyStoreException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pKeyStore.store(out, pPassword.toCharArray());
+        return out.toByteArray();
+    }
+    
+    /**
+     * The content is written to a temporary file in the same directory, synced to the disk and renamed to pPath
+     * afterwards. Readers either see the old or the new content.
+     */
+    public static void writeAtomically(Path pPath, byte[] pContent) throws IOException
+    {
+        writeAtomically(pPath, ByteBuffer.wrap(pContent));
+    }
+    
+    /**
+     * Like {@link #writeAtomically(Path, byte[])}, the content is the remaining bytes of all buffers in order. Mapped
+     * buffers are written without copying them to the heap.
+     */
+    public static void writeAtomically(Path pPath, ByteBuffer... pContent) throws IOException
+    {
+        writeAtomically(pPath, pChannel -> {
+            for (ByteBuffer buffer : pContent)
+                while (buffer.hasRemaining())
+                    pChannel.write(buffer);
+        });
+    }
+    
+    /**
+     * Like {@link #writeAtomically(Path, byte[])}, the content is written by pWriter, eg. to copy parts of other files
+     * with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+     */
+    public static void writeAtomically(Path pPath, IChannelWriter pWriter) throws IOException
+    {
+        Path directory = pPath.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, pPath.getFileName().toString(), ".tmp");
+        try
+        {
+            _copyPermissions(pPath, temp);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE))
+            {
+                pWriter.write(channel);
+                channel.force(true);
+            }
+            try
+            {
+                Files.move(temp, pPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(temp, pPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally
         {
-            pKeyStore.store(out, pPassword.toCharArray());
+            Files.deleteIfExists(temp);
         }
+        syncDirectory(directory);
+    }
+    
+    /**
+     * A temporary file is only readable by its owner, the replaced file keeps the permissions it had before.
+     */
+    private static void _copyPermissions(Path pSource, Path pTarget) throws IOException
+    {
+        try
+        {
+            Files.setPosixFilePermissions(pTarget, Files.getPosixFilePermissions(pSource));
+        } catch (NoSuchFileException | UnsupportedOperationException e)
+        {
+            //a new file or a platform without POSIX permissions, eg. Windows, where the file inherits the ACL of the directory
+        }
+    }
+    
+    /**
+     * Makes a rename or delete in the directory durable. Not every platform can open a directory, eg. Windows, the
+     * change is durable there anyway.
+     */
+    public static void syncDirectory(Path pDirectory)
+    {
+        try (FileChannel channel = FileChannel.open(pDirectory, StandardOpenOption.READ))
+        {
+            channel.force(true);
+        } catch (IOException e)
+        {
+            // not supported by this platform
+        }
+    }
+    
+    /**
+     * Background threads of the trustManager must never keep the application alive.
+     */
+    public static ThreadFactory newDaemonThreadFactory(String pName)
+    {
+        AtomicInteger count = new AtomicInteger();
+        return pRunnable -> {
+            Thread thread = new Thread(pRunnable, pName + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
     }
     
     public static String parseDN(String dn, String field)
@@ -91,6 +204,9 @@ public class TrustManagerUtil
         }
     }
     
+    /**
+     * Creates a new digest and hex String on every call, trustStore lookups use {@link CertificateFingerprint} instead.
+     */
     public static String hashSHA1(X509Certificate pCert)
     {
         try
@@ -112,4 +228,12 @@ public class TrustManagerUtil
             throw new IllegalStateException(e);
         }
     }
+    
+    /**
+     * Writes the content of a file, see {@link #writeAtomically(Path, IChannelWriter)}.
+     */
+    public interface IChannelWriter
+    {
+        void write(FileChannel pChannel) throws IOException;
+    }
 }
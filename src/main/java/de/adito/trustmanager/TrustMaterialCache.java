@@ -0,0 +1,180 @@
+package de.adito.trustmanager;
+
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the default trustManagers of the process, so building several sslContexts loads every keyStore and
+ * initializes every TrustManagerFactory only once. A trustManager is identified by the source of its keyStore, the
+ * modification time and size of the keyStore file and the revocation settings. A changed file or setting builds a new
+ * trustManager, the outdated one is dropped. Dropping trustManagers increases the generation, so verdicts of the
+ * outdated trust material are not used anymore.
+ */
+final class TrustMaterialCache
+{
+    private static final ConcurrentHashMap<Key, CompletableFuture<X509ExtendedTrustManager>> TRUST_MANAGERS = new ConcurrentHashMap<>();
+    private static final AtomicLong GENERATION = new AtomicLong();
+
+    private TrustMaterialCache()
+    {
+    }
+
+    /**
+     * @param pSource   identifies the keyStore, eg. its path or type
+     * @param pFile     the keyStore file, its modification time and size are part of the key, may be null
+     * @param pPassword part of the key, because the same file can't be read with a different password
+     * @param pBuilder  builds the trustManager, if it is not cached yet. Concurrent callers wait for the same build.
+     */
+    static X509ExtendedTrustManager get(String pSource, Path pFile, String pPassword, ITrustManagerBuilder pBuilder)
+            throws CertificateException, NoSuchAlgorithmException, KeyStoreException, IOException, InvalidAlgorithmParameterException
+    {
+        Key key = new Key(pSource, pFile, pPassword);
+        CompletableFuture<X509ExtendedTrustManager> trustManager = TRUST_MANAGERS.get(key);
+        if (trustManager == null)
+        {
+            CompletableFuture<X509ExtendedTrustManager> newTrustManager = new CompletableFuture<>();
+            trustManager = TRUST_MANAGERS.putIfAbsent(key, newTrustManager);
+            if (trustManager == null)
+            {
+                trustManager = newTrustManager;
+                if (TRUST_MANAGERS.keySet().removeIf(pKey -> pKey.isOutdatedBy(key)))
+                    GENERATION.incrementAndGet();
+                try
+                {
+                    newTrustManager.complete(pBuilder.build());
+                } catch (Exception e)
+                {
+                    //a failed build is not cached, the next call tries again
+                    TRUST_MANAGERS.remove(key, newTrustManager);
+                    newTrustManager.completeExceptionally(e);
+                }
+            }
+        }
+
+        try
+        {
+            return trustManager.get();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new KeyStoreException("interrupted while waiting for the trustManager", e);
+        } catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof CertificateException)
+                throw (CertificateException) cause;
+            if (cause instanceof NoSuchAlgorithmException)
+                throw (NoSuchAlgorithmException) cause;
+            if (cause instanceof KeyStoreException)
+                throw (KeyStoreException) cause;
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof InvalidAlgorithmParameterException)
+                throw (InvalidAlgorithmParameterException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new KeyStoreException(cause);
+        }
+    }
+
+    static void invalidate()
+    {
+        TRUST_MANAGERS.clear();
+        GENERATION.incrementAndGet();
+    }
+
+    /**
+     * @return a number that changes whenever trustManagers were dropped, because their trust material is outdated
+     */
+    static long getGeneration()
+    {
+        return GENERATION.get();
+    }
+
+    static int size()
+    {
+        return TRUST_MANAGERS.size();
+    }
+
+    /**
+     * Builds a trustManager, the exceptions are the ones of {@link TrustManagerBuilder}.
+     */
+    interface ITrustManagerBuilder
+    {
+        X509ExtendedTrustManager build()
+                throws CertificateException, NoSuchAlgorithmException, KeyStoreException, IOException, InvalidAlgorithmParameterException;
+    }
+
+    private static final class Key
+    {
+        private final String source;
+        private final String password;
+        private final String revocation;
+        private final long lastModified;
+        private final long size;
+
+        Key(String pSource, Path pFile, String pPassword) throws IOException
+        {
+            source = pSource;
+            password = pPassword;
+            revocation = TrustManagerBuilder.isRevocationEnabled() ?
+                    TrustManagerBuilder.getRevocationMode().name() + (TrustManagerBuilder.isRevocationAsync() ? "/async" : "") : null;
+            long modified = -1;
+            long length = -1;
+            if (pFile != null)
+            {
+                try
+                {
+                    BasicFileAttributes attributes = Files.readAttributes(pFile, BasicFileAttributes.class);
+                    modified = attributes.lastModifiedTime().toMillis();
+                    length = attributes.size();
+                } catch (NoSuchFileException e)
+                {
+                    //an empty keyStore is used for a missing file
+                }
+            }
+            lastModified = modified;
+            size = length;
+        }
+
+        /**
+         * @return true, if pOther describes another version of the same keyStore
+         */
+        boolean isOutdatedBy(Key pOther)
+        {
+            return !equals(pOther) && Objects.equals(source, pOther.source) && Objects.equals(password, pOther.password) &&
+                    Objects.equals(revocation, pOther.revocation);
+        }
+
+        @Override
+        public boolean equals(Object pObj)
+        {
+            if (this == pObj)
+                return true;
+            if (!(pObj instanceof Key))
+                return false;
+            Key other = (Key) pObj;
+            return lastModified == other.lastModified && size == other.size && Objects.equals(revocation, other.revocation) &&
+                    Objects.equals(source, other.source) && Objects.equals(password, other.password);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(source, password, revocation, lastModified, size);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package de.adito.trustmanager;
+
+import de.adito.trustmanager.revocation.AbstractRevocationChecker;
+
+import java.security.cert.X509Certificate;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * A bounded cache for chains that were already accepted by one of the default trustManagers. The key consists of the
+ * fingerprint of the whole chain, the authType and the peer host.
+ * A verdict is valid until the time to live has passed or one certificate of the chain expires, whatever comes first.
+ * Only positive verdicts are cached, a rejected chain will always be validated again.
+ * A verdict is also dropped as soon as the revocation status version changes, so a revocation that was loaded in the
+ * background is noticed by the next handshake, see {@link AbstractRevocationChecker#getStatusVersion()}. The same
+ * applies to new trust material, eg. a changed cacerts file, see {@link TrustMaterialCache#getGeneration()}.
+ */
+class TrustVerdictCache
+{
+    private final int maxSize;
+    private final long timeToLive;
+    private final LongSupplier statusVersion;
+    private final ConcurrentHashMap<Key, Verdict> verdicts;
+
+    TrustVerdictCache(int pMaxSize, long pTimeToLive)
+    {
+        //both versions only grow, so their sum changes whenever one of them changes
+        this(pMaxSize, pTimeToLive, () -> AbstractRevocationChecker.getStatusVersion() + TrustMaterialCache.getGeneration());
+    }
+
+    /**
+     * @param pStatusVersion the current version of the revocation status
+     */
+    TrustVerdictCache(int pMaxSize, long pTimeToLive, LongSupplier pStatusVersion)
+    {
+        maxSize = pMaxSize;
+        timeToLive = pTimeToLive;
+        statusVersion = pStatusVersion;
+        verdicts = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @return true, if the chain was accepted before and the verdict did not expire yet
+     */
+    boolean isTrusted(X509Certificate[] pChain, String pAuthType, String pHost)
+    {
+        if (maxSize <= 0 || pChain == null || pChain.length == 0)
+            return false;
+        Key key = new Key(pChain, pAuthType, pHost);
+        Verdict verdict = verdicts.get(key);
+        if (verdict == null)
+            return false;
+        if (verdict.validUntil < System.currentTimeMillis() || verdict.statusVersion != statusVersion.getAsLong())
+        {
+            verdicts.remove(key, verdict);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the version of the revocation status, has to be read before the chain is validated
+     */
+    long getStatusVersion()
+    {
+        return statusVersion.getAsLong();
+    }
+
+    void putTrusted(X509Certificate[] pChain, String pAuthType, String pHost)
+    {
+        putTrusted(pChain, pAuthType, pHost, getStatusVersion());
+    }
+
+    /**
+     * @param pStatusVersion the version of the revocation status the chain was validated with, the verdict is not cached
+     *                       if the status changed during the validation
+     */
+    void putTrusted(X509Certificate[] pChain, String pAuthType, String pHost, long pStatusVersion)
+    {
+        if (maxSize <= 0 || pChain == null || pChain.length == 0 || pStatusVersion != getStatusVersion())
+            return;
+        long now = System.currentTimeMillis();
+        long validUntil = now + timeToLive;
+        for (X509Certificate certificate : pChain)
+            validUntil = Math.min(validUntil, CertificateFacts.getNotAfter(certificate));
+        if (validUntil <= now)
+            return;
+
+        if (verdicts.size() >= maxSize)
+            _evict(now);
+        verdicts.put(new Key(pChain, pAuthType, pHost), new Verdict(validUntil, pStatusVersion));
+    }
+
+    void invalidate()
+    {
+        verdicts.clear();
+    }
+
+    int size()
+    {
+        return verdicts.size();
+    }
+
+    /**
+     * Removes the expired verdicts first. If the cache is still more than three quarters full, arbitrary verdicts will be
+     * dropped, they will just be validated again by the next handshake. Making room for a quarter of the verdicts at
+     * once means the cache is only walked every maxSize / 4 new verdicts, not by every handshake.
+     */
+    private void _evict(long pNow)
+    {
+        long version = getStatusVersion();
+        verdicts.values().removeIf(pVerdict -> pVerdict.validUntil < pNow || pVerdict.statusVersion != version);
+        int targetSize = Math.min(maxSize - 1, maxSize * 3 / 4);
+        Iterator<Key> iterator = verdicts.keySet().iterator();
+        while (verdicts.size() > targetSize && iterator.hasNext())
+        {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private static final class Verdict
+    {
+        private final long validUntil;
+        private final long statusVersion;
+
+        Verdict(long pValidUntil, long pStatusVersion)
+        {
+            validUntil = pValidUntil;
+            statusVersion = pStatusVersion;
+        }
+    }
+
+    private static final class Key
+    {
+        private final CertificateFingerprint chainFingerprint;
+        private final String authType;
+        private final String host;
+        private final int hash;
+
+        Key(X509Certificate[] pChain, String pAuthType, String pHost)
+        {
+            chainFingerprint = CertificateFingerprint.ofChain(pChain);
+            authType = pAuthType;
+            host = pHost;
+            hash = 31 * (31 * chainFingerprint.hashCode() + Objects.hashCode(authType)) + Objects.hashCode(host);
+        }
+
+        @Override
+        public boolean equals(Object pObj)
+        {
+            if (this == pObj)
+                return true;
+            if (!(pObj instanceof Key))
+                return false;
+            Key other = (Key) pObj;
+            return hash == other.hash && chainFingerprint.equals(other.chainFingerprint) &&
+                    Objects.equals(authType, other.authType) && Objects.equals(host, other.host);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package de.adito.trustmanager.confirmingui;
+
+import de.adito.trustmanager.*;
+
+import javax.swing.*;
+import java.security.cert.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This class asks the user with a {@link CertificateExceptionDialog} how to handle a certificate. The dialog is shown
+ * on the event dispatch thread without blocking the handshake thread, and it will be closed if the decision is cancelled.
+ * <p>
+ * A handshake on the event dispatch thread is blocked by the modal dialog, so {@link DecidingTrustManager} can't apply
+ * its deadline there. The dialog closes itself after the timeout instead and the decision is cancelled, which lets
+ * the handshake use the default decision.
+ */
+public class CertificateDialogDecisionProvider implements ITrustDecisionProvider
+{
+    private final long timeout;
+
+    /**
+     * The timeout is read from {@link DecidingTrustManager#DECISION_TIMEOUT_SYSTEM_PROPERTY}, like the deadline of the
+     * handshakes.
+     */
+    public CertificateDialogDecisionProvider()
+    {
+        this(Long.getLong(DecidingTrustManager.DECISION_TIMEOUT_SYSTEM_PROPERTY, 0));
+    }
+
+    /**
+     * @param pTimeout milliseconds after which a dialog that blocks the event dispatch thread is closed, 0 keeps it
+     *                 open until the user decides
+     */
+    public CertificateDialogDecisionProvider(long pTimeout)
+    {
+        timeout = pTimeout;
+    }
+
+    @Override
+    public CompletableFuture<ETrustDecision> decide(X509Certificate[] pChain, CertificateException pException, String pSimpleInfo)
+    {
+        CompletableFuture<ETrustDecision> decision = new CompletableFuture<>();
+        String detailMessage;
+        try
+        {
+            detailMessage = CertificateExceptionDetail.createExceptionDetail(pChain, pException, pSimpleInfo).makeExceptionMessage(pSimpleInfo);
+        } catch (CertificateException e)
+        {
+            decision.completeExceptionally(e);
+            return decision;
+        }
+
+        if (SwingUtilities.isEventDispatchThread())
+        {
+            Timer deadline = null;
+            if (timeout > 0)
+            {
+                //the timer fires within the modal event loop of the dialog
+                deadline = new Timer((int) Math.min(timeout, Integer.MAX_VALUE), pEvent -> decision.cancel(false));
+                deadline.setRepeats(false);
+                deadline.start();
+            }
+            try
+            {
+                _showDialog(detailMessage, decision);
+            } finally
+            {
+                if (deadline != null)
+                    deadline.stop();
+            }
+        } else
+            SwingUtilities.invokeLater(() -> _showDialog(detailMessage, decision));
+        return decision;
+    }
+
+    private static void _showDialog(String pDetailMessage, CompletableFuture<ETrustDecision> pDecision)
+    {
+        if (pDecision.isDone())
+            return;
+        try
+        {
+            CertificateExceptionDialog dialog = new CertificateExceptionDialog(pDetailMessage);
+            pDecision.whenComplete((pResult, pThrowable) -> SwingUtilities.invokeLater(dialog::dispose));
+            dialog.setVisible(true);
+            switch (dialog.getButtonChoice())
+            {
+                case 0:       //trust once
+                    pDecision.complete(ETrustDecision.TRUST_ONCE);
+                    break;
+                case 1:       //add certificate permanently
+                    pDecision.complete(ETrustDecision.PERSIST);
+                    break;
+                default:      //cancel
+                    pDecision.complete(ETrustDecision.REJECT);
+                    break;
+            }
+        } catch (RuntimeException e)
+        {
+            pDecision.completeExceptionally(e);
+        }
+    }
+}
@@ -1,35 +1,33 @@
 package de.adito.trustmanager.confirmingui;
 
-import org.ietf.jgss.GSSException;
-import org.ietf.jgss.Oid;
+import de.adito.trustmanager.CertificateFacts;
+import de.adito.trustmanager.internal.WeakIdentityCache;
 
-import java.lang.reflect.Method;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
-import java.security.SignatureException;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateParsingException;
 import java.security.cert.X509Certificate;
-import java.text.DateFormat;
 import java.util.*;
 
 /**
  * This class determines the type of a thrown CertificateException and creates a unique message for the extended JDialog
  * If pSimpleInfo is null, it will be replaced with eg. "unknown server" (depending on the resource bundle)
+ * The detail of an exception is remembered, so the trustManager and the dialog don't classify the same exception twice.
  */
 
 public class CertificateExceptionDetail
 {
+    private static final WeakIdentityCache<CertificateException, CertificateExceptionDetail> DETAILS = new WeakIdentityCache<>();
+    
     private ArrayList<EType> types;
     private X509Certificate[] chain;
     private String errorCode;
+    private String simpleInfo;
     
-    private CertificateExceptionDetail(ArrayList<EType> pType, X509Certificate[] pChain, String pErrorCode)
+    private CertificateExceptionDetail(ArrayList<EType> pType, X509Certificate[] pChain, String pErrorCode, String pSimpleInfo)
     {
         this.types = pType;
         this.chain = pChain;
         this.errorCode = pErrorCode;
+        this.simpleInfo = pSimpleInfo;
     }
     
     /**
@@ -40,9 +38,21 @@ public class CertificateExceptionDetail
      */
     public static CertificateExceptionDetail createExceptionDetail(X509Certificate[] pChain, CertificateException pCertificateException, String pSimpleInfo)
             throws CertificateException
+    {
+        CertificateExceptionDetail detail = DETAILS.get(pCertificateException);
+        if (detail != null && detail.chain == pChain && Objects.equals(detail.simpleInfo, pSimpleInfo))
+            return detail;
+        detail = _createExceptionDetail(pChain, pCertificateException, pSimpleInfo);
+        DETAILS.put(pCertificateException, detail);
+        return detail;
+    }
+    
+    private static CertificateExceptionDetail _createExceptionDetail(X509Certificate[] pChain, CertificateException pCertificateException,
+                                                                     String pSimpleInfo) throws CertificateException
     {
         String errorCode = "";
         ArrayList<EType> typeArray = new ArrayList<>();
+        long now = System.currentTimeMillis();
         
         if (_checkIsSelfSigned(pChain[0]))
         {
@@ -60,13 +70,13 @@ public class CertificateExceptionDetail
             typeArray.add(EType.WRONG_HOST);
             errorCode = "SSL_ERROR_BAD_CERT_DOMAIN";
             
-        } else if (pChain[0].getNotAfter().compareTo(new Date()) > 0)
+        } else if (CertificateFacts.getNotAfter(pChain[0]) > now)
         {
             typeArray.add(EType.UNKNOWN);
             errorCode = "UNKNOWN_CERT_ERROR";
         }
         
-        if (pChain[0].getNotAfter().compareTo(new Date()) < 0)
+        if (CertificateFacts.getNotAfter(pChain[0]) < now)
         {
             if (typeArray.isEmpty())
             {
@@ -75,153 +85,85 @@ public class CertificateExceptionDetail
             typeArray.add(EType.EXPIRED);
         }
         
-        return new CertificateExceptionDetail(typeArray, pChain, errorCode);
+        return new CertificateExceptionDetail(typeArray, pChain, errorCode, pSimpleInfo);
     }
     
+    /**
+     * The texts of the default locale are prepared once, see {@link MessageTemplates}.
+     */
     public String makeExceptionMessage(String pSimpleInfo)
     {
-        ResourceBundle bundle = ResourceBundle.getBundle("de.adito.trustmanager.dialogMessage", Locale.getDefault());
-        if (pSimpleInfo == null)
-            pSimpleInfo = bundle.getString("simpleInfoNull");
-        
-        String message = bundle.getString("firstMsg") + "\n\n";
+        MessageTemplates templates = MessageTemplates.get(Locale.getDefault());
+        StringBuilder message = new StringBuilder(512).append(templates.header);
         for (EType type : types)
         {
             switch (type)
             {
                 case EXPIRED:
-                    //new Date() returns current time
-                    message += String.format(bundle.getString("expired1") + "%1$s " +
-                                    bundle.getString("expired2") + "%2$s.\n",
-                            _formatDate(chain[0].getNotAfter()), _formatDate(new Date()));
+                    message.append(templates.expiredStart);
+                    templates.appendDate(message, CertificateFacts.getNotAfter(chain[0]));
+                    message.append(templates.expiredMiddle);
+                    templates.appendDate(message, System.currentTimeMillis());
+                    message.append(templates.expiredEnd);
                     break;
                 
                 case WRONG_HOST:
-                    message += bundle.getString("wrongHost") + "\n" + _getSubjectAlternativeNames() + "\n";
+                    message.append(templates.wrongHost);
+                    _appendSubjectAlternativeNames(message);
+                    message.append('\n');
                     break;
                 
                 case SELF_SIGNED:
-                    message += bundle.getString("selfSigned") + "\n";
+                    message.append(templates.selfSigned);
                     break;
                 
                 case UNTRUSTED_ROOT:
-                    message += bundle.getString("untrustedRoot") + "\n";
+                    message.append(templates.untrustedRoot);
                     break;
                 
                 default: //UNKNOWN
-                    message += bundle.getString("unknown") + "\n";
+                    message.append(templates.unknown);
                     break;
             }
         }
-        message += "\n" + bundle.getString("errorCode") + "\t" + errorCode + "\n" +
-                bundle.getString("server") + "\t" + pSimpleInfo + "\n\n" +
-                bundle.getString("endWarningMsg") + "\n";
-        return message;
+        return message.append(templates.errorCode).append(errorCode)
+                .append(templates.server).append(pSimpleInfo == null ? templates.simpleInfoNull : pSimpleInfo)
+                .append(templates.footer).toString();
     }
     
     /**
-     * This method tries to verify its certificate signature with its own public key.
+     * The result is remembered per certificate, see {@link CertificateFacts#isSelfSigned}.
      */
     private static boolean _checkIsSelfSigned(X509Certificate pCert)
             throws CertificateException
     {
-        try
-        {
-            pCert.verify(pCert.getPublicKey());
-            return true;
-            
-        } catch (SignatureException | InvalidKeyException exc)
-        {
-            // Invalid signature or key -> not self-signed
-            return false;
-            
-        } catch (NoSuchProviderException | NoSuchAlgorithmException exc)
-        {
-            //not able to tell if cert is sef-signed; exception might be displayed as unknown
-            return true;
-        }
-    }
-    
-    private static boolean _checkHostname(String pHostname, X509Certificate[] pChain)
-    {
-        try {
-            Class<?> checker = Class.forName("sun.security.util.HostnameChecker");
-            Method getInstance = checker.getMethod("getInstance", byte.class);
-            Object instance = getInstance.invoke(null, (byte) 1);
-            Method match = checker.getMethod("match", String.class, X509Certificate.class);
-            match.invoke(instance, pHostname, pChain[0]);
-            return true;
-        } catch ( ClassNotFoundException cnfe )
-        {
-            return true;
-        } catch (Exception exc)
-        {
-            return false;
-        }
+        return CertificateFacts.isSelfSigned(pCert);
     }
     
     /**
-     * The Date will be formatted correctly for different countries, depending on the default locale
+     * The names of the certificate are indexed once, see {@link CertificateFacts#getHostnameMatcher}.
      */
-    private String _formatDate(Date pDate)
+    private static boolean _checkHostname(String pHostname, X509Certificate[] pChain)
     {
-        DateFormat dateFormat = DateFormat.getDateInstance(DateFormat.FULL, Locale.getDefault());
-        DateFormat timeFormat = DateFormat.getTimeInstance(DateFormat.DEFAULT, Locale.getDefault());
-        
-        return dateFormat.format(pDate) + ", " + timeFormat.format(pDate);
+        return CertificateFacts.getHostnameMatcher(pChain[0]).matches(pHostname);
     }
     
     /**
      * This method displays a certificate's alternative DNS-Names and IP-Addresses
      */
-    private String _getSubjectAlternativeNames()
+    private void _appendSubjectAlternativeNames(StringBuilder pMessage)
     {
-        Collection altNames;
-        try
+        String separator = "";
+        for (String name : CertificateFacts.getHostnameMatcher(chain[0]).getNames())
         {
-            altNames = chain[0].getSubjectAlternativeNames();
-        } catch (CertificateParsingException e)
-        {
-            return "";
-        }
-        
-        if (altNames == null)
-            return "";
-        
-        Iterator itAltNames = altNames.iterator();
-        StringBuilder names = new StringBuilder();
-        while (itAltNames.hasNext())
-        {
-            List extensionEntry = (List) itAltNames.next();
-            //nameType:  2 is DNS, 7 is IP
-            Integer nameType = (Integer) extensionEntry.get(0);
-            //if nameType is 2, extensionEntry is DNS and returned as String
-            if (nameType == 2)
-                names.append((String) extensionEntry.get(1));
-            
-            //if nameType is 7, extensionEntry is IP and returned as byteArray
-            if (nameType == 7)
-            {
-                //handle byteArray with ASN.1 decoder
-                try
-                {
-                    Oid oid = new Oid((byte[]) extensionEntry.get(1));
-                    names.append(oid.toString());
-                } catch (GSSException e)
-                {
-                    //Do nothing. Go on to next SubAltName
-                }
-            }
-            
-            if (itAltNames.hasNext())
-                names.append(", ");
+            pMessage.append(separator).append(name);
+            separator = ", ";
         }
-        return names.toString();
     }
     
     public List<EType> getTypes()
     {
-        return types;
+        return Collections.unmodifiableList(types);
     }
     
     public enum EType
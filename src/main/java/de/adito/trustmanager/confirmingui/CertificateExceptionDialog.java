@@ -31,7 +31,7 @@ class CertificateExceptionDialog extends JDialog
         this.buttonChoice = -1;
         this.isExtended = false;
         this.detailMsg = pDetailMessage;
-        bundle = ResourceBundle.getBundle("de.adito.trustmanager.dialogMessage", Locale.getDefault());
+        bundle = MessageTemplates.get(Locale.getDefault()).getBundle();
 
         _createFirstDialog();
     }
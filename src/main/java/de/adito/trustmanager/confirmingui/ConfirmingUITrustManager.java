@@ -5,58 +5,43 @@ import de.adito.trustmanager.store.ICustomTrustStore;
 
 import javax.net.ssl.X509ExtendedTrustManager;
 import javax.swing.*;
-import java.lang.reflect.InvocationTargetException;
-import java.security.cert.*;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * This class creates a SSLContext and implements checkCertificateAndShouldPersist used in {@link CustomTrustManager}
+ * This class creates a SSLContext and lets the user decide with a JDialog about certificates that were not accepted by
+ * the default trustManagers, see {@link CertificateDialogDecisionProvider}.
+ * Concurrent handshakes with the same certificate share one JDialog and all of them get the user's decision.
  */
-public class ConfirmingUITrustManager extends CustomTrustManager
+public class ConfirmingUITrustManager extends DecidingTrustManager
 {
 
     public ConfirmingUITrustManager(ICustomTrustStore pTrustStore, Iterable<X509ExtendedTrustManager> pTrustManagers)
     {
-        super(pTrustStore, pTrustManagers);
+        this(pTrustStore, pTrustManagers, new CertificateDialogDecisionProvider());
     }
 
     /**
-     * This method handles the JDialog and its return value. It will throw a CertificateException if r != 0 || r != 1.
-     * Otherwise the program returns to {@link CustomTrustManager}.
+     * @param pDecisionProvider shows the dialog instead of the {@link CertificateDialogDecisionProvider}
      */
-    protected boolean checkCertificateAndShouldPersist(X509Certificate[] pChain, CertificateException pCertExc, String pSimpleInfo)
-            throws CertificateException
+    protected ConfirmingUITrustManager(ICustomTrustStore pTrustStore, Iterable<X509ExtendedTrustManager> pTrustManagers,
+                                       ITrustDecisionProvider pDecisionProvider)
     {
-        CertificateExceptionDetail certExcDetail = CertificateExceptionDetail.createExceptionDetail(pChain, pCertExc, pSimpleInfo);
-        String detailMessage = certExcDetail.makeExceptionMessage(pSimpleInfo);
+        super(pTrustStore, pTrustManagers, pDecisionProvider);
+    }
 
-        AtomicInteger result = new AtomicInteger(-1);
-        if (SwingUtilities.isEventDispatchThread())
-            result.set(_createDialog(detailMessage));
-        else {
-            try {
-                SwingUtilities.invokeAndWait(() -> result.set(_createDialog(detailMessage)));
-            }
-            catch (InterruptedException | InvocationTargetException pE) {
-                pE.printStackTrace();
-            }
-        }
-        switch (result.get())
-        {    // Will decide to trust or not trust the certificate
-            case 0:       //trust once
-                return false;
-            case 1:       //add certificate permanently
-                return true;
-            default:
-                throw pCertExc;  //cancel
-        }
+    /**
+     * @return the number of JDialogs that were shown
+     */
+    public long getDialogCount()
+    {
+        return getDecisionCount();
     }
 
-    private int _createDialog(String pDetailMessage)
+    /**
+     * Waiting on the event dispatch thread for another dialog would block that dialog forever.
+     */
+    @Override
+    protected boolean isCoalescingAllowed()
     {
-        CertificateExceptionDialog certExceptionDialog = new CertificateExceptionDialog(pDetailMessage);
-        certExceptionDialog.setVisible(true);
-        
-        return certExceptionDialog.getButtonChoice();
+        return !SwingUtilities.isEventDispatchThread();
     }
 }
@@ -0,0 +1,80 @@
+package de.adito.trustmanager.confirmingui;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.FormatStyle;
+import java.util.Locale;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The texts of the dialogMessage bundle for one locale, read once and joined with their line breaks, so a message is
+ * rendered by appending to a single builder. The date formatters are immutable and shared by all threads.
+ */
+final class MessageTemplates
+{
+    private static final String BUNDLE = "de.adito.trustmanager.dialogMessage";
+    private static final ConcurrentHashMap<Locale, MessageTemplates> TEMPLATES = new ConcurrentHashMap<>();
+
+    private final ResourceBundle bundle;
+    private final DateTimeFormatter dateFormatter;
+    private final DateTimeFormatter timeFormatter;
+    final String header;
+    final String expiredStart;
+    final String expiredMiddle;
+    final String expiredEnd;
+    final String wrongHost;
+    final String selfSigned;
+    final String untrustedRoot;
+    final String unknown;
+    final String errorCode;
+    final String server;
+    final String footer;
+    final String simpleInfoNull;
+
+    private MessageTemplates(Locale pLocale)
+    {
+        bundle = ResourceBundle.getBundle(BUNDLE, pLocale);
+        //the same styles as DateFormat.FULL for the date and DateFormat.DEFAULT for the time
+        dateFormatter = DateTimeFormatter.ofLocalizedDate(FormatStyle.FULL).withLocale(pLocale);
+        timeFormatter = DateTimeFormatter.ofLocalizedTime(FormatStyle.MEDIUM).withLocale(pLocale);
+        header = bundle.getString("firstMsg") + "\n\n";
+        expiredStart = bundle.getString("expired1");
+        expiredMiddle = " " + bundle.getString("expired2");
+        expiredEnd = ".\n";
+        wrongHost = bundle.getString("wrongHost") + "\n";
+        selfSigned = bundle.getString("selfSigned") + "\n";
+        untrustedRoot = bundle.getString("untrustedRoot") + "\n";
+        unknown = bundle.getString("unknown") + "\n";
+        errorCode = "\n" + bundle.getString("errorCode") + "\t";
+        server = "\n" + bundle.getString("server") + "\t";
+        footer = "\n\n" + bundle.getString("endWarningMsg") + "\n";
+        simpleInfoNull = bundle.getString("simpleInfoNull");
+    }
+
+    static MessageTemplates get(Locale pLocale)
+    {
+        return TEMPLATES.computeIfAbsent(pLocale, MessageTemplates::new);
+    }
+
+    /**
+     * @return the bundle, eg. for the texts of the dialog
+     */
+    ResourceBundle getBundle()
+    {
+        return bundle;
+    }
+
+    /**
+     * Appends the date and time in the default time zone, eg. "Monday, 1 January 2024, 12:00:00".
+     */
+    void appendDate(StringBuilder pBuilder, long pTime)
+    {
+        ZonedDateTime time = Instant.ofEpochMilli(pTime).atZone(ZoneId.systemDefault());
+        dateFormatter.formatTo(time, pBuilder);
+        pBuilder.append(", ");
+        timeFormatter.formatTo(time, pBuilder);
+    }
+}
@@ -0,0 +1,81 @@
+package de.adito.trustmanager.internal;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * A concurrent cache that compares its keys by identity and holds them weakly. An entry disappears after its key was
+ * garbage collected, so values must not reference their key.
+ * <p>
+ * Internal helper of the trustmanager packages, not part of the API. The package is not exported by the bundle and may
+ * change without notice.
+ */
+public final class WeakIdentityCache<K, V>
+{
+    private final ConcurrentHashMap<IdentityReference<K>, V> values = new ConcurrentHashMap<>();
+    private final ReferenceQueue<K> queue = new ReferenceQueue<>();
+
+    public V get(K pKey)
+    {
+        _expunge();
+        return values.get(new IdentityReference<>(pKey, null));
+    }
+
+    public V computeIfAbsent(K pKey, Function<? super K, ? extends V> pFunction)
+    {
+        _expunge();
+        V value = values.get(new IdentityReference<>(pKey, null));
+        if (value != null)
+            return value;
+        return values.computeIfAbsent(new IdentityReference<>(pKey, queue), pReference -> pFunction.apply(pKey));
+    }
+
+    public void put(K pKey, V pValue)
+    {
+        _expunge();
+        values.put(new IdentityReference<>(pKey, queue), pValue);
+    }
+
+    public int size()
+    {
+        _expunge();
+        return values.size();
+    }
+
+    private void _expunge()
+    {
+        Object reference;
+        while ((reference = queue.poll()) != null)
+            values.remove(reference);
+    }
+
+    private static final class IdentityReference<K> extends WeakReference<K>
+    {
+        private final int hash;
+
+        IdentityReference(K pReferent, ReferenceQueue<K> pQueue)
+        {
+            super(pReferent, pQueue);
+            hash = System.identityHashCode(pReferent);
+        }
+
+        @Override
+        public boolean equals(Object pObj)
+        {
+            if (this == pObj)
+                return true;
+            if (!(pObj instanceof IdentityReference))
+                return false;
+            Object referent = get();
+            return referent != null && referent == ((IdentityReference<?>) pObj).get();
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package de.adito.trustmanager.revocation;
+
+import javax.security.auth.x500.X500Principal;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.PublicKey;
+import java.security.cert.CRLReason;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateRevokedException;
+import java.security.cert.PKIXCertPathChecker;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Base of the revocation checkers that replace the one of the JDK, revocation checking of the JDK has to be disabled,
+ * see {@link java.security.cert.PKIXParameters#setRevocationEnabled(boolean)}. Only the end-entity certificate of a
+ * path is checked, like {@link java.security.cert.PKIXRevocationChecker.Option#ONLY_END_ENTITY}. Its revocation
+ * information is verified with the key of its issuer, which is the certificate checked before or a trust anchor.
+ * <p>
+ * A revoked certificate fails with a {@link CertificateRevokedException} as cause, like the revocation checker of the
+ * JDK, so {@link de.adito.trustmanager.CustomTrustManager} never asks the user about it.
+ */
+public abstract class AbstractRevocationChecker extends PKIXCertPathChecker
+{
+    private static final AtomicLong STATUS_VERSION = new AtomicLong();
+
+    private final Map<X500Principal, List<PublicKey>> anchorKeys;
+    private X509Certificate previous;
+
+    /**
+     * @param pTrustAnchors certificates issued by these anchors are verified with their keys
+     */
+    protected AbstractRevocationChecker(KeyStore pTrustAnchors) throws KeyStoreException
+    {
+        anchorKeys = new HashMap<>();
+        for (Enumeration<String> aliases = pTrustAnchors.aliases(); aliases.hasMoreElements(); )
+        {
+            Certificate certificate = pTrustAnchors.getCertificate(aliases.nextElement());
+            if (certificate instanceof X509Certificate)
+                anchorKeys.computeIfAbsent(((X509Certificate) certificate).getSubjectX500Principal(), pKey -> new ArrayList<>())
+                        .add(certificate.getPublicKey());
+        }
+    }
+
+    @Override
+    public void init(boolean pForward) throws CertPathValidatorException
+    {
+        if (pForward)
+            throw new CertPathValidatorException("forward checking is not supported");
+        previous = null;
+    }
+
+    @Override
+    public boolean isForwardCheckingSupported()
+    {
+        return false;
+    }
+
+    @Override
+    public Set<String> getSupportedExtensions()
+    {
+        return null;
+    }
+
+    /**
+     * The certificates are passed from the trust anchor to the end-entity, so the issuer of a certificate is the one
+     * that was checked before.
+     */
+    @Override
+    public void check(Certificate pCertificate, Collection<String> pUnresolvedCritExts) throws CertPathValidatorException
+    {
+        X509Certificate certificate = (X509Certificate) pCertificate;
+        List<PublicKey> issuerKeys = previous == null ? anchorKeys.getOrDefault(certificate.getIssuerX500Principal(), Collections.emptyList())
+                                                      : Collections.singletonList(previous.getPublicKey());
+        previous = certificate;
+        if (certificate.getBasicConstraints() == -1 && !issuerKeys.isEmpty())
+            checkEndEntity(certificate, issuerKeys);
+    }
+
+    /**
+     * @param pIssuerKeys the possible keys of the issuer, usually only one
+     * @throws CertPathValidatorException if the certificate is revoked, see {@link #createRevokedException}
+     */
+    protected abstract void checkEndEntity(X509Certificate pCertificate, List<PublicKey> pIssuerKeys) throws CertPathValidatorException;
+
+    /**
+     * The version changes whenever a cache learns revocation information that might reject a certificate that was
+     * accepted before, ie. a CRL that lists further certificates or a revoked OCSP status. Refreshed revocation
+     * information that revokes nothing new keeps the version. Results that depend on the revocation status, like the
+     * verdicts of {@link de.adito.trustmanager.CustomTrustManager}, are only valid for the version they were made with.
+     */
+    public static long getStatusVersion()
+    {
+        return STATUS_VERSION.get();
+    }
+
+    static void statusChanged()
+    {
+        STATUS_VERSION.incrementAndGet();
+    }
+
+    /**
+     * @param pReason null, if the reason is unknown
+     */
+    protected static CertPathValidatorException createRevokedException(Date pRevocationDate, CRLReason pReason, X500Principal pAuthority)
+    {
+        CertificateRevokedException revoked = new CertificateRevokedException(pRevocationDate, pReason == null ? CRLReason.UNSPECIFIED : pReason,
+                                                                              pAuthority, Collections.emptyMap());
+        return new CertPathValidatorException(revoked.getMessage(), revoked, null, -1, CertPathValidatorException.BasicReason.REVOKED);
+    }
+}
@@ -0,0 +1,672 @@
+package de.adito.trustmanager.revocation;
+
+import de.adito.trustmanager.TrustManagerUtil;
+import de.adito.trustmanager.internal.WeakIdentityCache;
+
+import javax.security.auth.x500.X500Principal;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLConnection;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CRLException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Caches the CRLs of the distribution points of certificates in memory and on the disk, so a restart does not download
+ * them again. A CRL is used until its nextUpdate, or for {@link #MAX_AGE_SYSTEM_PROPERTY} if it has none. CRLs that
+ * expire soon are downloaded again in the background, so handshakes only wait for the first download of a CRL. With
+ * {@link #getCachedCRLs}, they don't even wait for that. CAs often publish a CRL late, so a downloaded CRL whose
+ * nextUpdate already passed is kept for a minute as well, instead of being downloaded again by every handshake.
+ * <p>
+ * Only the DER encoding, the issuer and the {@link CrlIndex} of a CRL are kept in memory, not the entries of
+ * {@link X509CRL}. The methods that return an X509CRL parse it on every call, {@link CrlRevocationChecker} uses the
+ * index instead.
+ * <p>
+ * The CRLs are not verified here, {@link CrlRevocationChecker} checks their signature, dates and scope.
+ */
+public class CrlCache
+{
+    /**
+     * Directory of the cached CRLs
+     */
+    public static final String CACHE_PATH_SYSTEM_PROPERTY = "adito.trustmanager.crl.cache.path";
+    public static final String CACHE_PATH = "crlcache";
+    /**
+     * Milliseconds a CRL without nextUpdate is used
+     */
+    public static final String MAX_AGE_SYSTEM_PROPERTY = "adito.trustmanager.crl.maxage";
+    /**
+     * Milliseconds between two checks for CRLs that expire soon, 0 disables the background refresh
+     */
+    public static final String REFRESH_INTERVAL_SYSTEM_PROPERTY = "adito.trustmanager.crl.refresh.interval";
+    /**
+     * Milliseconds to connect to a distribution point and to read the CRL
+     */
+    public static final String TIMEOUT_SYSTEM_PROPERTY = "adito.trustmanager.crl.timeout";
+
+    private static final String CRL_DISTRIBUTION_POINTS = "2.5.29.31";
+    private static final String FRESHEST_CRL = "2.5.29.46";
+    private static final int FILE_MAGIC = 0x4143524c;
+    private static final String FILE_SUFFIX = ".crl";
+    //a distribution point that could not be reached or only has an outdated CRL is not asked again by every handshake
+    private static final long RETRY_DELAY = 60 * 1000L;
+    private static final ScheduledExecutorService REFRESHER =
+            Executors.newSingleThreadScheduledExecutor(TrustManagerUtil.newDaemonThreadFactory("trustmanager-crl"));
+    private static final WeakIdentityCache<X509Certificate, List<URI>> DISTRIBUTION_POINTS = new WeakIdentityCache<>();
+    private static final WeakIdentityCache<X509Certificate, List<URI>> DELTA_DISTRIBUTION_POINTS = new WeakIdentityCache<>();
+    private static CrlCache defaultCache;
+
+    private final Path directory;
+    private final long maxAge;
+    private final long refreshInterval;
+    private final int timeout;
+    private final Map<URI, Entry> crls = new ConcurrentHashMap<>();
+    private final Map<URI, CompletableFuture<Entry>> downloads = new ConcurrentHashMap<>();
+    private final Map<URI, Long> retryAt = new ConcurrentHashMap<>();
+    private final Set<URI> scheduled = ConcurrentHashMap.newKeySet();
+    private volatile boolean directoryRead;
+
+    /**
+     * The settings are read from the system properties of this class.
+     */
+    public CrlCache()
+    {
+        this(Paths.get(System.getProperty(CACHE_PATH_SYSTEM_PROPERTY, CACHE_PATH)), Long.getLong(MAX_AGE_SYSTEM_PROPERTY, 24 * 60 * 60 * 1000L),
+             Long.getLong(REFRESH_INTERVAL_SYSTEM_PROPERTY, 15 * 60 * 1000L), Integer.getInteger(TIMEOUT_SYSTEM_PROPERTY, 5000));
+    }
+
+    /**
+     * @param pDirectory       directory of the cached CRLs, it is created with the first CRL
+     * @param pMaxAge          milliseconds a CRL without nextUpdate is used
+     * @param pRefreshInterval milliseconds between two checks for CRLs that expire soon, 0 disables the background refresh
+     * @param pTimeout         milliseconds to connect to a distribution point and to read the CRL
+     */
+    public CrlCache(Path pDirectory, long pMaxAge, long pRefreshInterval, int pTimeout)
+    {
+        directory = pDirectory.toAbsolutePath();
+        maxAge = pMaxAge;
+        refreshInterval = pRefreshInterval;
+        timeout = pTimeout;
+        if (refreshInterval > 0)
+            _scheduleRefresh(this, refreshInterval);
+    }
+
+    /**
+     * @return the cache of the trustManagers built by {@link de.adito.trustmanager.TrustManagerBuilder}
+     */
+    public static synchronized CrlCache getDefault()
+    {
+        if (defaultCache == null)
+            defaultCache = new CrlCache();
+        return defaultCache;
+    }
+
+    /**
+     * @return the http URIs of the CRL distribution points of the certificate
+     */
+    public static List<URI> getDistributionPoints(X509Certificate pCertificate)
+    {
+        return DISTRIBUTION_POINTS.computeIfAbsent(pCertificate, pCert -> _readDistributionPoints(pCert, CRL_DISTRIBUTION_POINTS));
+    }
+
+    /**
+     * @return the http URIs of the delta CRLs of the certificate (FreshestCRL extension)
+     */
+    public static List<URI> getDeltaDistributionPoints(X509Certificate pCertificate)
+    {
+        return DELTA_DISTRIBUTION_POINTS.computeIfAbsent(pCertificate, pCert -> _readDistributionPoints(pCert, FRESHEST_CRL));
+    }
+
+    /**
+     * A cached CRL that has not expired is returned right away, otherwise the CRL is downloaded. Concurrent callers wait
+     * for the same download. After a failed download, the distribution point is not asked again for a minute.
+     *
+     * @return the CRL, null if it could not be downloaded
+     */
+    public X509CRL get(URI pUri)
+    {
+        return _toCrl(getEntry(pUri));
+    }
+
+    /**
+     * Like {@link #get(URI)}, without parsing the CRL.
+     */
+    Entry getEntry(URI pUri)
+    {
+        long now = System.currentTimeMillis();
+        Entry entry = _getCached(pUri);
+        if (entry != null && !entry.isExpired(now))
+            return entry;
+        Long retry = retryAt.get(pUri);
+        if (retry != null && now < retry)
+            return null;
+        try
+        {
+            return _download(pUri).get();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @return the CRLs of all distribution points of the certificate that could be loaded
+     */
+    public List<X509CRL> getCRLs(X509Certificate pCertificate)
+    {
+        return _toCrls(getEntries(pCertificate));
+    }
+
+    /**
+     * @return the delta CRLs of all FreshestCRL distribution points of the certificate that could be loaded
+     */
+    public List<X509CRL> getDeltaCRLs(X509Certificate pCertificate)
+    {
+        return _toCrls(getDeltaEntries(pCertificate));
+    }
+
+    /**
+     * Does not wait for a download: the last known CRLs are returned, even if they expired. Missing or expired CRLs are
+     * downloaded in the background, the next call finds them.
+     *
+     * @return the cached CRLs of all distribution points of the certificate
+     */
+    public List<X509CRL> getCachedCRLs(X509Certificate pCertificate)
+    {
+        return _toCrls(getCachedEntries(pCertificate));
+    }
+
+    /**
+     * Like {@link #getCachedCRLs}, for the FreshestCRL distribution points of the certificate.
+     */
+    public List<X509CRL> getCachedDeltaCRLs(X509Certificate pCertificate)
+    {
+        return _toCrls(getCachedDeltaEntries(pCertificate));
+    }
+
+    /**
+     * Like {@link #getCRLs}, without parsing the CRLs.
+     */
+    List<Entry> getEntries(X509Certificate pCertificate)
+    {
+        return _getEntries(getDistributionPoints(pCertificate));
+    }
+
+    /**
+     * Like {@link #getDeltaCRLs}, without parsing the CRLs.
+     */
+    List<Entry> getDeltaEntries(X509Certificate pCertificate)
+    {
+        return _getEntries(getDeltaDistributionPoints(pCertificate));
+    }
+
+    /**
+     * Like {@link #getCachedCRLs}, without parsing the CRLs.
+     */
+    List<Entry> getCachedEntries(X509Certificate pCertificate)
+    {
+        return _getCachedEntries(getDistributionPoints(pCertificate));
+    }
+
+    /**
+     * Like {@link #getCachedDeltaCRLs}, without parsing the CRLs.
+     */
+    List<Entry> getCachedDeltaEntries(X509Certificate pCertificate)
+    {
+        return _getCachedEntries(getDeltaDistributionPoints(pCertificate));
+    }
+
+    private List<Entry> _getEntries(List<URI> pUris)
+    {
+        if (pUris.isEmpty())
+            return Collections.emptyList();
+        List<Entry> result = new ArrayList<>(pUris.size());
+        for (URI uri : pUris)
+        {
+            Entry entry = getEntry(uri);
+            if (entry != null)
+                result.add(entry);
+        }
+        return result;
+    }
+
+    private List<Entry> _getCachedEntries(List<URI> pUris)
+    {
+        if (pUris.isEmpty())
+            return Collections.emptyList();
+        List<Entry> result = new ArrayList<>(pUris.size());
+        long now = System.currentTimeMillis();
+        for (URI uri : pUris)
+        {
+            Entry entry = _getCached(uri);
+            if (entry == null || entry.isExpired(now))
+                _downloadInBackground(uri, now);
+            if (entry != null)
+                result.add(entry);
+        }
+        return result;
+    }
+
+    /**
+     * A download that is already running or scheduled is not scheduled again.
+     */
+    private void _downloadInBackground(URI pUri, long pNow)
+    {
+        Long retry = retryAt.get(pUri);
+        if ((retry != null && pNow < retry) || downloads.containsKey(pUri) || !scheduled.add(pUri))
+            return;
+        REFRESHER.execute(() -> {
+            try
+            {
+                _download(pUri);
+            } finally
+            {
+                scheduled.remove(pUri);
+            }
+        });
+    }
+
+    /**
+     * Loads the CRLs of the distribution points of the certificates in the background, eg. of the server certificates
+     * an application is going to connect to. The loaded CRLs are refreshed like all other cached CRLs, including the
+     * ones that were loaded by the validation of a certificate.
+     */
+    public void prefetch(Collection<X509Certificate> pCertificates)
+    {
+        List<X509Certificate> certificates = new ArrayList<>(pCertificates);
+        REFRESHER.execute(() -> {
+            for (X509Certificate certificate : certificates)
+            {
+                List<URI> uris = new ArrayList<>(getDistributionPoints(certificate));
+                uris.addAll(getDeltaDistributionPoints(certificate));
+                for (URI uri : uris)
+                {
+                    Entry entry = _getCached(uri);
+                    if (entry == null || entry.isExpired(System.currentTimeMillis()))
+                        _download(uri);
+                }
+            }
+        });
+    }
+
+    /**
+     * Downloads all known CRLs again that expire within the refresh interval. The CRLs that were cached on the disk by
+     * an earlier process are known as well. Is called by the background refresh.
+     */
+    public void refresh()
+    {
+        if (!directoryRead)
+        {
+            _readDirectory();
+            directoryRead = true;
+        }
+        long limit = System.currentTimeMillis() + refreshInterval;
+        for (Map.Entry<URI, Entry> entry : crls.entrySet())
+            if (entry.getValue().isExpired(limit))
+                _download(entry.getKey());
+    }
+
+    /**
+     * @return the number of CRLs in memory
+     */
+    public int size()
+    {
+        return crls.size();
+    }
+
+    private Entry _getCached(URI pUri)
+    {
+        Entry entry = crls.get(pUri);
+        if (entry == null)
+        {
+            entry = _readFile(_getFile(pUri));
+            if (entry != null)
+            {
+                Entry former = crls.putIfAbsent(pUri, entry);
+                if (former != null)
+                    entry = former;
+            }
+        }
+        return entry;
+    }
+
+    private CompletableFuture<Entry> _download(URI pUri)
+    {
+        CompletableFuture<Entry> download = new CompletableFuture<>();
+        CompletableFuture<Entry> running = downloads.putIfAbsent(pUri, download);
+        if (running != null)
+            return running;
+        try
+        {
+            byte[] der = _fetch(pUri);
+            Entry entry = new Entry(pUri, der, System.currentTimeMillis(), maxAge);
+            Entry former = crls.put(pUri, entry);
+            if (_revokesMore(former, entry))
+                AbstractRevocationChecker.statusChanged();
+            retryAt.remove(pUri);
+            _writeFile(pUri, der);
+            download.complete(entry);
+        } catch (IOException | CRLException | RuntimeException e)
+        {
+            retryAt.put(pUri, System.currentTimeMillis() + RETRY_DELAY);
+            download.completeExceptionally(e);
+        } finally
+        {
+            downloads.remove(pUri, download);
+        }
+        return download;
+    }
+
+    private byte[] _fetch(URI pUri) throws IOException
+    {
+        URLConnection connection = pUri.toURL().openConnection();
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        connection.setUseCaches(false);
+        if (connection instanceof HttpURLConnection)
+        {
+            int responseCode = ((HttpURLConnection) connection).getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK)
+                throw new IOException("CRL could not be downloaded from " + pUri + ", response code " + responseCode);
+        }
+        try (InputStream in = connection.getInputStream())
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0)
+                out.write(buffer, 0, read);
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * File layout: magic (int), length of the URI (short), URI (UTF-8) and the DER encoded CRL. The URI is needed to
+     * refresh the CRLs after a restart.
+     */
+    private void _writeFile(URI pUri, byte[] pDer) throws IOException
+    {
+        byte[] uri = pUri.toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(6 + uri.length);
+        header.putInt(FILE_MAGIC).putShort((short) uri.length).put(uri);
+        ((Buffer) header).flip();
+        Files.createDirectories(directory);
+        TrustManagerUtil.writeAtomically(_getFile(pUri), header, ByteBuffer.wrap(pDer));
+    }
+
+    /**
+     * @return null, if the file does not exist or is damaged, the CRL is downloaded again then
+     */
+    private Entry _readFile(Path pFile)
+    {
+        try
+        {
+            ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(pFile));
+            if (content.remaining() < 6 || content.getInt() != FILE_MAGIC)
+                return null;
+            byte[] uri = new byte[content.getShort() & 0xffff];
+            content.get(uri);
+            byte[] der = new byte[content.remaining()];
+            content.get(der);
+            return new Entry(new URI(new String(uri, StandardCharsets.UTF_8)), der, Files.getLastModifiedTime(pFile).toMillis(), maxAge);
+        } catch (IOException | URISyntaxException | CRLException | RuntimeException e)
+        {
+            return null;
+        }
+    }
+
+    private void _readDirectory()
+    {
+        if (!Files.isDirectory(directory))
+            return;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + FILE_SUFFIX))
+        {
+            for (Path file : files)
+            {
+                Entry entry = _readFile(file);
+                if (entry != null)
+                    crls.putIfAbsent(entry.uri, entry);
+            }
+        } catch (IOException e)
+        {
+            //the files are read again with the next refresh
+        }
+    }
+
+    private Path _getFile(URI pUri)
+    {
+        try
+        {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(pUri.toString().getBytes(StandardCharsets.UTF_8));
+            return directory.resolve(TrustManagerUtil.toHexString(hash).replace(":", "").toLowerCase() + FILE_SUFFIX);
+        } catch (NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Only a CRL that lists a certificate the former CRL did not list can reject a chain that was accepted before, so
+     * only such a CRL changes the status version. A refreshed CRL with the same entries keeps all verdicts. The indexes
+     * are compared, the CRLs are not parsed again.
+     *
+     * @param pFormer null, if the distribution point was not known before
+     */
+    private static boolean _revokesMore(Entry pFormer, Entry pEntry)
+    {
+        if (pEntry.index.size() == 0)
+            return false;
+        return pFormer == null || !pFormer.index.containsAll(pEntry.index);
+    }
+
+    /**
+     * @return null, if the CRL can't be parsed
+     */
+    private static X509CRL _toCrl(Entry pEntry)
+    {
+        if (pEntry == null)
+            return null;
+        try
+        {
+            return pEntry.parse();
+        } catch (CRLException e)
+        {
+            //the CRL was parsed when it was loaded, so this does not happen
+            return null;
+        }
+    }
+
+    private static List<X509CRL> _toCrls(List<Entry> pEntries)
+    {
+        if (pEntries.isEmpty())
+            return Collections.emptyList();
+        List<X509CRL> result = new ArrayList<>(pEntries.size());
+        for (Entry entry : pEntries)
+        {
+            X509CRL crl = _toCrl(entry);
+            if (crl != null)
+                result.add(crl);
+        }
+        return result;
+    }
+
+    private static X509CRL _parse(byte[] pDer) throws CRLException
+    {
+        try
+        {
+            return (X509CRL) CertificateFactory.getInstance("X.509").generateCRL(new ByteArrayInputStream(pDer));
+        } catch (CertificateException e)
+        {
+            throw new CRLException(e);
+        }
+    }
+
+    /**
+     * CRLDistributionPoints and FreshestCRL ::= SEQUENCE OF DistributionPoint, DistributionPoint ::= SEQUENCE {
+     * distributionPoint [0] { fullName [0] GeneralNames } ... }, only uniformResourceIdentifier [6] names are used.
+     */
+    private static List<URI> _readDistributionPoints(X509Certificate pCertificate, String pExtension)
+    {
+        List<URI> uris = new ArrayList<>();
+        try
+        {
+            DerReader extension = DerReader.ofExtensionValue(pCertificate.getExtensionValue(pExtension));
+            if (extension == null)
+                return Collections.emptyList();
+            extension.expect(DerReader.SEQUENCE);
+            DerReader points = extension.enter();
+            while (points.next())
+            {
+                DerReader point = points.enter();
+                if (!point.next() || point.tag() != 0xa0)
+                    continue;
+                DerReader name = point.enter();
+                if (!name.next() || name.tag() != 0xa0)
+                    continue;
+                DerReader generalNames = name.enter();
+                while (generalNames.next())
+                    if (generalNames.tag() == 0x86)
+                        _addUri(uris, generalNames.contentAsString());
+            }
+        } catch (IOException e)
+        {
+            //a damaged extension is treated like a missing one
+        }
+        return uris.isEmpty() ? Collections.emptyList() : Collections.unmodifiableList(uris);
+    }
+
+    private static void _addUri(List<URI> pUris, String pUri)
+    {
+        try
+        {
+            URI uri = new URI(pUri);
+            //the URIs come from an unverified certificate: file URIs would read local files and https URIs would
+            //validate the CRL server with this trustManager again, so only http is used, like the JDK does
+            if ("http".equalsIgnoreCase(uri.getScheme()))
+                pUris.add(uri);
+        } catch (URISyntaxException e)
+        {
+            //eg. ldap URIs with spaces, they are not supported anyway
+        }
+    }
+
+    /**
+     * The task only references the cache weakly, it ends as soon as the cache is not used anymore.
+     */
+    private static void _scheduleRefresh(CrlCache pCache, long pInterval)
+    {
+        WeakReference<CrlCache> cacheReference = new WeakReference<>(pCache);
+        AtomicReference<ScheduledFuture<?>> task = new AtomicReference<>();
+        task.set(REFRESHER.scheduleWithFixedDelay(() -> {
+            CrlCache cache = cacheReference.get();
+            if (cache == null)
+                task.get().cancel(false);
+            else
+            {
+                try
+                {
+                    cache.refresh();
+                } catch (RuntimeException e)
+                {
+                    //the next refresh will try again
+                }
+            }
+        }, 0, pInterval, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * A cached CRL. It is parsed once when it is loaded, afterwards only its DER encoding and its index are kept.
+     */
+    static final class Entry
+    {
+        private final URI uri;
+        private final byte[] der;
+        private final X500Principal issuer;
+        private final boolean delta;
+        private final CrlIndex index;
+        private final long expiresAt;
+
+        /**
+         * @param pLoadedAt time the CRL was downloaded, the CRL is used for at least {@link #RETRY_DELAY} afterwards
+         * @throws CRLException if the CRL can't be parsed or indexed
+         */
+        Entry(URI pUri, byte[] pDer, long pLoadedAt, long pMaxAge) throws CRLException
+        {
+            X509CRL crl = _parse(pDer);
+            uri = pUri;
+            der = pDer;
+            issuer = crl.getIssuerX500Principal();
+            delta = CrlIndex.isDelta(crl);
+            index = delta ? CrlIndex.ofAdded(crl) : CrlIndex.of(crl);
+            Date nextUpdate = crl.getNextUpdate();
+            expiresAt = Math.max(nextUpdate == null ? pLoadedAt + pMaxAge : nextUpdate.getTime(), pLoadedAt + RETRY_DELAY);
+        }
+
+        /**
+         * @return a new X509CRL, eg. to verify its signature or to read the entry of a revoked certificate
+         */
+        X509CRL parse() throws CRLException
+        {
+            return _parse(der);
+        }
+
+        X500Principal getIssuer()
+        {
+            return issuer;
+        }
+
+        boolean isDelta()
+        {
+            return delta;
+        }
+
+        /**
+         * @return the index of a complete CRL, for a delta CRL only the serial numbers it adds
+         */
+        CrlIndex getIndex()
+        {
+            return index;
+        }
+
+        boolean isExpired(long pTime)
+        {
+            return expiresAt <= pTime;
+        }
+    }
+}
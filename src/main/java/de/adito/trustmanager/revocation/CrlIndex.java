@@ -0,0 +1,374 @@
+package de.adito.trustmanager.revocation;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.cert.CRLException;
+import java.security.cert.CRLReason;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * The serial numbers of the revoked certificates of a CRL, as sorted arrays and a Bloom filter. Serial numbers that
+ * fit into a long, the usual case, are kept in a primitive array, longer ones in an array of BigIntegers. Most
+ * certificates are not revoked, the Bloom filter answers them without the binary search. A lookup does not allocate.
+ * <p>
+ * The index of a complete CRL is read from its DER encoding, without the entry objects of {@link X509CRL}. A delta CRL
+ * is merged into the index of its complete CRL, see {@link #withDelta(X509CRL)}.
+ */
+public final class CrlIndex
+{
+    private static final String CRL_NUMBER = "2.5.29.20";
+    private static final String DELTA_CRL_INDICATOR = "2.5.29.27";
+    private static final int BITS_PER_ENTRY = 10;
+    private static final int HASH_COUNT = 7;
+
+    private final long[] serials;
+    private final BigInteger[] largeSerials;
+    private final long[] bloom;
+    private final int bloomMask;
+    private final BigInteger crlNumber;
+
+    private CrlIndex(long[] pSerials, BigInteger[] pLargeSerials, BigInteger pCrlNumber)
+    {
+        this(pSerials, pLargeSerials, pCrlNumber,
+             new long[Integer.highestOneBit(Math.max(64, (pSerials.length + pLargeSerials.length) * BITS_PER_ENTRY - 1) << 1) >>> 6]);
+        for (long serial : pSerials)
+            _addToBloom(_hash(serial));
+        for (BigInteger serial : pLargeSerials)
+            _addToBloom(_hash(serial));
+    }
+
+    /**
+     * @param pBloom the filter is used as it is, its length has to be a power of two
+     */
+    private CrlIndex(long[] pSerials, BigInteger[] pLargeSerials, BigInteger pCrlNumber, long[] pBloom)
+    {
+        serials = pSerials;
+        largeSerials = pLargeSerials;
+        crlNumber = pCrlNumber;
+        bloom = pBloom;
+        bloomMask = (pBloom.length << 6) - 1;
+    }
+
+    /**
+     * @param pCrl a complete CRL, not a delta CRL
+     */
+    public static CrlIndex of(X509CRL pCrl) throws CRLException
+    {
+        if (isDelta(pCrl))
+            throw new CRLException("a delta CRL can't be indexed on its own");
+        LongArray serials = new LongArray();
+        LargeArray largeSerials = new LargeArray();
+        try
+        {
+            DerReader tbsCertList = new DerReader(pCrl.getTBSCertList());
+            tbsCertList.expect(DerReader.SEQUENCE);
+            DerReader fields = tbsCertList.enter();
+            //version (optional), signature, issuer and thisUpdate
+            fields.next();
+            if (fields.tag() == DerReader.INTEGER)
+                fields.next();
+            fields.expect(DerReader.SEQUENCE);
+            fields.next();
+            while (fields.next() && fields.tag() != DerReader.SEQUENCE)
+            {
+                //nextUpdate or the extensions of a CRL without revoked certificates
+                if (fields.tag() == DerReader.CONTEXT_0)
+                    break;
+            }
+            if (fields.tag() == DerReader.SEQUENCE)
+            {
+                DerReader entries = fields.enter();
+                while (entries.next())
+                {
+                    DerReader entry = entries.enter();
+                    entry.expect(DerReader.INTEGER);
+                    if (entry.isLong())
+                        serials.add(entry.contentAsLong());
+                    else
+                        largeSerials.add(entry.contentAsBigInteger());
+                }
+            }
+        } catch (IOException e)
+        {
+            throw new CRLException("CRL could not be indexed", e);
+        }
+        return new CrlIndex(serials.toSortedArray(), largeSerials.toSortedArray(), getCrlNumber(pCrl));
+    }
+
+    /**
+     * @return the serial numbers a delta CRL adds, without the ones it removes with {@link CRLReason#REMOVE_FROM_CRL}.
+     * The index can't be merged with other delta CRLs.
+     */
+    static CrlIndex ofAdded(X509CRL pDelta)
+    {
+        LongArray added = new LongArray();
+        LargeArray addedLarge = new LargeArray();
+        Set<? extends X509CRLEntry> entries = pDelta.getRevokedCertificates();
+        if (entries != null)
+        {
+            for (X509CRLEntry entry : entries)
+            {
+                BigInteger serial = entry.getSerialNumber();
+                if (entry.getRevocationReason() == CRLReason.REMOVE_FROM_CRL)
+                    continue;
+                if (_isLong(serial))
+                    added.add(serial.longValue());
+                else
+                    addedLarge.add(serial);
+            }
+        }
+        return new CrlIndex(added.toSortedArray(), addedLarge.toSortedArray(), null);
+    }
+
+    /**
+     * @return true, if the CRL is a delta CRL
+     */
+    public static boolean isDelta(X509CRL pCrl)
+    {
+        return pCrl.getExtensionValue(DELTA_CRL_INDICATOR) != null;
+    }
+
+    /**
+     * @return the number of the CRL, null if the CRL has none
+     */
+    public static BigInteger getCrlNumber(X509CRL pCrl)
+    {
+        return _readInteger(pCrl, CRL_NUMBER);
+    }
+
+    /**
+     * @return the number of the complete CRL a delta CRL refers to, null if it is not a delta CRL
+     */
+    public static BigInteger getBaseCrlNumber(X509CRL pCrl)
+    {
+        return _readInteger(pCrl, DELTA_CRL_INDICATOR);
+    }
+
+    /**
+     * A delta CRL can be applied, if it refers to this CRL or an earlier one and is newer than this CRL.
+     */
+    public boolean canApply(X509CRL pDelta)
+    {
+        BigInteger base = getBaseCrlNumber(pDelta);
+        BigInteger number = getCrlNumber(pDelta);
+        return base != null && number != null && crlNumber != null && base.compareTo(crlNumber) <= 0 && number.compareTo(crlNumber) > 0;
+    }
+
+    /**
+     * The entries of the delta CRL are merged into a new index, the arrays of this index are copied once and are not
+     * parsed again. Entries with the reason {@link CRLReason#REMOVE_FROM_CRL} are removed. The Bloom filter is copied
+     * and only the added entries are hashed, removed entries stay in the filter and are sorted out by the binary search.
+     *
+     * @throws CRLException if the delta CRL does not fit to this index, see {@link #canApply(X509CRL)}
+     */
+    public CrlIndex withDelta(X509CRL pDelta) throws CRLException
+    {
+        if (!canApply(pDelta))
+            throw new CRLException("delta CRL does not refer to CRL " + crlNumber);
+        LongArray added = new LongArray();
+        LargeArray addedLarge = new LargeArray();
+        LongArray removed = new LongArray();
+        LargeArray removedLarge = new LargeArray();
+        Set<? extends X509CRLEntry> entries = pDelta.getRevokedCertificates();
+        if (entries != null)
+        {
+            for (X509CRLEntry entry : entries)
+            {
+                BigInteger serial = entry.getSerialNumber();
+                boolean remove = entry.getRevocationReason() == CRLReason.REMOVE_FROM_CRL;
+                if (_isLong(serial))
+                    (remove ? removed : added).add(serial.longValue());
+                else
+                    (remove ? removedLarge : addedLarge).add(serial);
+            }
+        }
+        long[] addedSerials = added.toSortedArray();
+        BigInteger[] addedLargeSerials = addedLarge.toSortedArray();
+        CrlIndex index = new CrlIndex(_merge(serials, addedSerials, removed.toSortedArray()),
+                                      _merge(largeSerials, addedLargeSerials, removedLarge.toSortedArray()), crlNumber, bloom.clone());
+        for (long serial : addedSerials)
+            index._addToBloom(_hash(serial));
+        for (BigInteger serial : addedLargeSerials)
+            index._addToBloom(_hash(serial));
+        return index;
+    }
+
+    /**
+     * @return true, if the serial number is listed in the CRL
+     */
+    public boolean isRevoked(BigInteger pSerial)
+    {
+        if (_isLong(pSerial))
+        {
+            long serial = pSerial.longValue();
+            return _mightContain(_hash(serial)) && Arrays.binarySearch(serials, serial) >= 0;
+        }
+        return _mightContain(_hash(pSerial)) && Arrays.binarySearch(largeSerials, pSerial) >= 0;
+    }
+
+    public int size()
+    {
+        return serials.length + largeSerials.length;
+    }
+
+    /**
+     * @return true, if every serial number of the other index is listed in this index, too
+     */
+    boolean containsAll(CrlIndex pOther)
+    {
+        for (long serial : pOther.serials)
+            if (Arrays.binarySearch(serials, serial) < 0)
+                return false;
+        for (BigInteger serial : pOther.largeSerials)
+            if (Arrays.binarySearch(largeSerials, serial) < 0)
+                return false;
+        return true;
+    }
+
+    private void _addToBloom(long pHash)
+    {
+        int h1 = (int) pHash;
+        int h2 = (int) (pHash >>> 32);
+        for (int i = 0; i < HASH_COUNT; i++)
+        {
+            int bit = (h1 + i * h2) & bloomMask;
+            bloom[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private boolean _mightContain(long pHash)
+    {
+        int h1 = (int) pHash;
+        int h2 = (int) (pHash >>> 32);
+        for (int i = 0; i < HASH_COUNT; i++)
+        {
+            int bit = (h1 + i * h2) & bloomMask;
+            if ((bloom[bit >>> 6] & 1L << bit) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean _isLong(BigInteger pSerial)
+    {
+        return pSerial.signum() >= 0 && pSerial.bitLength() < 64;
+    }
+
+    /**
+     * Mixes the bits of the serial number (finalizer of MurmurHash3), serial numbers are often sequential.
+     */
+    private static long _hash(long pSerial)
+    {
+        long hash = pSerial;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static long _hash(BigInteger pSerial)
+    {
+        return _hash(pSerial.longValue() ^ (long) pSerial.hashCode() << 32);
+    }
+
+    private static BigInteger _readInteger(X509CRL pCrl, String pExtension)
+    {
+        try
+        {
+            DerReader value = DerReader.ofExtensionValue(pCrl.getExtensionValue(pExtension));
+            if (value == null)
+                return null;
+            value.expect(DerReader.INTEGER);
+            return value.contentAsBigInteger();
+        } catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    private static long[] _merge(long[] pSerials, long[] pAdded, long[] pRemoved)
+    {
+        long[] result = new long[pSerials.length + pAdded.length];
+        int i = 0;
+        int j = 0;
+        int count = 0;
+        while (i < pSerials.length || j < pAdded.length)
+        {
+            long next;
+            if (j >= pAdded.length || (i < pSerials.length && pSerials[i] <= pAdded[j]))
+                next = pSerials[i++];
+            else
+                next = pAdded[j++];
+            if ((count == 0 || result[count - 1] != next) && Arrays.binarySearch(pRemoved, next) < 0)
+                result[count++] = next;
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    private static BigInteger[] _merge(BigInteger[] pSerials, BigInteger[] pAdded, BigInteger[] pRemoved)
+    {
+        BigInteger[] result = new BigInteger[pSerials.length + pAdded.length];
+        int i = 0;
+        int j = 0;
+        int count = 0;
+        while (i < pSerials.length || j < pAdded.length)
+        {
+            BigInteger next;
+            if (j >= pAdded.length || (i < pSerials.length && pSerials[i].compareTo(pAdded[j]) <= 0))
+                next = pSerials[i++];
+            else
+                next = pAdded[j++];
+            if ((count == 0 || !result[count - 1].equals(next)) && Arrays.binarySearch(pRemoved, next) < 0)
+                result[count++] = next;
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    /**
+     * A growing long array, so the serial numbers are not boxed while the CRL is read.
+     */
+    private static final class LongArray
+    {
+        private long[] values = new long[16];
+        private int size;
+
+        void add(long pValue)
+        {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = pValue;
+        }
+
+        long[] toSortedArray()
+        {
+            long[] result = Arrays.copyOf(values, size);
+            Arrays.sort(result);
+            return result;
+        }
+    }
+
+    private static final class LargeArray
+    {
+        private BigInteger[] values = new BigInteger[0];
+        private int size;
+
+        void add(BigInteger pValue)
+        {
+            if (size == values.length)
+                values = Arrays.copyOf(values, Math.max(16, size * 2));
+            values[size++] = pValue;
+        }
+
+        BigInteger[] toSortedArray()
+        {
+            BigInteger[] result = Arrays.copyOf(values, size);
+            Arrays.sort(result);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package de.adito.trustmanager.revocation;
+
+import de.adito.trustmanager.internal.WeakIdentityCache;
+
+import javax.security.auth.x500.X500Principal;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.PublicKey;
+import java.security.cert.CRLException;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Checks the end-entity certificate of a path against the CRLs of a {@link CrlCache}, with the {@link CrlIndex} of the
+ * CRLs instead of the entries of {@link X509CRL}. The signature of a CRL is verified once, the CRL is only parsed again
+ * for the entry of a revoked certificate.
+ * Delta CRLs of the FreshestCRL extension are merged into the index of their complete CRL.
+ * <p>
+ * A CRL is only used between its thisUpdate and nextUpdate. CRLs with unknown critical extensions are ignored, just
+ * like indirect CRLs. The IssuingDistributionPoint of a CRL has to cover the certificate, ie. name one of its
+ * distribution points and not be limited to CA certificates.
+ * <p>
+ * Like {@link java.security.cert.PKIXRevocationChecker.Option#SOFT_FAIL}, a certificate is accepted if no CRL is
+ * available.
+ */
+public class CrlRevocationChecker extends AbstractRevocationChecker
+{
+    private static final String ISSUING_DISTRIBUTION_POINT = "2.5.29.28";
+    //CRLNumber, DeltaCRLIndicator, IssuingDistributionPoint and AuthorityKeyIdentifier
+    private static final Set<String> SUPPORTED_EXTENSIONS =
+            Collections.unmodifiableSet(new HashSet<>(Arrays.asList("2.5.29.20", "2.5.29.27", ISSUING_DISTRIBUTION_POINT, "2.5.29.35")));
+    private static final long CLOCK_SKEW = 5 * 60 * 1000L;
+    private static final WeakIdentityCache<CrlCache.Entry, VerifiedIndex> INDEXES = new WeakIdentityCache<>();
+    private static final WeakIdentityCache<CrlCache.Entry, VerifiedIndex> DELTA_INDEXES = new WeakIdentityCache<>();
+
+    private final CrlCache cache;
+    private final boolean async;
+
+    /**
+     * @param pTrustAnchors the CRLs of certificates issued by these anchors are verified with their keys
+     */
+    public CrlRevocationChecker(CrlCache pCache, KeyStore pTrustAnchors) throws KeyStoreException
+    {
+        this(pCache, pTrustAnchors, false);
+    }
+
+    /**
+     * @param pTrustAnchors the CRLs of certificates issued by these anchors are verified with their keys
+     * @param pAsync        if true, the check never waits for a download and uses the last known CRLs, see
+     *                      {@link CrlCache#getCachedCRLs}. A revocation is noticed by the first check after the download.
+     */
+    public CrlRevocationChecker(CrlCache pCache, KeyStore pTrustAnchors, boolean pAsync) throws KeyStoreException
+    {
+        super(pTrustAnchors);
+        cache = pCache;
+        async = pAsync;
+    }
+
+    @Override
+    protected void checkEndEntity(X509Certificate pCertificate, List<PublicKey> pIssuerKeys) throws CertPathValidatorException
+    {
+        long now = System.currentTimeMillis();
+        for (CrlCache.Entry crl : async ? cache.getCachedEntries(pCertificate) : cache.getEntries(pCertificate))
+        {
+            VerifiedIndex index = _getIndex(crl, pCertificate.getIssuerX500Principal(), pIssuerKeys);
+            if (index == null || !index.isValid(pCertificate, now))
+                continue;
+            CrlCache.Entry delta = null;
+            for (CrlCache.Entry deltaCrl : async ? cache.getCachedDeltaEntries(pCertificate) : cache.getDeltaEntries(pCertificate))
+            {
+                VerifiedIndex merged = _getDeltaIndex(deltaCrl, index, pCertificate.getIssuerX500Principal(), pIssuerKeys);
+                if (merged != null && merged.isValid(pCertificate, now))
+                {
+                    index = merged;
+                    delta = deltaCrl;
+                    break;
+                }
+            }
+            if (index.index.isRevoked(pCertificate.getSerialNumber()))
+                throw _createRevokedException(pCertificate, delta == null ? crl : delta, crl);
+        }
+    }
+
+    /**
+     * @return the index of the CRL, null if the CRL was not issued by the issuer of the certificate, its signature is
+     * invalid or it is not supported. Its dates and scope are not checked yet.
+     */
+    private static VerifiedIndex _getIndex(CrlCache.Entry pCrl, X500Principal pIssuer, List<PublicKey> pIssuerKeys)
+    {
+        if (pCrl.isDelta() || !pCrl.getIssuer().equals(pIssuer))
+            return null;
+        VerifiedIndex index = INDEXES.get(pCrl);
+        if (index != null && pIssuerKeys.contains(index.key))
+            return index;
+        X509CRL crl;
+        try
+        {
+            crl = pCrl.parse();
+        } catch (CRLException e)
+        {
+            return null;
+        }
+        Scope scope = Scope.of(crl);
+        if (scope == null)
+            return null;
+        PublicKey key = _verify(crl, pIssuerKeys);
+        if (key == null)
+            return null;
+        index = new VerifiedIndex(pCrl.getIndex(), key, null, crl, scope);
+        INDEXES.put(pCrl, index);
+        return index;
+    }
+
+    /**
+     * @return the index of the complete CRL merged with the delta CRL, null if the delta CRL does not fit
+     */
+    private static VerifiedIndex _getDeltaIndex(CrlCache.Entry pDelta, VerifiedIndex pBase, X500Principal pIssuer, List<PublicKey> pIssuerKeys)
+    {
+        if (!pDelta.isDelta() || !pDelta.getIssuer().equals(pIssuer))
+            return null;
+        VerifiedIndex index = DELTA_INDEXES.get(pDelta);
+        if (index != null && index.base == pBase.index && pIssuerKeys.contains(index.key))
+            return index;
+        try
+        {
+            X509CRL delta = pDelta.parse();
+            if (!pBase.index.canApply(delta))
+                return null;
+            Scope scope = Scope.of(delta);
+            if (scope == null)
+                return null;
+            PublicKey key = _verify(delta, pIssuerKeys);
+            if (key == null)
+                return null;
+            index = new VerifiedIndex(pBase.index.withDelta(delta), key, pBase.index, delta, scope);
+        } catch (CRLException e)
+        {
+            return null;
+        }
+        DELTA_INDEXES.put(pDelta, index);
+        return index;
+    }
+
+    /**
+     * @return the key that verified the CRL, null if none did
+     */
+    private static PublicKey _verify(X509CRL pCrl, List<PublicKey> pIssuerKeys)
+    {
+        for (PublicKey key : pIssuerKeys)
+        {
+            try
+            {
+                pCrl.verify(key);
+                return key;
+            } catch (GeneralSecurityException e)
+            {
+                //try the next key
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Only a revoked certificate needs the entry of the CRL, so the CRLs are parsed again. The entry is read from the
+     * delta CRL first.
+     */
+    private static CertPathValidatorException _createRevokedException(X509Certificate pCertificate, CrlCache.Entry pCrl, CrlCache.Entry pBaseCrl)
+    {
+        try
+        {
+            X509CRL crl = pCrl.parse();
+            X509CRLEntry entry = crl.getRevokedCertificate(pCertificate.getSerialNumber());
+            if (entry == null && pBaseCrl != pCrl)
+                entry = pBaseCrl.parse().getRevokedCertificate(pCertificate.getSerialNumber());
+            if (entry == null)
+                return createRevokedException(crl.getThisUpdate(), null, pCrl.getIssuer());
+            return createRevokedException(entry.getRevocationDate(), entry.getRevocationReason(), pCrl.getIssuer());
+        } catch (CRLException e)
+        {
+            //the CRL was parsed when it was loaded, so this does not happen
+            return createRevokedException(new Date(), null, pCrl.getIssuer());
+        }
+    }
+
+    private static final class VerifiedIndex
+    {
+        private final CrlIndex index;
+        private final PublicKey key;
+        private final CrlIndex base;
+        private final long thisUpdate;
+        private final long nextUpdate;
+        private final Scope scope;
+
+        /**
+         * @param pBase the index of the complete CRL, if this index contains a delta CRL
+         * @param pCrl  the CRL that was indexed last, its dates limit the use of the index
+         */
+        VerifiedIndex(CrlIndex pIndex, PublicKey pKey, CrlIndex pBase, X509CRL pCrl, Scope pScope)
+        {
+            index = pIndex;
+            key = pKey;
+            base = pBase;
+            thisUpdate = pCrl.getThisUpdate().getTime();
+            nextUpdate = pCrl.getNextUpdate() == null ? Long.MAX_VALUE : pCrl.getNextUpdate().getTime();
+            scope = pScope;
+        }
+
+        /**
+         * @return true, if the CRL is current and covers the certificate
+         */
+        boolean isValid(X509Certificate pCertificate, long pNow)
+        {
+            return thisUpdate <= pNow + CLOCK_SKEW && nextUpdate >= pNow - CLOCK_SKEW && scope.covers(pCertificate);
+        }
+    }
+
+    /**
+     * The certificates a CRL is about, read from IssuingDistributionPoint ::= SEQUENCE { distributionPoint [0]
+     * { fullName [0] GeneralNames } OPTIONAL, onlyContainsUserCerts [1] BOOLEAN, onlyContainsCACerts [2] BOOLEAN,
+     * onlySomeReasons [3] ReasonFlags OPTIONAL, indirectCRL [4] BOOLEAN, onlyContainsAttributeCerts [5] BOOLEAN }.
+     * The distribution points are compared by their uniformResourceIdentifier names, just like {@link CrlCache} only
+     * downloads those. A CRL limited to some reasons is used anyway, it still lists the certificates revoked for them.
+     */
+    private static final class Scope
+    {
+        private static final Scope ALL = new Scope(null, false, false);
+
+        private final List<URI> distributionPoints;
+        private final boolean onlyUserCerts;
+        private final boolean onlyCaCerts;
+
+        /**
+         * @param pDistributionPoints null, if the CRL is not limited to some distribution points
+         */
+        private Scope(List<URI> pDistributionPoints, boolean pOnlyUserCerts, boolean pOnlyCaCerts)
+        {
+            distributionPoints = pDistributionPoints;
+            onlyUserCerts = pOnlyUserCerts;
+            onlyCaCerts = pOnlyCaCerts;
+        }
+
+        /**
+         * @return the scope of the CRL, null if the CRL has unknown critical extensions, is an indirect CRL or is not
+         * about public key certificates
+         */
+        static Scope of(X509CRL pCrl)
+        {
+            Set<String> critical = pCrl.getCriticalExtensionOIDs();
+            if (critical != null && !SUPPORTED_EXTENSIONS.containsAll(critical))
+                return null;
+            try
+            {
+                DerReader extension = DerReader.ofExtensionValue(pCrl.getExtensionValue(ISSUING_DISTRIBUTION_POINT));
+                if (extension == null)
+                    return ALL;
+                extension.expect(DerReader.SEQUENCE);
+                DerReader fields = extension.enter();
+                List<URI> distributionPoints = null;
+                boolean onlyUserCerts = false;
+                boolean onlyCaCerts = false;
+                while (fields.next())
+                {
+                    switch (fields.tag())
+                    {
+                        case 0xa0:
+                            distributionPoints = new ArrayList<>();
+                            DerReader name = fields.enter();
+                            //nameRelativeToCRLIssuer [1] is not supported and matches no distribution point
+                            if (name.next() && name.tag() == 0xa0)
+                            {
+                                DerReader generalNames = name.enter();
+                                while (generalNames.next())
+                                    if (generalNames.tag() == 0x86)
+                                        _addUri(distributionPoints, generalNames.contentAsString());
+                            }
+                            break;
+                        case 0x81:
+                            onlyUserCerts = _isTrue(fields);
+                            break;
+                        case 0x82:
+                            onlyCaCerts = _isTrue(fields);
+                            break;
+                        case 0x84:
+                        case 0x85:
+                            //indirectCRL and onlyContainsAttributeCerts
+                            if (_isTrue(fields))
+                                return null;
+                            break;
+                        default:
+                            //onlySomeReasons
+                            break;
+                    }
+                }
+                return new Scope(distributionPoints, onlyUserCerts, onlyCaCerts);
+            } catch (IOException e)
+            {
+                //the scope of a damaged extension is unknown, so is the CRL
+                return null;
+            }
+        }
+
+        boolean covers(X509Certificate pCertificate)
+        {
+            boolean ca = pCertificate.getBasicConstraints() != -1;
+            if ((ca && onlyUserCerts) || (!ca && onlyCaCerts))
+                return false;
+            return distributionPoints == null || !Collections.disjoint(distributionPoints, CrlCache.getDistributionPoints(pCertificate));
+        }
+
+        private static boolean _isTrue(DerReader pBoolean)
+        {
+            byte[] content = pBoolean.content();
+            return content.length == 1 && content[0] != 0;
+        }
+
+        private static void _addUri(List<URI> pUris, String pUri)
+        {
+            try
+            {
+                pUris.add(new URI(pUri));
+            } catch (URISyntaxException e)
+            {
+                //matches no distribution point of a certificate
+            }
+        }
+    }
+}
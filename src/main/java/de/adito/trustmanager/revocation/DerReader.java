@@ -0,0 +1,226 @@
+package de.adito.trustmanager.revocation;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+
+/**
+ * Reads DER encoded structures without creating objects for them. The reader walks over the elements of one
+ * constructed value, {@link #enter()} returns a reader for the content of the current element.
+ */
+final class DerReader
+{
+    static final int SEQUENCE = 0x30;
+    static final int INTEGER = 0x02;
+    static final int OCTET_STRING = 0x04;
+    static final int OID = 0x06;
+    static final int ENUMERATED = 0x0a;
+    static final int UTC_TIME = 0x17;
+    static final int GENERALIZED_TIME = 0x18;
+    static final int CONTEXT_0 = 0xa0;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+
+    private final byte[] data;
+    private final int end;
+    private int position;
+    private int tag;
+    private int elementStart;
+    private int contentStart;
+    private int contentEnd;
+
+    DerReader(byte[] pData)
+    {
+        this(pData, 0, pData.length);
+    }
+
+    private DerReader(byte[] pData, int pStart, int pEnd)
+    {
+        data = pData;
+        position = pStart;
+        end = pEnd;
+    }
+
+    /**
+     * Moves to the next element.
+     *
+     * @return false, if there are no more elements
+     */
+    boolean next() throws IOException
+    {
+        if (position >= end)
+            return false;
+        if (end - position < 2)
+            throw new IOException("truncated DER element at " + position);
+        elementStart = position;
+        tag = data[position] & 0xff;
+        int length = data[position + 1] & 0xff;
+        int offset = position + 2;
+        if (length > 0x7f)
+        {
+            int count = length & 0x7f;
+            if (count > 4 || offset + count > end)
+                throw new IOException("unsupported DER length at " + position);
+            length = 0;
+            for (int i = 0; i < count; i++)
+                length = length << 8 | (data[offset++] & 0xff);
+        }
+        if (length < 0 || offset + length > end)
+            throw new IOException("truncated DER element at " + position);
+        contentStart = offset;
+        contentEnd = offset + length;
+        position = contentEnd;
+        return true;
+    }
+
+    /**
+     * Moves to the next element and checks its tag.
+     */
+    void expect(int pTag) throws IOException
+    {
+        if (!next() || tag != pTag)
+            throw new IOException("expected DER tag " + Integer.toHexString(pTag) + " at " + contentStart);
+    }
+
+    int tag()
+    {
+        return tag;
+    }
+
+    /**
+     * @return a reader for the content of the current element
+     */
+    DerReader enter()
+    {
+        return new DerReader(data, contentStart, contentEnd);
+    }
+
+    byte[] content()
+    {
+        byte[] content = new byte[contentEnd - contentStart];
+        System.arraycopy(data, contentStart, content, 0, content.length);
+        return content;
+    }
+
+    /**
+     * @return true, if the current INTEGER is not negative and fits into a long
+     */
+    boolean isLong()
+    {
+        int length = contentEnd - contentStart;
+        return length > 0 && length <= 8 && data[contentStart] >= 0;
+    }
+
+    /**
+     * @return the current INTEGER, only valid if {@link #isLong()}
+     */
+    long contentAsLong()
+    {
+        long value = 0;
+        for (int i = contentStart; i < contentEnd; i++)
+            value = value << 8 | (data[i] & 0xff);
+        return value;
+    }
+
+    BigInteger contentAsBigInteger()
+    {
+        return new BigInteger(content());
+    }
+
+    /**
+     * @return the current OBJECT IDENTIFIER in dotted form
+     */
+    String contentAsOid() throws IOException
+    {
+        StringBuilder oid = new StringBuilder();
+        long value = 0;
+        for (int i = contentStart; i < contentEnd; i++)
+        {
+            if (value > Long.MAX_VALUE >>> 7)
+                throw new IOException("OID is too long at " + contentStart);
+            value = value << 7 | (data[i] & 0x7f);
+            if ((data[i] & 0x80) == 0)
+            {
+                if (oid.length() == 0)
+                {
+                    int first = (int) Math.min(2, value / 40);
+                    oid.append(first).append('.').append(value - first * 40);
+                }
+                else
+                    oid.append('.').append(value);
+                value = 0;
+            }
+        }
+        return oid.toString();
+    }
+
+    /**
+     * @return the bits of the current BIT STRING, without the number of unused bits
+     */
+    byte[] contentAsBitString() throws IOException
+    {
+        if (contentEnd - contentStart < 1)
+            throw new IOException("empty BIT STRING at " + contentStart);
+        byte[] bits = new byte[contentEnd - contentStart - 1];
+        System.arraycopy(data, contentStart + 1, bits, 0, bits.length);
+        return bits;
+    }
+
+    /**
+     * @return the current UTCTime or GeneralizedTime, fractions of a second are ignored
+     */
+    Date contentAsDate() throws IOException
+    {
+        String value = contentAsString();
+        try
+        {
+            if (tag == UTC_TIME && value.length() >= 13)
+            {
+                int year = Integer.parseInt(value.substring(0, 2));
+                value = (year < 50 ? "20" : "19") + value;
+            }
+            else if (tag != GENERALIZED_TIME)
+                throw new IOException("expected a time at " + contentStart);
+            if (!value.endsWith("Z") || value.length() < 15)
+                throw new IOException("unsupported time " + value);
+            LocalDateTime time = LocalDateTime.parse(value.substring(0, 14), TIME);
+            return Date.from(time.toInstant(ZoneOffset.UTC));
+        } catch (NumberFormatException | DateTimeParseException e)
+        {
+            throw new IOException("invalid time " + value, e);
+        }
+    }
+
+    /**
+     * @return the current element including tag and length, eg. to verify a signature over it
+     */
+    byte[] encoded()
+    {
+        byte[] encoded = new byte[contentEnd - elementStart];
+        System.arraycopy(data, elementStart, encoded, 0, encoded.length);
+        return encoded;
+    }
+
+    String contentAsString()
+    {
+        return new String(data, contentStart, contentEnd - contentStart, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Unwraps the OCTET STRING returned by {@link java.security.cert.X509Extension#getExtensionValue(String)}.
+     *
+     * @return a reader for the extension value, null if pExtensionValue is null
+     */
+    static DerReader ofExtensionValue(byte[] pExtensionValue) throws IOException
+    {
+        if (pExtensionValue == null)
+            return null;
+        DerReader reader = new DerReader(pExtensionValue);
+        reader.expect(OCTET_STRING);
+        return reader.enter();
+    }
+}
@@ -0,0 +1,113 @@
+package de.adito.trustmanager.revocation;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+
+/**
+ * Creates the few DER structures the revocation checks have to send, eg. an OCSP request. Every method returns the
+ * complete encoding of one element.
+ */
+final class DerWriter
+{
+    private static final DateTimeFormatter UTC_TIME = DateTimeFormatter.ofPattern("yyMMddHHmmss'Z'").withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter GENERALIZED_TIME = DateTimeFormatter.ofPattern("yyyyMMddHHmmss'Z'").withZone(ZoneOffset.UTC);
+
+    private DerWriter()
+    {
+    }
+
+    static byte[] element(int pTag, byte[]... pContent)
+    {
+        int length = 0;
+        for (byte[] content : pContent)
+            length += content.length;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length + 6);
+        out.write(pTag);
+        if (length < 0x80)
+            out.write(length);
+        else
+        {
+            int count = (32 - Integer.numberOfLeadingZeros(length) + 7) / 8;
+            out.write(0x80 | count);
+            for (int i = count - 1; i >= 0; i--)
+                out.write(length >>> (i * 8));
+        }
+        for (byte[] content : pContent)
+            out.write(content, 0, content.length);
+        return out.toByteArray();
+    }
+
+    static byte[] sequence(byte[]... pElements)
+    {
+        return element(DerReader.SEQUENCE, pElements);
+    }
+
+    static byte[] integer(BigInteger pValue)
+    {
+        return element(DerReader.INTEGER, pValue.toByteArray());
+    }
+
+    static byte[] octetString(byte[] pContent)
+    {
+        return element(DerReader.OCTET_STRING, pContent);
+    }
+
+    static byte[] nul()
+    {
+        return new byte[]{0x05, 0x00};
+    }
+
+    /**
+     * @param pBits the bytes of the bit string, without unused bits
+     */
+    static byte[] bitString(byte[] pBits)
+    {
+        return element(0x03, new byte[1], pBits);
+    }
+
+    static byte[] oid(String pOid)
+    {
+        String[] parts = pOid.split("\\.");
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        content.write(Integer.parseInt(parts[0]) * 40 + Integer.parseInt(parts[1]));
+        for (int i = 2; i < parts.length; i++)
+        {
+            long value = Long.parseLong(parts[i]);
+            int shift = (63 - Long.numberOfLeadingZeros(value | 1)) / 7 * 7;
+            for (; shift > 0; shift -= 7)
+                content.write((int) (value >>> shift & 0x7f | 0x80));
+            content.write((int) (value & 0x7f));
+        }
+        return element(DerReader.OID, content.toByteArray());
+    }
+
+    /**
+     * @return the AlgorithmIdentifier with NULL parameters
+     */
+    static byte[] algorithm(String pOid)
+    {
+        return sequence(oid(pOid), nul());
+    }
+
+    static byte[] utcTime(Date pDate)
+    {
+        return element(DerReader.UTC_TIME, UTC_TIME.format(pDate.toInstant()).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    static byte[] generalizedTime(Date pDate)
+    {
+        return element(DerReader.GENERALIZED_TIME, GENERALIZED_TIME.format(pDate.toInstant()).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @return a context specific, constructed element, eg. [0] EXPLICIT
+     */
+    static byte[] explicit(int pNumber, byte[]... pContent)
+    {
+        return element(DerReader.CONTEXT_0 + pNumber, pContent);
+    }
+}
@@ -0,0 +1,16 @@
+package de.adito.trustmanager.revocation;
+
+/**
+ * Source of the revocation information, see {@link de.adito.trustmanager.TrustManagerBuilder#REVOCATION_MODE_SYSTEM_PROPERTY}.
+ */
+public enum ERevocationMode
+{
+    /**
+     * CRLs of the distribution points, see {@link CrlRevocationChecker}
+     */
+    CRL,
+    /**
+     * Stapled or requested OCSP responses, see {@link OcspRevocationChecker}
+     */
+    OCSP
+}
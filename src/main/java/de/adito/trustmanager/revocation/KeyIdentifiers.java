@@ -0,0 +1,60 @@
+package de.adito.trustmanager.revocation;
+
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+
+/**
+ * Reads the key identifier extensions of a certificate with {@link DerReader}, eg. to tell whether a certificate can be
+ * self signed before its signature is verified.
+ */
+public final class KeyIdentifiers
+{
+    private static final String AUTHORITY_KEY_IDENTIFIER = "2.5.29.35";
+    private static final String SUBJECT_KEY_IDENTIFIER = "2.5.29.14";
+    private static final int KEY_IDENTIFIER = 0x80;
+
+    private KeyIdentifiers()
+    {
+    }
+
+    /**
+     * AuthorityKeyIdentifier ::= SEQUENCE { keyIdentifier [0] IMPLICIT OCTET STRING OPTIONAL, ... }
+     *
+     * @return the key identifier, null if the extension is missing, has no key identifier or can't be read
+     */
+    public static byte[] getAuthorityKeyIdentifier(X509Certificate pCertificate)
+    {
+        try
+        {
+            DerReader value = DerReader.ofExtensionValue(pCertificate.getExtensionValue(AUTHORITY_KEY_IDENTIFIER));
+            if (value == null)
+                return null;
+            value.expect(DerReader.SEQUENCE);
+            DerReader fields = value.enter();
+            return fields.next() && fields.tag() == KEY_IDENTIFIER ? fields.content() : null;
+        } catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * SubjectKeyIdentifier ::= OCTET STRING
+     *
+     * @return the key identifier, null if the extension is missing or can't be read
+     */
+    public static byte[] getSubjectKeyIdentifier(X509Certificate pCertificate)
+    {
+        try
+        {
+            DerReader value = DerReader.ofExtensionValue(pCertificate.getExtensionValue(SUBJECT_KEY_IDENTIFIER));
+            if (value == null)
+                return null;
+            value.expect(DerReader.OCTET_STRING);
+            return value.content();
+        } catch (IOException e)
+        {
+            return null;
+        }
+    }
+}
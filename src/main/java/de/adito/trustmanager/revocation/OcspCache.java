@@ -0,0 +1,324 @@
+package de.adito.trustmanager.revocation;
+
+import de.adito.trustmanager.TrustManagerUtil;
+import de.adito.trustmanager.internal.WeakIdentityCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLConnection;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Caches the OCSP responses of certificates in memory, per issuer key and serial number. A response is used until its
+ * nextUpdate, or for {@link #MAX_AGE_SYSTEM_PROPERTY} if it has none. Responses stapled to a handshake are added with
+ * {@link #addStapledResponse}, so the responder is only asked if the server did not staple a response.
+ * <p>
+ * Every response is verified before it is cached, with the key of the issuer it is cached for. A response that was
+ * stapled with a forged issuer certificate is therefore only found with the forged key.
+ */
+public class OcspCache
+{
+    /**
+     * Milliseconds a response without nextUpdate is used
+     */
+    public static final String MAX_AGE_SYSTEM_PROPERTY = "adito.trustmanager.ocsp.maxage";
+    /**
+     * Milliseconds to connect to a responder and to read the response
+     */
+    public static final String TIMEOUT_SYSTEM_PROPERTY = "adito.trustmanager.ocsp.timeout";
+
+    private static final String AUTHORITY_INFO_ACCESS = "1.3.6.1.5.5.7.1.1";
+    private static final String OCSP_ACCESS_METHOD = "1.3.6.1.5.5.7.48.1";
+    //a responder that could not be reached is not asked again by every handshake
+    private static final long RETRY_DELAY = 60 * 1000L;
+    private static final int MAX_ENTRIES = 10000;
+    private static final ExecutorService FETCHER = Executors.newSingleThreadExecutor(TrustManagerUtil.newDaemonThreadFactory("trustmanager-ocsp"));
+    private static final WeakIdentityCache<X509Certificate, List<URI>> RESPONDERS = new WeakIdentityCache<>();
+    private static OcspCache defaultCache;
+
+    private final long maxAge;
+    private final int timeout;
+    private final Map<OcspCertId, OcspResponse> responses = new ConcurrentHashMap<>();
+    private final Map<OcspCertId, CompletableFuture<OcspResponse>> downloads = new ConcurrentHashMap<>();
+    private final Map<OcspCertId, Long> retryAt = new ConcurrentHashMap<>();
+    private final Set<OcspCertId> scheduled = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The settings are read from the system properties of this class.
+     */
+    public OcspCache()
+    {
+        this(Long.getLong(MAX_AGE_SYSTEM_PROPERTY, 60 * 60 * 1000L), Integer.getInteger(TIMEOUT_SYSTEM_PROPERTY, 5000));
+    }
+
+    /**
+     * @param pMaxAge  milliseconds a response without nextUpdate is used
+     * @param pTimeout milliseconds to connect to a responder and to read the response
+     */
+    public OcspCache(long pMaxAge, int pTimeout)
+    {
+        maxAge = pMaxAge;
+        timeout = pTimeout;
+    }
+
+    /**
+     * @return the cache of the trustManagers built by {@link de.adito.trustmanager.TrustManagerBuilder}
+     */
+    public static synchronized OcspCache getDefault()
+    {
+        if (defaultCache == null)
+            defaultCache = new OcspCache();
+        return defaultCache;
+    }
+
+    /**
+     * @return the http URIs of the OCSP responders of the certificate (AuthorityInfoAccess extension)
+     */
+    public static List<URI> getResponders(X509Certificate pCertificate)
+    {
+        return RESPONDERS.computeIfAbsent(pCertificate, OcspCache::_readResponders);
+    }
+
+    /**
+     * Verifies a response the server stapled to the handshake and caches it, if it is newer than the cached one.
+     *
+     * @param pIssuer the certificate that issued pCertificate according to the chain of the server, the response is only
+     *                used if the validation later finds the same issuer key
+     * @return true, if the response was valid for the certificate
+     */
+    public boolean addStapledResponse(X509Certificate pCertificate, X509Certificate pIssuer, byte[] pResponse)
+    {
+        try
+        {
+            PublicKey issuerKey = pIssuer.getPublicKey();
+            OcspCertId certId = OcspCertId.of(pCertificate.getIssuerX500Principal(), issuerKey, pCertificate.getSerialNumber());
+            OcspResponse response = OcspResponse.parse(pResponse, certId, pCertificate.getIssuerX500Principal(), issuerKey, maxAge);
+            _put(certId, response);
+            return true;
+        } catch (IOException | RuntimeException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * A cached response that has not expired is returned right away, otherwise the responders of the certificate are
+     * asked. Concurrent callers wait for the same request. After a failed request, the certificate is not asked for
+     * again for a minute.
+     *
+     * @return the status of the certificate, null if no responder answered
+     */
+    OcspResponse getStatus(X509Certificate pCertificate, PublicKey pIssuerKey)
+    {
+        OcspCertId certId = _getCertId(pCertificate, pIssuerKey);
+        if (certId == null)
+            return null;
+        long now = System.currentTimeMillis();
+        OcspResponse response = responses.get(certId);
+        if (response != null && !response.isExpired(now))
+            return response;
+        Long retry = retryAt.get(certId);
+        if (retry != null && now < retry)
+            return null;
+        try
+        {
+            return _download(certId, pCertificate, pIssuerKey).get();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Does not wait for a responder: the last known response is returned, even if it expired. A missing or expired
+     * response is requested in the background, the next call finds it.
+     *
+     * @return the cached status of the certificate, null if there is none yet
+     */
+    OcspResponse getCachedStatus(X509Certificate pCertificate, PublicKey pIssuerKey)
+    {
+        OcspCertId certId = _getCertId(pCertificate, pIssuerKey);
+        if (certId == null)
+            return null;
+        long now = System.currentTimeMillis();
+        OcspResponse response = responses.get(certId);
+        if (response != null && !response.isExpired(now))
+            return response;
+        Long retry = retryAt.get(certId);
+        if ((retry == null || now >= retry) && !downloads.containsKey(certId) && scheduled.add(certId))
+        {
+            FETCHER.execute(() -> {
+                try
+                {
+                    _download(certId, pCertificate, pIssuerKey);
+                } finally
+                {
+                    scheduled.remove(certId);
+                }
+            });
+        }
+        return response;
+    }
+
+    /**
+     * @return the number of responses in memory
+     */
+    public int size()
+    {
+        return responses.size();
+    }
+
+    private static OcspCertId _getCertId(X509Certificate pCertificate, PublicKey pIssuerKey)
+    {
+        try
+        {
+            return OcspCertId.of(pCertificate.getIssuerX500Principal(), pIssuerKey, pCertificate.getSerialNumber());
+        } catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    private CompletableFuture<OcspResponse> _download(OcspCertId pCertId, X509Certificate pCertificate, PublicKey pIssuerKey)
+    {
+        CompletableFuture<OcspResponse> download = new CompletableFuture<>();
+        CompletableFuture<OcspResponse> running = downloads.putIfAbsent(pCertId, download);
+        if (running != null)
+            return running;
+        try
+        {
+            IOException failure = new IOException("no OCSP responder for " + pCertificate.getSubjectX500Principal());
+            for (URI responder : getResponders(pCertificate))
+            {
+                try
+                {
+                    OcspResponse response = OcspResponse.parse(_fetch(responder, pCertId.toRequest()), pCertId,
+                                                               pCertificate.getIssuerX500Principal(), pIssuerKey, maxAge);
+                    _put(pCertId, response);
+                    retryAt.remove(pCertId);
+                    download.complete(response);
+                    return download;
+                } catch (IOException e)
+                {
+                    failure = e;
+                }
+            }
+            throw failure;
+        } catch (IOException | RuntimeException e)
+        {
+            retryAt.put(pCertId, System.currentTimeMillis() + RETRY_DELAY);
+            download.completeExceptionally(e);
+        } finally
+        {
+            downloads.remove(pCertId, download);
+        }
+        return download;
+    }
+
+    /**
+     * An older response does not replace a newer one, eg. a stapled response that the server cached for a while.
+     */
+    private void _put(OcspCertId pCertId, OcspResponse pResponse)
+    {
+        if (responses.size() >= MAX_ENTRIES)
+        {
+            long now = System.currentTimeMillis();
+            responses.values().removeIf(pCached -> pCached.isExpired(now));
+            if (responses.size() >= MAX_ENTRIES)
+                responses.clear();
+        }
+        OcspResponse merged = responses.merge(pCertId, pResponse, (pOld, pNew) -> pOld.getThisUpdate().after(pNew.getThisUpdate()) ? pOld : pNew);
+        if (merged == pResponse && pResponse.getStatus() == OcspResponse.EStatus.REVOKED)
+            AbstractRevocationChecker.statusChanged();
+    }
+
+    private byte[] _fetch(URI pUri, byte[] pRequest) throws IOException
+    {
+        URLConnection connection = pUri.toURL().openConnection();
+        if (!(connection instanceof HttpURLConnection))
+            throw new IOException("unsupported OCSP responder " + pUri);
+        HttpURLConnection http = (HttpURLConnection) connection;
+        http.setConnectTimeout(timeout);
+        http.setReadTimeout(timeout);
+        http.setUseCaches(false);
+        http.setDoOutput(true);
+        http.setRequestMethod("POST");
+        http.setRequestProperty("Content-Type", "application/ocsp-request");
+        http.setRequestProperty("Accept", "application/ocsp-response");
+        http.setFixedLengthStreamingMode(pRequest.length);
+        try (OutputStream out = http.getOutputStream())
+        {
+            out.write(pRequest);
+        }
+        int responseCode = http.getResponseCode();
+        if (responseCode != HttpURLConnection.HTTP_OK)
+            throw new IOException("OCSP responder " + pUri + " failed, response code " + responseCode);
+        try (InputStream in = http.getInputStream())
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0)
+                out.write(buffer, 0, read);
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * AuthorityInfoAccessSyntax ::= SEQUENCE OF AccessDescription, AccessDescription ::= SEQUENCE { accessMethod OID,
+     * accessLocation GeneralName }, only uniformResourceIdentifier [6] names of id-ad-ocsp are used.
+     */
+    private static List<URI> _readResponders(X509Certificate pCertificate)
+    {
+        List<URI> uris = new ArrayList<>();
+        try
+        {
+            DerReader extension = DerReader.ofExtensionValue(pCertificate.getExtensionValue(AUTHORITY_INFO_ACCESS));
+            if (extension == null)
+                return Collections.emptyList();
+            extension.expect(DerReader.SEQUENCE);
+            DerReader descriptions = extension.enter();
+            while (descriptions.next())
+            {
+                DerReader description = descriptions.enter();
+                description.expect(DerReader.OID);
+                if (!OCSP_ACCESS_METHOD.equals(description.contentAsOid()) || !description.next() || description.tag() != 0x86)
+                    continue;
+                try
+                {
+                    URI uri = new URI(description.contentAsString());
+                    //https responders would validate the responder with this trustManager again
+                    if ("http".equalsIgnoreCase(uri.getScheme()))
+                        uris.add(uri);
+                } catch (URISyntaxException e)
+                {
+                    //try the next responder
+                }
+            }
+        } catch (IOException e)
+        {
+            //a damaged extension is treated like a missing one
+        }
+        return uris.isEmpty() ? Collections.emptyList() : Collections.unmodifiableList(uris);
+    }
+}
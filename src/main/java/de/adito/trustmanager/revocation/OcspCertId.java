@@ -0,0 +1,101 @@
+package de.adito.trustmanager.revocation;
+
+import javax.security.auth.x500.X500Principal;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Arrays;
+
+/**
+ * Identifies a certificate in OCSP requests and responses: the SHA-1 hashes of the name and the key of its issuer and
+ * its serial number. It is the key of the {@link OcspCache}, so a response is only used for the issuer key that signed
+ * it.
+ */
+final class OcspCertId
+{
+    static final String SHA1 = "1.3.14.3.2.26";
+
+    private final byte[] issuerNameHash;
+    private final byte[] issuerKeyHash;
+    private final BigInteger serial;
+    private final int hash;
+
+    private OcspCertId(byte[] pIssuerNameHash, byte[] pIssuerKeyHash, BigInteger pSerial)
+    {
+        issuerNameHash = pIssuerNameHash;
+        issuerKeyHash = pIssuerKeyHash;
+        serial = pSerial;
+        hash = 31 * Arrays.hashCode(pIssuerKeyHash) + pSerial.hashCode();
+    }
+
+    static OcspCertId of(X500Principal pIssuer, PublicKey pIssuerKey, BigInteger pSerial) throws IOException
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] nameHash = digest.digest(pIssuer.getEncoded());
+            //the hash covers the value of the subjectPublicKey BIT STRING of the SubjectPublicKeyInfo
+            DerReader keyInfo = new DerReader(pIssuerKey.getEncoded());
+            keyInfo.expect(DerReader.SEQUENCE);
+            DerReader fields = keyInfo.enter();
+            fields.expect(DerReader.SEQUENCE);
+            fields.expect(0x03);
+            byte[] keyHash = digest.digest(fields.contentAsBitString());
+            return new OcspCertId(nameHash, keyHash, pSerial);
+        } catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @param pCertId reader positioned on the CertID of a response
+     */
+    boolean matches(DerReader pCertId) throws IOException
+    {
+        DerReader fields = pCertId.enter();
+        fields.expect(DerReader.SEQUENCE);
+        DerReader algorithm = fields.enter();
+        algorithm.expect(DerReader.OID);
+        if (!SHA1.equals(algorithm.contentAsOid()))
+            return false;
+        fields.expect(DerReader.OCTET_STRING);
+        if (!Arrays.equals(issuerNameHash, fields.content()))
+            return false;
+        fields.expect(DerReader.OCTET_STRING);
+        if (!Arrays.equals(issuerKeyHash, fields.content()))
+            return false;
+        fields.expect(DerReader.INTEGER);
+        return serial.equals(fields.contentAsBigInteger());
+    }
+
+    /**
+     * @return an OCSPRequest for this certificate, without nonce, so the response can be cached
+     */
+    byte[] toRequest()
+    {
+        byte[] certId = DerWriter.sequence(DerWriter.algorithm(SHA1), DerWriter.octetString(issuerNameHash),
+                                           DerWriter.octetString(issuerKeyHash), DerWriter.integer(serial));
+        return DerWriter.sequence(DerWriter.sequence(DerWriter.sequence(DerWriter.sequence(certId))));
+    }
+
+    @Override
+    public boolean equals(Object pObj)
+    {
+        if (this == pObj)
+            return true;
+        if (!(pObj instanceof OcspCertId))
+            return false;
+        OcspCertId other = (OcspCertId) pObj;
+        return serial.equals(other.serial) && Arrays.equals(issuerKeyHash, other.issuerKeyHash) &&
+                Arrays.equals(issuerNameHash, other.issuerNameHash);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hash;
+    }
+}
@@ -0,0 +1,263 @@
+package de.adito.trustmanager.revocation;
+
+import javax.security.auth.x500.X500Principal;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.CRLReason;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The status of one certificate, read from a verified OCSP response (RFC 6960). Only what the revocation check needs is
+ * kept, the response itself is not.
+ */
+final class OcspResponse
+{
+    private static final String BASIC_RESPONSE = "1.3.6.1.5.5.7.48.1.1";
+    private static final String OCSP_SIGNING = "1.3.6.1.5.5.7.3.9";
+    //tolerated difference between the clock of the responder and the local one
+    private static final long CLOCK_SKEW = 5 * 60 * 1000L;
+    private static final Map<String, String> SIGNATURE_ALGORITHMS = new HashMap<>();
+
+    static
+    {
+        SIGNATURE_ALGORITHMS.put("1.2.840.113549.1.1.5", "SHA1withRSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.113549.1.1.11", "SHA256withRSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.113549.1.1.12", "SHA384withRSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.113549.1.1.13", "SHA512withRSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.10045.4.3.2", "SHA256withECDSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.10045.4.3.3", "SHA384withECDSA");
+        SIGNATURE_ALGORITHMS.put("1.2.840.10045.4.3.4", "SHA512withECDSA");
+    }
+
+    enum EStatus
+    {
+        GOOD, REVOKED, UNKNOWN
+    }
+
+    private final EStatus status;
+    private final Date thisUpdate;
+    private final long expiresAt;
+    private final Date revocationTime;
+    private final CRLReason reason;
+
+    private OcspResponse(EStatus pStatus, Date pThisUpdate, long pExpiresAt, Date pRevocationTime, CRLReason pReason)
+    {
+        status = pStatus;
+        thisUpdate = pThisUpdate;
+        expiresAt = pExpiresAt;
+        revocationTime = pRevocationTime;
+        reason = pReason;
+    }
+
+    /**
+     * Reads the status of a certificate from a DER encoded OCSPResponse. The response has to be signed by the issuer of
+     * the certificate or by a responder certificate the issuer delegated OCSP signing to.
+     *
+     * @param pCertId    the certificate the status is read for
+     * @param pIssuer    name of the issuer of the certificate
+     * @param pIssuerKey key of the issuer of the certificate
+     * @param pMaxAge    milliseconds a response without nextUpdate is used
+     * @throws IOException if the response is damaged, not successful, not signed correctly, outdated or does not contain
+     *                     the certificate
+     */
+    static OcspResponse parse(byte[] pDer, OcspCertId pCertId, X500Principal pIssuer, PublicKey pIssuerKey, long pMaxAge) throws IOException
+    {
+        DerReader response = new DerReader(pDer);
+        response.expect(DerReader.SEQUENCE);
+        DerReader fields = response.enter();
+        fields.expect(DerReader.ENUMERATED);
+        if (!fields.isLong() || fields.contentAsLong() != 0)
+            throw new IOException("OCSP response is not successful, status " + fields.contentAsBigInteger());
+        fields.expect(DerReader.CONTEXT_0);
+        DerReader responseBytes = fields.enter();
+        responseBytes.expect(DerReader.SEQUENCE);
+        DerReader typeAndValue = responseBytes.enter();
+        typeAndValue.expect(DerReader.OID);
+        if (!BASIC_RESPONSE.equals(typeAndValue.contentAsOid()))
+            throw new IOException("unsupported OCSP response type " + typeAndValue.contentAsOid());
+        typeAndValue.expect(DerReader.OCTET_STRING);
+
+        DerReader basic = typeAndValue.enter();
+        basic.expect(DerReader.SEQUENCE);
+        DerReader basicFields = basic.enter();
+        basicFields.expect(DerReader.SEQUENCE);
+        byte[] signed = basicFields.encoded();
+        DerReader responseData = basicFields.enter();
+        basicFields.expect(DerReader.SEQUENCE);
+        DerReader algorithm = basicFields.enter();
+        algorithm.expect(DerReader.OID);
+        String signatureAlgorithm = algorithm.contentAsOid();
+        basicFields.expect(0x03);
+        byte[] signature = basicFields.contentAsBitString();
+        DerReader certs = null;
+        if (basicFields.next() && basicFields.tag() == DerReader.CONTEXT_0)
+        {
+            DerReader explicit = basicFields.enter();
+            explicit.expect(DerReader.SEQUENCE);
+            certs = explicit.enter();
+        }
+        if (!_verify(signed, signatureAlgorithm, signature, pIssuerKey) && !_verifyDelegated(signed, signatureAlgorithm, signature, certs, pIssuer, pIssuerKey))
+            throw new IOException("OCSP response is not signed by the issuer or its responder");
+        return _readSingleResponse(responseData, pCertId, pMaxAge);
+    }
+
+    EStatus getStatus()
+    {
+        return status;
+    }
+
+    Date getThisUpdate()
+    {
+        return thisUpdate;
+    }
+
+    boolean isExpired(long pTime)
+    {
+        return expiresAt <= pTime;
+    }
+
+    /**
+     * @return only set if the certificate is revoked
+     */
+    Date getRevocationTime()
+    {
+        return revocationTime;
+    }
+
+    /**
+     * @return null, if the certificate is not revoked or the responder did not tell the reason
+     */
+    CRLReason getReason()
+    {
+        return reason;
+    }
+
+    /**
+     * ResponseData ::= SEQUENCE { version [0] EXPLICIT OPTIONAL, responderID, producedAt, responses SEQUENCE OF
+     * SingleResponse, responseExtensions [1] EXPLICIT OPTIONAL }
+     */
+    private static OcspResponse _readSingleResponse(DerReader pResponseData, OcspCertId pCertId, long pMaxAge) throws IOException
+    {
+        pResponseData.next();
+        if (pResponseData.tag() == DerReader.CONTEXT_0)
+            pResponseData.next();
+        pResponseData.expect(DerReader.GENERALIZED_TIME);
+        pResponseData.expect(DerReader.SEQUENCE);
+        DerReader responses = pResponseData.enter();
+        while (responses.next())
+        {
+            DerReader single = responses.enter();
+            single.expect(DerReader.SEQUENCE);
+            if (!pCertId.matches(single))
+                continue;
+            return _readStatus(single, pMaxAge);
+        }
+        throw new IOException("OCSP response does not contain the certificate");
+    }
+
+    /**
+     * SingleResponse ::= SEQUENCE { certID, certStatus, thisUpdate GeneralizedTime, nextUpdate [0] EXPLICIT OPTIONAL,
+     * singleExtensions [1] EXPLICIT OPTIONAL }, the reader is positioned on the certID.
+     */
+    private static OcspResponse _readStatus(DerReader pSingle, long pMaxAge) throws IOException
+    {
+        if (!pSingle.next())
+            throw new IOException("OCSP response without certificate status");
+        EStatus status;
+        Date revocationTime = null;
+        CRLReason reason = null;
+        switch (pSingle.tag())
+        {
+            case 0x80:
+                status = EStatus.GOOD;
+                break;
+            case 0xa1:
+                status = EStatus.REVOKED;
+                DerReader revokedInfo = pSingle.enter();
+                revokedInfo.expect(DerReader.GENERALIZED_TIME);
+                revocationTime = revokedInfo.contentAsDate();
+                if (revokedInfo.next() && revokedInfo.tag() == DerReader.CONTEXT_0)
+                {
+                    DerReader explicit = revokedInfo.enter();
+                    explicit.expect(DerReader.ENUMERATED);
+                    long code = explicit.isLong() ? explicit.contentAsLong() : -1;
+                    if (code >= 0 && code < CRLReason.values().length)
+                        reason = CRLReason.values()[(int) code];
+                }
+                break;
+            case 0x82:
+                status = EStatus.UNKNOWN;
+                break;
+            default:
+                throw new IOException("unsupported OCSP certificate status " + Integer.toHexString(pSingle.tag()));
+        }
+        pSingle.expect(DerReader.GENERALIZED_TIME);
+        Date thisUpdate = pSingle.contentAsDate();
+        Date nextUpdate = null;
+        if (pSingle.next() && pSingle.tag() == DerReader.CONTEXT_0)
+        {
+            DerReader explicit = pSingle.enter();
+            explicit.expect(DerReader.GENERALIZED_TIME);
+            nextUpdate = explicit.contentAsDate();
+        }
+        long now = System.currentTimeMillis();
+        if (thisUpdate.getTime() > now + CLOCK_SKEW)
+            throw new IOException("OCSP response is not valid before " + thisUpdate);
+        if (nextUpdate != null && nextUpdate.getTime() < now - CLOCK_SKEW)
+            throw new IOException("OCSP response expired at " + nextUpdate);
+        long expiresAt = nextUpdate == null ? now + pMaxAge : nextUpdate.getTime();
+        return new OcspResponse(status, thisUpdate, expiresAt, revocationTime, reason);
+    }
+
+    private static boolean _verify(byte[] pSigned, String pAlgorithm, byte[] pSignature, PublicKey pKey)
+    {
+        try
+        {
+            Signature signature = Signature.getInstance(SIGNATURE_ALGORITHMS.getOrDefault(pAlgorithm, pAlgorithm));
+            signature.initVerify(pKey);
+            signature.update(pSigned);
+            return signature.verify(pSignature);
+        } catch (GeneralSecurityException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * A delegated responder certificate has to be issued by the issuer of the checked certificate, has to allow OCSP
+     * signing and has to be valid. Its revocation is not checked (id-pkix-ocsp-nocheck is assumed).
+     */
+    private static boolean _verifyDelegated(byte[] pSigned, String pAlgorithm, byte[] pSignature, DerReader pCerts, X500Principal pIssuer,
+                                            PublicKey pIssuerKey) throws IOException
+    {
+        if (pCerts == null)
+            return false;
+        while (pCerts.next())
+        {
+            try
+            {
+                X509Certificate responder = (X509Certificate) CertificateFactory.getInstance("X.509")
+                        .generateCertificate(new ByteArrayInputStream(pCerts.encoded()));
+                List<String> extendedKeyUsage = responder.getExtendedKeyUsage();
+                if (!pIssuer.equals(responder.getIssuerX500Principal()) || extendedKeyUsage == null || !extendedKeyUsage.contains(OCSP_SIGNING))
+                    continue;
+                responder.verify(pIssuerKey);
+                responder.checkValidity();
+                if (_verify(pSigned, pAlgorithm, pSignature, responder.getPublicKey()))
+                    return true;
+            } catch (GeneralSecurityException e)
+            {
+                //try the next certificate
+            }
+        }
+        return false;
+    }
+}
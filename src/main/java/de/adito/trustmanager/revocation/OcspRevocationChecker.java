@@ -0,0 +1,55 @@
+package de.adito.trustmanager.revocation;
+
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.PublicKey;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+/**
+ * Checks the end-entity certificate of a path with the responses of an {@link OcspCache}. Stapled responses have to be
+ * added to the cache before the validation, see {@link OcspCache#addStapledResponse}.
+ * <p>
+ * Like {@link java.security.cert.PKIXRevocationChecker.Option#SOFT_FAIL}, a certificate is accepted if no responder
+ * answered or the responder does not know the certificate.
+ */
+public class OcspRevocationChecker extends AbstractRevocationChecker
+{
+    private final OcspCache cache;
+    private final boolean async;
+
+    /**
+     * @param pTrustAnchors the responses for certificates issued by these anchors are verified with their keys
+     */
+    public OcspRevocationChecker(OcspCache pCache, KeyStore pTrustAnchors) throws KeyStoreException
+    {
+        this(pCache, pTrustAnchors, false);
+    }
+
+    /**
+     * @param pTrustAnchors the responses for certificates issued by these anchors are verified with their keys
+     * @param pAsync        if true, the check never waits for a responder and uses the last known response. A
+     *                      revocation is noticed by the first check after the response arrived.
+     */
+    public OcspRevocationChecker(OcspCache pCache, KeyStore pTrustAnchors, boolean pAsync) throws KeyStoreException
+    {
+        super(pTrustAnchors);
+        cache = pCache;
+        async = pAsync;
+    }
+
+    @Override
+    protected void checkEndEntity(X509Certificate pCertificate, List<PublicKey> pIssuerKeys) throws CertPathValidatorException
+    {
+        for (PublicKey issuerKey : pIssuerKeys)
+        {
+            OcspResponse response = async ? cache.getCachedStatus(pCertificate, issuerKey) : cache.getStatus(pCertificate, issuerKey);
+            if (response == null)
+                continue;
+            if (response.getStatus() == OcspResponse.EStatus.REVOKED)
+                throw createRevokedException(response.getRevocationTime(), response.getReason(), pCertificate.getIssuerX500Principal());
+            return;
+        }
+    }
+}
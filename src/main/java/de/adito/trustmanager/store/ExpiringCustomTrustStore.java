@@ -0,0 +1,223 @@
+package de.adito.trustmanager.store;
+
+import de.adito.trustmanager.CertificateFacts;
+import de.adito.trustmanager.CertificateFingerprint;
+
+import java.security.cert.X509Certificate;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A trustStore for certificates that are trusted once. In contrast to {@link SimpleCustomTrustStore} the number of
+ * certificates is limited and every certificate expires after a time to live or at the end of its validity, whatever
+ * comes first. If the store is full, the least recently used certificates are removed.
+ * Lookups never wait for the eviction, it is done by one of the threads that add certificates.
+ */
+public class ExpiringCustomTrustStore implements ICustomTrustStore
+{
+    /**
+     * Maximum number of certificates that are trusted once
+     */
+    public static final String MAX_SIZE_SYSTEM_PROPERTY = "adito.trustmanager.trustonce.size";
+    /**
+     * Time in milliseconds a certificate is trusted once
+     */
+    public static final String TTL_SYSTEM_PROPERTY = "adito.trustmanager.trustonce.ttl";
+
+    private final int maxSize;
+    private final long timeToLive;
+    private final ConcurrentHashMap<String, Entry> aliases = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<CertificateFingerprint, Entry> fingerprints = new ConcurrentHashMap<>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * The size and time to live are read from {@link #MAX_SIZE_SYSTEM_PROPERTY} and {@link #TTL_SYSTEM_PROPERTY}.
+     */
+    public ExpiringCustomTrustStore()
+    {
+        this(Integer.getInteger(MAX_SIZE_SYSTEM_PROPERTY, 1000), Long.getLong(TTL_SYSTEM_PROPERTY, 24 * 60 * 60 * 1000L));
+    }
+
+    /**
+     * @param pMaxSize    maximum number of certificates
+     * @param pTimeToLive milliseconds a certificate is trusted
+     */
+    public ExpiringCustomTrustStore(int pMaxSize, long pTimeToLive)
+    {
+        maxSize = Math.max(1, pMaxSize);
+        timeToLive = pTimeToLive;
+    }
+
+    @Override
+    public X509Certificate get(String pAlias)
+    {
+        return _get(aliases.get(pAlias));
+    }
+
+    @Override
+    public X509Certificate get(CertificateFingerprint pFingerprint)
+    {
+        return _get(fingerprints.get(pFingerprint));
+    }
+
+    @Override
+    public void add(String pAlias, X509Certificate pCertificate, boolean pPersist)
+    {
+        _put(CertificateFacts.getFingerprint(pCertificate), pCertificate, pAlias);
+        _evictIfFull();
+    }
+
+    @Override
+    public void add(CertificateFingerprint pFingerprint, X509Certificate pCertificate, boolean pPersist)
+    {
+        _put(pFingerprint, pCertificate, null);
+        _evictIfFull();
+    }
+
+    /**
+     * Expired certificates are left out, even if they were not removed yet.
+     */
+    @Override
+    public Collection<X509Certificate> getCertificates()
+    {
+        long now = System.currentTimeMillis();
+        List<X509Certificate> certificates = new ArrayList<>();
+        for (Entry entry : fingerprints.values())
+            if (entry.expiresAt >= now)
+                certificates.add(entry.certificate);
+        return certificates;
+    }
+
+    /**
+     * Changes when a certificate is added or removed. A certificate that expired changes it as soon as it is removed.
+     */
+    @Override
+    public long getVersion()
+    {
+        return version.get();
+    }
+
+    public int size()
+    {
+        return fingerprints.size();
+    }
+
+    private X509Certificate _get(Entry pEntry)
+    {
+        if (pEntry == null)
+            return null;
+        long now = System.currentTimeMillis();
+        if (pEntry.expiresAt < now)
+        {
+            _remove(pEntry);
+            return null;
+        }
+        pEntry.lastAccess = now;
+        return pEntry.certificate;
+    }
+
+    /**
+     * Adding a certificate again restarts its time to live, the aliases of the former entry are kept.
+     * A certificate that is already expired was accepted by the user anyway, so only the time to live applies to it.
+     * The alias is registered before the entry is published, so an eviction right afterwards removes the alias too.
+     * The aliases of the former entry are checked again after they were copied.
+     *
+     * @param pAlias null, if the certificate is only added by its fingerprint
+     */
+    private void _put(CertificateFingerprint pFingerprint, X509Certificate pCertificate, String pAlias)
+    {
+        long now = System.currentTimeMillis();
+        long expiresAt = now + timeToLive;
+        long notAfter = CertificateFacts.getNotAfter(pCertificate);
+        if (notAfter >= now)
+            expiresAt = Math.min(expiresAt, notAfter);
+        Entry entry = new Entry(pFingerprint, pCertificate, expiresAt, now);
+        if (pAlias != null)
+        {
+            entry.aliases.add(pAlias);
+            aliases.put(pAlias, entry);
+        }
+        Entry former = fingerprints.put(pFingerprint, entry);
+        if (former != null)
+        {
+            for (String alias : former.aliases)
+            {
+                entry.aliases.add(alias);
+                aliases.replace(alias, former, entry);
+            }
+            //an eviction of the entry meanwhile might have missed the aliases that were copied afterwards
+            if (fingerprints.get(pFingerprint) != entry)
+                for (String alias : entry.aliases)
+                    aliases.remove(alias, entry);
+        }
+        version.incrementAndGet();
+    }
+
+    private void _remove(Entry pEntry)
+    {
+        if (fingerprints.remove(pEntry.fingerprint, pEntry))
+            version.incrementAndGet();
+        for (String alias : pEntry.aliases)
+            aliases.remove(alias, pEntry);
+    }
+
+    /**
+     * Only one thread evicts at a time, the others just add their certificate. Expired certificates are removed first,
+     * afterwards the least recently used ones until the store is 90% full. So the entries are sorted once per tenth of
+     * the maximum size of new certificates, not for every new certificate.
+     */
+    private void _evictIfFull()
+    {
+        if (fingerprints.size() <= maxSize || !evicting.compareAndSet(false, true))
+            return;
+        try
+        {
+            long now = System.currentTimeMillis();
+            List<Entry> entries = new ArrayList<>(fingerprints.values());
+            for (Entry entry : entries)
+                if (entry.expiresAt < now)
+                    _remove(entry);
+
+            int excess = fingerprints.size() - (maxSize - maxSize / 10);
+            if (excess > 0)
+            {
+                //lastAccess changes concurrently, so it is read once before sorting
+                List<Map.Entry<Long, Entry>> byLastAccess = new ArrayList<>();
+                for (Entry entry : entries)
+                    if (entry.expiresAt >= now)
+                        byLastAccess.add(new AbstractMap.SimpleImmutableEntry<>(entry.lastAccess, entry));
+                byLastAccess.sort(Map.Entry.comparingByKey());
+                for (int i = 0; i < excess && i < byLastAccess.size(); i++)
+                    _remove(byLastAccess.get(i).getValue());
+            }
+        } finally
+        {
+            evicting.set(false);
+        }
+    }
+
+    private static final class Entry
+    {
+        private final CertificateFingerprint fingerprint;
+        private final X509Certificate certificate;
+        private final long expiresAt;
+        private final Set<String> aliases = ConcurrentHashMap.newKeySet();
+        private volatile long lastAccess;
+
+        Entry(CertificateFingerprint pFingerprint, X509Certificate pCertificate, long pExpiresAt, long pNow)
+        {
+            fingerprint = pFingerprint;
+            certificate = pCertificate;
+            expiresAt = pExpiresAt;
+            lastAccess = pNow;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package de.adito.trustmanager.store;
+
+/**
+ * Groups concurrent writes of a store. A thread that calls {@link #commit()} returns after a write has finished that
+ * started after the call. The first thread waits for a short window and writes for all threads that arrived meanwhile,
+ * so the store is written and synced once instead of once per thread.
+ * If the write fails, the waiting threads try it again on their own.
+ */
+class GroupCommitter
+{
+    private final Runnable write;
+    private final long window;
+    private long requested;
+    private long committed;
+    private boolean writing;
+
+    /**
+     * @param pWrite  writes the current state of the store
+     * @param pWindow milliseconds the first thread waits for other threads
+     */
+    GroupCommitter(Runnable pWrite, long pWindow)
+    {
+        write = pWrite;
+        window = pWindow;
+    }
+
+    void commit()
+    {
+        long ticket;
+        synchronized (this)
+        {
+            ticket = ++requested;
+            boolean interrupted = false;
+            while (writing && committed < ticket)
+            {
+                try
+                {
+                    wait();
+                } catch (InterruptedException e)
+                {
+                    //the certificate has to be written anyway
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (committed >= ticket)
+                return;
+            writing = true;
+        }
+
+        if (window > 0)
+            _sleep();
+        long covered;
+        synchronized (this)
+        {
+            covered = requested;
+        }
+        boolean success = false;
+        try
+        {
+            write.run();
+            success = true;
+        } finally
+        {
+            synchronized (this)
+            {
+                writing = false;
+                if (success)
+                    committed = Math.max(committed, covered);
+                notifyAll();
+            }
+        }
+    }
+
+    private void _sleep()
+    {
+        try
+        {
+            Thread.sleep(window);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,6 +1,10 @@
 package de.adito.trustmanager.store;
 
+import de.adito.trustmanager.CertificateFingerprint;
+
 import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Collections;
 
 public interface ICustomTrustStore
 {
@@ -8,4 +12,35 @@ public interface ICustomTrustStore
     X509Certificate get(String pAlias);
     
     void add(String pAlias, X509Certificate pCertificate, boolean pPersistent);
+    
+    /**
+     * Looks up a certificate by its fingerprint. Stores should override this to avoid creating the hex alias.
+     */
+    default X509Certificate get(CertificateFingerprint pFingerprint)
+    {
+        return get(pFingerprint.toHexString());
+    }
+    
+    default void add(CertificateFingerprint pFingerprint, X509Certificate pCertificate, boolean pPersistent)
+    {
+        add(pFingerprint.toHexString(), pCertificate, pPersistent);
+    }
+    
+    /**
+     * @return the trusted certificates of this store, eg. to announce them as accepted issuers. Stores that cannot list
+     * their certificates cheaply return none.
+     */
+    default Collection<X509Certificate> getCertificates()
+    {
+        return Collections.emptyList();
+    }
+    
+    /**
+     * @return a number that changes whenever certificates are added to or removed from this store, so callers can tell
+     * whether the result of {@link #getCertificates()} is still current
+     */
+    default long getVersion()
+    {
+        return 0;
+    }
 }
@@ -1,29 +1,81 @@
 package de.adito.trustmanager.store;
 
+import de.adito.trustmanager.CertificateFacts;
+import de.adito.trustmanager.CertificateFingerprint;
 import de.adito.trustmanager.TrustManagerUtil;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This class creates a simple trustStore to permanently safe trustedCertificates in a given path or working directory.
- * For volatile trusted certificate, simpleTrustStore is used. For further information on simpleTrustStore refer to
- * {@link SimpleCustomTrustStore}.
+ * For volatile trusted certificate, a bounded trustStore with expiring entries is used. For further information refer
+ * to {@link ExpiringCustomTrustStore}.
+ * All certificates of the keyStore are indexed by their fingerprint, so they are found independent of their alias.
+ * Lookups read an immutable snapshot of the keyStore without locking, adding a certificate publishes a new snapshot.
+ * <p>
+ * Several processes can share the same file. Writes lock the file {@code <path>.lock}, merge the current content of
+ * the file and write the result, so no process overwrites the certificates of another one. The lock file is deleted
+ * after every write. If {@link #RELOAD_INTERVAL_SYSTEM_PROPERTY} is set, the file is also checked for changes in the
+ * background and certificates that were added by another process are merged into this store.
  */
 public class JKSCustomTrustStore implements ICustomTrustStore
 {
     public static final String TURST_STORE_PATH_SYSTEM_PROPERTY = "de.adito.trustmanager.truststore.path";
     public static final String TRUST_STORE_PATH = "trustStore.jks";
+    /**
+     * Milliseconds a write of the trustStore waits for other certificates that are added concurrently
+     */
+    public static final String GROUP_COMMIT_WINDOW_SYSTEM_PROPERTY = "adito.trustmanager.truststore.groupcommit.window";
+    /**
+     * Milliseconds between two checks of the trustStore file for changes of other processes, 0 (default) disables the check
+     */
+    public static final String RELOAD_INTERVAL_SYSTEM_PROPERTY = "adito.trustmanager.truststore.reload.interval";
+
+    private static final ScheduledExecutorService RELOADER =
+            Executors.newSingleThreadScheduledExecutor(TrustManagerUtil.newDaemonThreadFactory("trustmanager-reload"));
+    //file locks are held by the whole JVM, so stores of the same path in one JVM have to be serialized as well
+    private static final Map<Path, Object> PATH_LOCKS = new ConcurrentHashMap<>();
 
+    private final GroupCommitter committer = new GroupCommitter(() -> saveKeyStore(getKeyStore()), getGroupCommitWindow());
     private Path path;
     private KeyStore ks;
-    private ICustomTrustStore simpleTrustStore;
+    private volatile Snapshot snapshot;
+    private volatile FileStamp stamp;
+    private ICustomTrustStore volatileTrustStore;
     
     public JKSCustomTrustStore()
     {
@@ -37,8 +89,32 @@ public class JKSCustomTrustStore implements ICustomTrustStore
             pPath = Paths.get(property == null ? TRUST_STORE_PATH : property);
         }
         path = pPath.toAbsolutePath();
+        stamp = FileStamp.of(path);
         ks = _loadKS();
-        simpleTrustStore = new SimpleCustomTrustStore();
+        snapshot = _indexKS(ks);
+        volatileTrustStore = new ExpiringCustomTrustStore();
+        long reloadInterval = Long.getLong(RELOAD_INTERVAL_SYSTEM_PROPERTY, 0);
+        if (reloadInterval > 0)
+            _scheduleReload(this, reloadInterval);
+    }
+    
+    /**
+     * Merges the certificates that were added to the file by another process. Lookups are not blocked meanwhile.
+     *
+     * @return true, if the file was changed since it was read the last time
+     */
+    public boolean reloadIfChanged()
+    {
+        FileStamp current = FileStamp.of(path);
+        if (current.equals(stamp))
+            return false;
+        KeyStore fileKeyStore = _loadKS();
+        synchronized (this)
+        {
+            _merge(fileKeyStore, ks);
+            stamp = current;
+        }
+        return true;
     }
 
     protected KeyStore getKeyStore()
@@ -46,65 +122,417 @@ public class JKSCustomTrustStore implements ICustomTrustStore
         return ks;
     }
     
-    private KeyStore _loadKS()
+    protected Path getPath()
+    {
+        return path;
+    }
+    
+    /**
+     * Adds the certificate to the keyStore and the fingerprint index without writing anything to the file.
+     * Must be called while holding the monitor of this store.
+     */
+    protected void putEntry(String pAlias, X509Certificate pCertificate)
     {
+        putEntries(Collections.singletonMap(pAlias, pCertificate));
+    }
+    
+    /**
+     * Adds the certificates like {@link #putEntry(String, X509Certificate)}, but publishes a single snapshot for all of
+     * them. Certificates are added in the iteration order of pCertificates. Must be called while holding the monitor
+     * of this store.
+     */
+    protected void putEntries(Map<String, X509Certificate> pCertificates)
+    {
+        if (pCertificates.isEmpty())
+            return;
         try
         {
-            return TrustManagerUtil.loadKeyStore("changeit", path);
-        } catch (IOException | NoSuchAlgorithmException | CertificateException | KeyStoreException e)
+            for (Map.Entry<String, X509Certificate> entry : pCertificates.entrySet())
+                ks.setCertificateEntry(entry.getKey(), entry.getValue());
+            snapshot = snapshot.with(pCertificates);
+        } catch (KeyStoreException e)
         {
             throw new RuntimeException(e);
         }
     }
     
-    private void _saveKS()
+    /**
+     * Makes a permanently added certificate durable. The entry is already part of the keyStore at this point, so the
+     * default implementation rewrites the whole keyStore file. Certificates that are added concurrently are written
+     * together. Called without holding the monitor of this store, returns after the certificate was written.
+     */
+    protected void persistEntry(String pAlias, X509Certificate pCertificate)
+    {
+        committer.commit();
+    }
+    
+    /**
+     * Writes pKeyStore atomically to the path of this store. Certificates that another process wrote to the file
+     * meanwhile are merged into pKeyStore and this store first, the file is locked until the write is finished.
+     * Only the merge and the serialization hold the monitor of this store.
+     */
+    protected void saveKeyStore(KeyStore pKeyStore)
+    {
+        synchronized (PATH_LOCKS.computeIfAbsent(path, pPath -> new Object()))
+        {
+            Path lockPath = Paths.get(path + ".lock");
+            FileChannel lockChannel = null;
+            try
+            {
+                lockChannel = _lockFile(lockPath);
+                FileStamp current = FileStamp.of(path);
+                KeyStore fileKeyStore = current.equals(stamp) ? null : _loadKS();
+                byte[] content;
+                synchronized (this)
+                {
+                    if (fileKeyStore != null)
+                    {
+                        _merge(fileKeyStore, ks);
+                        if (pKeyStore != ks)
+                            _merge(fileKeyStore, pKeyStore);
+                    }
+                    content = TrustManagerUtil.storeKeyStore(pKeyStore, "changeit");
+                }
+                TrustManagerUtil.writeAtomically(path, content);
+                stamp = FileStamp.of(path);
+            } catch (IOException | KeyStoreException | NoSuchAlgorithmException | CertificateException e)
+            {
+                throw new RuntimeException(e);
+            } finally
+            {
+                _unlockFile(lockPath, lockChannel);
+            }
+        }
+    }
+    
+    /**
+     * Locks the lock file. Another process may delete the file after it was opened here, so a random token is written
+     * to the locked file and read back by its path. If the path refers to another file meanwhile, locking starts over.
+     */
+    private static FileChannel _lockFile(Path pLockPath) throws IOException
+    {
+        byte[] token = new byte[16];
+        ThreadLocalRandom.current().nextBytes(token);
+        while (true)
+        {
+            FileChannel channel;
+            try
+            {
+                channel = FileChannel.open(pLockPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } catch (AccessDeniedException e)
+            {
+                //Windows denies to create a file that is still being deleted
+                _sleep();
+                continue;
+            }
+            try
+            {
+                //the token is not part of the locked region, Windows would not let it be read by its path otherwise
+                channel.lock(Integer.MAX_VALUE, 1, false);
+                channel.truncate(0);
+                channel.write(ByteBuffer.wrap(token), 0);
+                if (Arrays.equals(token, Files.readAllBytes(pLockPath)))
+                    return channel;
+            } catch (NoSuchFileException e)
+            {
+                //deleted by the former owner of the lock
+            } catch (IOException | RuntimeException e)
+            {
+                channel.close();
+                throw e;
+            }
+            channel.close();
+        }
+    }
+    
+    /**
+     * The file is deleted while it is still locked, so a process waiting for the lock notices it has to start over.
+     */
+    private static void _unlockFile(Path pLockPath, FileChannel pLockChannel)
+    {
+        if (pLockChannel == null)
+            return;
+        try
+        {
+            try
+            {
+                Files.deleteIfExists(pLockPath);
+            } finally
+            {
+                pLockChannel.close();
+            }
+        } catch (IOException e)
+        {
+            //the next write removes or reuses the lock file
+        }
+    }
+    
+    private static void _sleep() throws IOException
     {
         try
         {
-            TrustManagerUtil.saveKeyStore(ks, "changeit", path);
-        } catch (IOException | KeyStoreException | NoSuchAlgorithmException | CertificateException e)
+            Thread.sleep(1);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the lock of the trustStore");
+        }
+    }
+    
+    /**
+     * Adds the certificates of pSource whose alias is missing in pTarget. Certificates are never removed or replaced,
+     * so a certificate that was just added to this store survives a reload. Must be called while holding the monitor.
+     */
+    private void _merge(KeyStore pSource, KeyStore pTarget)
+    {
+        try
+        {
+            Map<String, X509Certificate> missing = new HashMap<>();
+            for (String alias : Collections.list(pSource.aliases()))
+            {
+                Certificate certificate = pSource.getCertificate(alias);
+                if (certificate instanceof X509Certificate && !pTarget.containsAlias(alias))
+                    missing.put(alias, (X509Certificate) certificate);
+            }
+            if (missing.isEmpty())
+                return;
+            for (Map.Entry<String, X509Certificate> entry : missing.entrySet())
+                pTarget.setCertificateEntry(entry.getKey(), entry.getValue());
+            if (pTarget == ks)
+                snapshot = snapshot.with(missing);
+        } catch (KeyStoreException e)
         {
             throw new RuntimeException(e);
         }
     }
     
+    /**
+     * The task only references the store weakly, it ends as soon as the store is not used anymore.
+     */
+    private static void _scheduleReload(JKSCustomTrustStore pStore, long pInterval)
+    {
+        WeakReference<JKSCustomTrustStore> storeReference = new WeakReference<>(pStore);
+        AtomicReference<ScheduledFuture<?>> task = new AtomicReference<>();
+        task.set(RELOADER.scheduleWithFixedDelay(() -> {
+            JKSCustomTrustStore store = storeReference.get();
+            if (store == null)
+                task.get().cancel(false);
+            else
+            {
+                try
+                {
+                    store.reloadIfChanged();
+                } catch (RuntimeException e)
+                {
+                    //eg. the file is replaced right now, the next check will try again
+                }
+            }
+        }, pInterval, pInterval, TimeUnit.MILLISECONDS));
+    }
+    
+    private KeyStore _loadKS()
+    {
+        try
+        {
+            return TrustManagerUtil.loadKeyStore("changeit", path);
+        } catch (IOException | NoSuchAlgorithmException | CertificateException | KeyStoreException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
     
-    @Override
-    public synchronized X509Certificate get(String pAlias)
+    private static Snapshot _indexKS(KeyStore pKeyStore)
     {
         try
         {
-            X509Certificate certificate = simpleTrustStore.get(pAlias);
-            if (certificate != null)
-                return certificate;
-            return (X509Certificate) ks.getCertificate(pAlias);
+            Map<String, X509Certificate> aliasIndex = new HashMap<>();
+            Map<CertificateFingerprint, X509Certificate> fingerprintIndex = new HashMap<>();
+            Enumeration<String> aliases = pKeyStore.aliases();
+            while (aliases.hasMoreElements())
+            {
+                String alias = aliases.nextElement();
+                Certificate certificate = pKeyStore.getCertificate(alias);
+                if (certificate instanceof X509Certificate)
+                {
+                    aliasIndex.put(Snapshot.normalize(alias), (X509Certificate) certificate);
+                    fingerprintIndex.put(CertificateFacts.getFingerprint((X509Certificate) certificate), (X509Certificate) certificate);
+                }
+            }
+            return new Snapshot(aliasIndex, fingerprintIndex, 0);
         } catch (KeyStoreException e)
         {
             throw new RuntimeException(e);
         }
     }
     
+    
+    @Override
+    public X509Certificate get(String pAlias)
+    {
+        X509Certificate certificate = volatileTrustStore.get(pAlias);
+        if (certificate != null)
+            return certificate;
+        return snapshot.aliases.get(Snapshot.normalize(pAlias));
+    }
+    
     /**
      * The certificate will be added to a permanent file, if pPersist is true. Otherwise it will be saved in a map in
-     * {@link SimpleCustomTrustStore}
+     * {@link ExpiringCustomTrustStore}
      *
      * @param pAlias A alias name to be able to differentiate the certificates after saving them in a file
      */
     @Override
-    public synchronized void add(String pAlias, X509Certificate pCertificate, boolean pPersist)
+    public void add(String pAlias, X509Certificate pCertificate, boolean pPersist)
     {
-        try
+        if (pPersist)
         {
-            if (pPersist)
+            synchronized (this)
             {
-                ks.setCertificateEntry(pAlias, pCertificate);
-                _saveKS();
-            } else
-                simpleTrustStore.add(pAlias, pCertificate, pPersist);
-        } catch (KeyStoreException e)
+                putEntry(pAlias, pCertificate);
+            }
+            persistEntry(pAlias, pCertificate);
+        } else
+            volatileTrustStore.add(pAlias, pCertificate, false);
+    }
+    
+    @Override
+    public X509Certificate get(CertificateFingerprint pFingerprint)
+    {
+        X509Certificate certificate = volatileTrustStore.get(pFingerprint);
+        if (certificate != null)
+            return certificate;
+        return snapshot.fingerprints.get(pFingerprint);
+    }
+    
+    /**
+     * The hex form of the fingerprint is used as alias, if the certificate is added permanently.
+     */
+    @Override
+    public void add(CertificateFingerprint pFingerprint, X509Certificate pCertificate, boolean pPersist)
+    {
+        if (pPersist)
+            add(pFingerprint.toHexString(), pCertificate, true);
+        else
+            volatileTrustStore.add(pFingerprint, pCertificate, false);
+    }
+    
+    /**
+     * @return the permanently trusted certificates followed by the ones that are trusted once
+     */
+    @Override
+    public Collection<X509Certificate> getCertificates()
+    {
+        Collection<X509Certificate> volatileCertificates = volatileTrustStore.getCertificates();
+        List<X509Certificate> certificates = new ArrayList<>(snapshot.fingerprints.size() + volatileCertificates.size());
+        certificates.addAll(snapshot.fingerprints.values());
+        certificates.addAll(volatileCertificates);
+        return certificates;
+    }
+    
+    /**
+     * Every published snapshot and every change of the volatile trustStore increase the version, so the sum changes
+     * with both of them.
+     */
+    @Override
+    public long getVersion()
+    {
+        return snapshot.version + volatileTrustStore.getVersion();
+    }
+    
+    /**
+     * @return milliseconds a write of the trustStore waits for other certificates, see {@link #GROUP_COMMIT_WINDOW_SYSTEM_PROPERTY}
+     */
+    protected static long getGroupCommitWindow()
+    {
+        return Long.getLong(GROUP_COMMIT_WINDOW_SYSTEM_PROPERTY, 5);
+    }
+    
+    /**
+     * The certificates of the keyStore by alias and by fingerprint. A snapshot is never modified after it was published.
+     */
+    private static final class Snapshot
+    {
+        private final Map<String, X509Certificate> aliases;
+        private final Map<CertificateFingerprint, X509Certificate> fingerprints;
+        private final long version;
+        
+        Snapshot(Map<String, X509Certificate> pAliases, Map<CertificateFingerprint, X509Certificate> pFingerprints, long pVersion)
         {
-            throw new RuntimeException(e);
+            aliases = pAliases;
+            fingerprints = pFingerprints;
+            version = pVersion;
+        }
+        
+        Snapshot with(Map<String, X509Certificate> pCertificates)
+        {
+            Map<String, X509Certificate> newAliases = new HashMap<>(aliases);
+            Map<CertificateFingerprint, X509Certificate> newFingerprints = new HashMap<>(fingerprints);
+            for (Map.Entry<String, X509Certificate> entry : pCertificates.entrySet())
+            {
+                X509Certificate replaced = newAliases.put(normalize(entry.getKey()), entry.getValue());
+                if (replaced != null && !newAliases.containsValue(replaced))
+                    newFingerprints.remove(CertificateFacts.getFingerprint(replaced));
+                newFingerprints.put(CertificateFacts.getFingerprint(entry.getValue()), entry.getValue());
+            }
+            return new Snapshot(newAliases, newFingerprints, version + 1);
+        }
+        
+        /**
+         * Aliases of a keyStore are case insensitive
+         */
+        static String normalize(String pAlias)
+        {
+            return pAlias.toLowerCase(Locale.ENGLISH);
         }
     }
     
+    /**
+     * Identifies a version of the file. The file key changes with every atomic replace, the modification time and the
+     * size cover file systems without file keys.
+     */
+    private static final class FileStamp
+    {
+        private static final FileStamp MISSING = new FileStamp(null, -1, -1);
+        
+        private final Object fileKey;
+        private final long lastModified;
+        private final long size;
+        
+        private FileStamp(Object pFileKey, long pLastModified, long pSize)
+        {
+            fileKey = pFileKey;
+            lastModified = pLastModified;
+            size = pSize;
+        }
+        
+        static FileStamp of(Path pPath)
+        {
+            try
+            {
+                BasicFileAttributes attributes = Files.readAttributes(pPath, BasicFileAttributes.class);
+                return new FileStamp(attributes.fileKey(), attributes.lastModifiedTime().toMillis(), attributes.size());
+            } catch (NoSuchFileException e)
+            {
+                return MISSING;
+            } catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+        
+        @Override
+        public boolean equals(Object pObj)
+        {
+            if (!(pObj instanceof FileStamp))
+                return false;
+            FileStamp other = (FileStamp) pObj;
+            return Objects.equals(fileKey, other.fileKey) && lastModified == other.lastModified && size == other.size;
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(fileKey, lastModified, size);
+        }
+    }
 }
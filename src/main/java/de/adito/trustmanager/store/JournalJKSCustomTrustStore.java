@@ -0,0 +1,354 @@
+package de.adito.trustmanager.store;
+
+import de.adito.trustmanager.TrustManagerUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link JKSCustomTrustStore} that does not rewrite the whole keyStore file for every permanently added certificate.
+ * The certificate is appended to a journal next to the keyStore file instead, which is merged into the keyStore in the
+ * background as soon as it holds enough records. Loading replays the keyStore file and the journal.
+ * <p>
+ * A record of the journal consists of the alias, the DER encoded certificate and a CRC32. An incomplete record at the
+ * end of the journal, eg. after a crash, is dropped.
+ * <p>
+ * In contrast to {@link JKSCustomTrustStore}, the file must only be used by a single process. The journal is neither
+ * locked nor read by a reload, and a merge replaces the journal that another process might still be appending to.
+ */
+public class JournalJKSCustomTrustStore extends JKSCustomTrustStore
+{
+    /**
+     * Number of journal records that trigger a merge into the keyStore file
+     */
+    public static final String COMPACTION_THRESHOLD_SYSTEM_PROPERTY = "adito.trustmanager.journal.compaction.threshold";
+    public static final String JOURNAL_SUFFIX = ".journal";
+    public static final String COMPACTING_JOURNAL_SUFFIX = ".journal.old";
+
+    private static final ExecutorService COMPACTOR =
+            Executors.newCachedThreadPool(TrustManagerUtil.newDaemonThreadFactory("trustmanager-journal"));
+
+    private final Path journalPath;
+    private final Path compactingPath;
+    private final int compactionThreshold;
+    private final Object compactionLock = new Object();
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private final GroupCommitter journalCommitter = new GroupCommitter(this::_syncJournal, getGroupCommitWindow());
+    private FileChannel journal;
+    private int journalRecords;
+
+    public JournalJKSCustomTrustStore()
+    {
+        this(null);
+    }
+
+    public JournalJKSCustomTrustStore(Path pPath)
+    {
+        this(pPath, Integer.getInteger(COMPACTION_THRESHOLD_SYSTEM_PROPERTY, 64));
+    }
+
+    /**
+     * @param pCompactionThreshold number of journal records that trigger a merge into the keyStore file
+     */
+    public JournalJKSCustomTrustStore(Path pPath, int pCompactionThreshold)
+    {
+        super(pPath);
+        journalPath = Paths.get(getPath() + JOURNAL_SUFFIX);
+        compactingPath = Paths.get(getPath() + COMPACTING_JOURNAL_SUFFIX);
+        compactionThreshold = Math.max(1, pCompactionThreshold);
+        synchronized (this)
+        {
+            //a journal that is left over by an interrupted merge is older than the current journal
+            Map<String, X509Certificate> replayed = new LinkedHashMap<>();
+            _replay(compactingPath, false, replayed);
+            journalRecords = _replay(journalPath, true, replayed);
+            putEntries(replayed);
+            journal = _openJournal();
+        }
+        if (Files.exists(compactingPath) || journalRecords >= compactionThreshold)
+            _scheduleCompaction();
+    }
+
+    /**
+     * Merges the journal into the keyStore file. New certificates can be added meanwhile, they are written to a new
+     * journal.
+     */
+    public void compact()
+    {
+        synchronized (compactionLock)
+        {
+            KeyStore snapshot;
+            synchronized (this)
+            {
+                if (journalRecords == 0 && !Files.exists(compactingPath))
+                    return;
+                snapshot = _copyKeyStore();
+                _rotateJournal();
+            }
+            saveKeyStore(snapshot);
+            try
+            {
+                Files.deleteIfExists(compactingPath);
+            } catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * The record is appended while holding the monitor of this store, concurrently added certificates share one sync
+     * of the journal.
+     */
+    @Override
+    protected void persistEntry(String pAlias, X509Certificate pCertificate)
+    {
+        synchronized (this)
+        {
+            _appendRecord(pAlias, pCertificate);
+            if (++journalRecords >= compactionThreshold)
+                _scheduleCompaction();
+        }
+        journalCommitter.commit();
+    }
+
+    private void _appendRecord(String pAlias, X509Certificate pCertificate)
+    {
+        try
+        {
+            byte[] alias = pAlias.getBytes(StandardCharsets.UTF_8);
+            if (alias.length > 0xffff)
+                throw new IllegalArgumentException("alias is too long: " + pAlias);
+            byte[] der = pCertificate.getEncoded();
+            ByteBuffer record = ByteBuffer.allocate(2 + alias.length + 4 + der.length + 4);
+            record.putShort((short) alias.length).put(alias).putInt(der.length).put(der);
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), 0, record.position());
+            record.putInt((int) crc.getValue());
+            ((Buffer) record).flip();
+            while (record.hasRemaining())
+                journal.write(record);
+        } catch (IOException | CertificateEncodingException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void _syncJournal()
+    {
+        FileChannel channel;
+        synchronized (this)
+        {
+            channel = journal;
+        }
+        try
+        {
+            channel.force(false);
+        } catch (ClosedChannelException e)
+        {
+            //the journal was rotated meanwhile, it was synced before it was closed
+        } catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void _scheduleCompaction()
+    {
+        if (compactionScheduled.compareAndSet(false, true))
+            COMPACTOR.execute(() -> {
+                compactionScheduled.set(false);
+                try
+                {
+                    compact();
+                } catch (RuntimeException e)
+                {
+                    //the journal still holds all records, the next added certificate schedules the merge again
+                }
+            });
+    }
+
+    /**
+     * The records are only collected, so all journals are published as a single snapshot of the keyStore.
+     *
+     * @param pTruncate true, if an incomplete record at the end should be cut off, so new records can be appended
+     * @param pTarget   receives the certificates by alias, a later record replaces an earlier one
+     * @return the number of replayed records
+     */
+    private int _replay(Path pJournal, boolean pTruncate, Map<String, X509Certificate> pTarget)
+    {
+        if (!Files.isRegularFile(pJournal))
+            return 0;
+        try
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(pJournal));
+            CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+            int records = 0;
+            int validLength = 0;
+            for (Record record = _readRecord(buffer); record != null; record = _readRecord(buffer))
+            {
+                X509Certificate certificate = (X509Certificate) certificateFactory.generateCertificate(new ByteArrayInputStream(record.der));
+                //removed first, so the replacing record also determines the position, like a sequential replay
+                pTarget.remove(record.alias);
+                pTarget.put(record.alias, certificate);
+                records++;
+                validLength = buffer.position();
+            }
+            if (pTruncate && validLength < buffer.limit())
+            {
+                try (FileChannel channel = FileChannel.open(pJournal, StandardOpenOption.WRITE))
+                {
+                    channel.truncate(validLength);
+                    channel.force(false);
+                }
+            }
+            return records;
+        } catch (IOException | CertificateException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the length of the complete records at the start of the journal
+     */
+    private static long _getValidLength(Path pJournal) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(pJournal));
+        int validLength = 0;
+        while (_readRecord(buffer) != null)
+            validLength = buffer.position();
+        return validLength;
+    }
+
+    /**
+     * @return null, if there is no complete record left
+     */
+    private static Record _readRecord(ByteBuffer pBuffer)
+    {
+        int start = pBuffer.position();
+        if (pBuffer.remaining() < 2)
+            return null;
+        byte[] alias = new byte[pBuffer.getShort() & 0xffff];
+        if (pBuffer.remaining() < alias.length + 4)
+            return null;
+        pBuffer.get(alias);
+        int derLength = pBuffer.getInt();
+        if (derLength < 0 || pBuffer.remaining() < derLength + 4)
+            return null;
+        byte[] der = new byte[derLength];
+        pBuffer.get(der);
+        CRC32 crc = new CRC32();
+        crc.update(pBuffer.array(), start, pBuffer.position() - start);
+        if (pBuffer.getInt() != (int) crc.getValue())
+            return null;
+        return new Record(new String(alias, StandardCharsets.UTF_8), der);
+    }
+
+    private FileChannel _openJournal()
+    {
+        try
+        {
+            return FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The current journal is moved aside until the keyStore file was written. If a former merge did not finish, the
+     * journal is appended to the one that was moved aside back then. An incomplete record at its end is cut off first,
+     * otherwise the replay would stop there, and the result is synced before the current journal is deleted.
+     */
+    private void _rotateJournal()
+    {
+        try
+        {
+            journal.force(false);
+            journal.close();
+            if (Files.exists(compactingPath))
+            {
+                try (FileChannel channel = FileChannel.open(compactingPath, StandardOpenOption.WRITE))
+                {
+                    channel.truncate(_getValidLength(compactingPath));
+                    ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(journalPath));
+                    long position = channel.size();
+                    while (records.hasRemaining())
+                        position += channel.write(records, position);
+                    channel.force(true);
+                }
+                Files.delete(journalPath);
+            } else
+                Files.move(journalPath, compactingPath);
+            TrustManagerUtil.syncDirectory(journalPath.toAbsolutePath().getParent());
+            journalRecords = 0;
+        } catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        } finally
+        {
+            journal = _openJournal();
+        }
+    }
+
+    private KeyStore _copyKeyStore()
+    {
+        try
+        {
+            KeyStore source = getKeyStore();
+            KeyStore copy = KeyStore.getInstance(source.getType());
+            copy.load(null, null);
+            for (String alias : Collections.list(source.aliases()))
+            {
+                KeyStore.ProtectionParameter protection =
+                        source.isKeyEntry(alias) ? new KeyStore.PasswordProtection("changeit".toCharArray()) : null;
+                copy.setEntry(alias, source.getEntry(alias, protection), protection);
+            }
+            return copy;
+        } catch (KeyStoreException | NoSuchAlgorithmException | UnrecoverableEntryException | IOException |
+                CertificateException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A complete record of the journal.
+     */
+    private static final class Record
+    {
+        private final String alias;
+        private final byte[] der;
+
+        Record(String pAlias, byte[] pDer)
+        {
+            alias = pAlias;
+            der = pDer;
+        }
+    }
+}
@@ -0,0 +1,544 @@
+package de.adito.trustmanager.store;
+
+import de.adito.trustmanager.CertificateFacts;
+import de.adito.trustmanager.CertificateFingerprint;
+import de.adito.trustmanager.TrustManagerUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A trustStore for a very large number of permanently trusted certificates. The file is memory mapped and consists of
+ * an index, sorted by the SHA-256 fingerprint of the certificates, and the DER encoded certificates. A lookup is a
+ * binary search in the index, only a found certificate is decoded. The last decoded certificates are kept, so a
+ * certificate that is looked up by every handshake is not decoded again. Opening the store neither reads nor decodes
+ * the certificates, so the startup time and the heap usage do not depend on the size of the store.
+ * <p>
+ * Certificates can only be found by their fingerprint, the alias of a certificate is the hex form of its fingerprint.
+ * Added certificates are appended to a log next to the file, concurrently added certificates are written together.
+ * As soon as the log holds {@link #MERGE_THRESHOLD_SYSTEM_PROPERTY} certificates, it is merged into a new file that
+ * replaces the old one atomically. The mapped file can't be replaced on Windows, there the log is merged when the store
+ * is opened the next time. Certificates that are trusted once are kept in an {@link ExpiringCustomTrustStore}.
+ * <p>
+ * File layout: magic, version and number of certificates (3 ints), for every certificate the fingerprint (32 bytes),
+ * the offset of the certificate relative to the end of the index (long) and its length (int), followed by the
+ * certificates. A record of the log consists of the fingerprint, the length (int) and the certificate. An incomplete
+ * record at the end of the log, eg. after a crash, is dropped.
+ * <p>
+ * Like {@link JournalJKSCustomTrustStore}, the file must only be used by a single process.
+ */
+public class MappedIndexCustomTrustStore implements ICustomTrustStore
+{
+    /**
+     * Number of certificates in the log that trigger a merge into the file
+     */
+    public static final String MERGE_THRESHOLD_SYSTEM_PROPERTY = "adito.trustmanager.mappedindex.merge.threshold";
+    public static final String LOG_SUFFIX = ".added";
+
+    private static final int MAGIC = 0x41544958;
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 12;
+    private static final int INDEX_ENTRY_LENGTH = CertificateFingerprint.LENGTH + 8 + 4;
+    private static final int RECORD_HEADER_LENGTH = CertificateFingerprint.LENGTH + 4;
+    private static final int MAX_DECODED = 256;
+
+    private final Path path;
+    private final Path logPath;
+    private final int mergeThreshold;
+    private final ICustomTrustStore volatileTrustStore = new ExpiringCustomTrustStore();
+    private final Map<CertificateFingerprint, X509Certificate> pending = new ConcurrentHashMap<>();
+    //the certificates of the log, they are only decoded by a lookup
+    private final Map<CertificateFingerprint, byte[]> logged = new ConcurrentHashMap<>();
+    private final Map<CertificateFingerprint, X509Certificate> decoded = new ConcurrentHashMap<>();
+    private final GroupCommitter committer;
+    private volatile Mapping mapping;
+
+    public MappedIndexCustomTrustStore(Path pPath)
+    {
+        this(pPath, Integer.getInteger(MERGE_THRESHOLD_SYSTEM_PROPERTY, 1024));
+    }
+
+    /**
+     * @param pMergeThreshold number of certificates in the log that trigger a merge into the file
+     */
+    public MappedIndexCustomTrustStore(Path pPath, int pMergeThreshold)
+    {
+        path = pPath.toAbsolutePath();
+        logPath = Paths.get(path + LOG_SUFFIX);
+        mergeThreshold = Math.max(1, pMergeThreshold);
+        try
+        {
+            _readLog();
+            if (!logged.isEmpty())
+            {
+                try
+                {
+                    //this store did not map the file yet, so it can be replaced on every platform
+                    _merge(_readIndex());
+                } catch (AccessDeniedException e)
+                {
+                    //another store of the same file still maps it, the log stays in use
+                }
+            }
+            if (mapping == null)
+                mapping = _map();
+        } catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+        committer = new GroupCommitter(this::_write, JKSCustomTrustStore.getGroupCommitWindow());
+    }
+
+    /**
+     * @return the number of permanently trusted certificates
+     */
+    public int size()
+    {
+        return mapping.count + logged.size() + pending.size();
+    }
+
+    /**
+     * Only the hex form of a fingerprint is accepted as alias, see {@link CertificateFingerprint#toHexString()}.
+     */
+    @Override
+    public X509Certificate get(String pAlias)
+    {
+        X509Certificate certificate = volatileTrustStore.get(pAlias);
+        if (certificate != null)
+            return certificate;
+        CertificateFingerprint fingerprint = _parseAlias(pAlias);
+        return fingerprint == null ? null : get(fingerprint);
+    }
+
+    @Override
+    public X509Certificate get(CertificateFingerprint pFingerprint)
+    {
+        X509Certificate certificate = volatileTrustStore.get(pFingerprint);
+        if (certificate == null)
+            certificate = pending.get(pFingerprint);
+        if (certificate == null)
+            certificate = decoded.get(pFingerprint);
+        if (certificate == null)
+        {
+            certificate = _decodeStored(pFingerprint);
+            if (certificate != null)
+            {
+                //the decoded certificates are only a cache, so they are simply dropped if there are too many
+                if (decoded.size() >= MAX_DECODED)
+                    decoded.clear();
+                decoded.put(pFingerprint, certificate);
+            }
+        }
+        return certificate;
+    }
+
+    /**
+     * The alias is ignored for permanently trusted certificates, they can be found by their fingerprint.
+     */
+    @Override
+    public void add(String pAlias, X509Certificate pCertificate, boolean pPersist)
+    {
+        if (pPersist)
+            add(CertificateFacts.getFingerprint(pCertificate), pCertificate, true);
+        else
+            volatileTrustStore.add(pAlias, pCertificate, false);
+    }
+
+    @Override
+    public void add(CertificateFingerprint pFingerprint, X509Certificate pCertificate, boolean pPersist)
+    {
+        if (!pPersist)
+            volatileTrustStore.add(pFingerprint, pCertificate, false);
+        else if (!_isStored(pFingerprint))
+        {
+            pending.put(pFingerprint, pCertificate);
+            committer.commit();
+        }
+    }
+
+    /**
+     * Adds all certificates permanently with a single write, eg. to import an existing keyStore.
+     */
+    public void addAll(Iterable<X509Certificate> pCertificates)
+    {
+        for (X509Certificate certificate : pCertificates)
+            pending.put(CertificateFacts.getFingerprint(certificate), certificate);
+        committer.commit();
+    }
+
+    /**
+     * Only the certificates that are trusted once are listed. The permanently trusted ones would have to be decoded,
+     * which this store avoids on purpose.
+     */
+    @Override
+    public Collection<X509Certificate> getCertificates()
+    {
+        return volatileTrustStore.getCertificates();
+    }
+
+    @Override
+    public long getVersion()
+    {
+        return volatileTrustStore.getVersion();
+    }
+
+    /**
+     * @return the certificate of the log or the file, null if it is not stored
+     */
+    private X509Certificate _decodeStored(CertificateFingerprint pFingerprint)
+    {
+        byte[] der = logged.get(pFingerprint);
+        if (der != null)
+            return _decode(der);
+        try
+        {
+            return mapping.get(pFingerprint);
+        } catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Only the index is searched, the certificate is not decoded.
+     */
+    private boolean _isStored(CertificateFingerprint pFingerprint)
+    {
+        return logged.containsKey(pFingerprint) || mapping.find(pFingerprint) >= 0;
+    }
+
+    private Mapping _map() throws IOException
+    {
+        if (!Files.isRegularFile(path))
+            return new Mapping(null, 0);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new Mapping(buffer, _checkHeader(buffer, buffer.limit()));
+        }
+    }
+
+    /**
+     * Reads the header and the index of the file into the heap, without mapping the file.
+     */
+    private Mapping _readIndex() throws IOException
+    {
+        if (!Files.isRegularFile(path))
+            return new Mapping(null, 0);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            ByteBuffer header = _read(channel, HEADER_LENGTH);
+            int count = _checkHeader(header, channel.size());
+            return new Mapping(_read(channel, HEADER_LENGTH + count * INDEX_ENTRY_LENGTH), count);
+        }
+    }
+
+    /**
+     * @return the number of certificates
+     */
+    private int _checkHeader(ByteBuffer pBuffer, long pFileSize) throws IOException
+    {
+        if (pBuffer.limit() < HEADER_LENGTH || pBuffer.getInt(0) != MAGIC || pBuffer.getInt(4) != VERSION)
+            throw new IOException("not a trust index file: " + path);
+        int count = pBuffer.getInt(8);
+        if (count < 0 || HEADER_LENGTH + (long) count * INDEX_ENTRY_LENGTH > pFileSize)
+            throw new IOException("trust index file is truncated: " + path);
+        return count;
+    }
+
+    /**
+     * Reads the complete records of the log. The fingerprint of a record has to match its certificate, an incomplete
+     * record at the end is cut off, so the next record is appended behind the last complete one.
+     */
+    private void _readLog() throws IOException
+    {
+        if (!Files.isRegularFile(logPath))
+            return;
+        try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            long size = channel.size();
+            long position = 0;
+            while (size - position >= RECORD_HEADER_LENGTH)
+            {
+                ByteBuffer header = _read(channel, position, RECORD_HEADER_LENGTH);
+                int length = header.getInt(CertificateFingerprint.LENGTH);
+                if (length <= 0 || length > size - position - RECORD_HEADER_LENGTH)
+                    break;
+                byte[] fingerprint = new byte[CertificateFingerprint.LENGTH];
+                header.get(fingerprint);
+                byte[] der = _read(channel, position + RECORD_HEADER_LENGTH, length).array();
+                if (!Arrays.equals(fingerprint, _sha256(der)))
+                    break;
+                logged.put(CertificateFingerprint.fromBytes(fingerprint, 0), der);
+                position += RECORD_HEADER_LENGTH + length;
+            }
+            if (position < size)
+                channel.truncate(position);
+        }
+    }
+
+    /**
+     * Appends the pending certificates to the log and merges the log into the file if it got large enough.
+     */
+    private synchronized void _write()
+    {
+        Map<CertificateFingerprint, X509Certificate> written = new HashMap<>(pending);
+        Map<CertificateFingerprint, byte[]> added = new HashMap<>();
+        List<ByteBuffer> records = new ArrayList<>();
+        try
+        {
+            for (Map.Entry<CertificateFingerprint, X509Certificate> entry : written.entrySet())
+            {
+                if (_isStored(entry.getKey()) || added.containsKey(entry.getKey()))
+                    continue;
+                byte[] der = entry.getValue().getEncoded();
+                added.put(entry.getKey(), der);
+                ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH).put(entry.getKey().toByteArray()).putInt(der.length);
+                ((Buffer) header).flip();
+                records.add(header);
+                records.add(ByteBuffer.wrap(der));
+            }
+
+            if (!added.isEmpty())
+            {
+                boolean created = !Files.exists(logPath);
+                try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                            StandardOpenOption.APPEND))
+                {
+                    for (ByteBuffer record : records)
+                        while (record.hasRemaining())
+                            channel.write(record);
+                    channel.force(false);
+                }
+                if (created)
+                    TrustManagerUtil.syncDirectory(logPath.getParent());
+                logged.putAll(added);
+            }
+        } catch (IOException | CertificateEncodingException e)
+        {
+            throw new RuntimeException(e);
+        }
+        written.forEach(pending::remove);
+
+        if (logged.size() >= mergeThreshold)
+        {
+            try
+            {
+                _merge(mapping);
+            } catch (AccessDeniedException e)
+            {
+                //Windows does not replace a mapped file, the log is merged when the store is opened the next time
+            } catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Merges the certificates of the log into the sorted index and deletes the log afterwards. The certificates of the
+     * old file are copied as one block without mapping them, the logged ones are appended behind them.
+     *
+     * @param pOld the index of the current file
+     */
+    private void _merge(Mapping pOld) throws IOException
+    {
+        TreeMap<CertificateFingerprint, byte[]> added = new TreeMap<>();
+        for (Map.Entry<CertificateFingerprint, byte[]> entry : logged.entrySet())
+            if (pOld.find(entry.getKey()) < 0)
+                added.put(entry.getKey(), entry.getValue());
+
+        if (!added.isEmpty())
+        {
+            int count = pOld.count + added.size();
+            ByteBuffer index = ByteBuffer.allocate(HEADER_LENGTH + count * INDEX_ENTRY_LENGTH);
+            index.putInt(MAGIC).putInt(VERSION).putInt(count);
+            long oldDataLength = pOld.count == 0 ? 0 : Files.size(path) - pOld.dataPosition;
+            long offset = oldDataLength;
+            int i = 0;
+            for (Map.Entry<CertificateFingerprint, byte[]> entry : added.entrySet())
+            {
+                //copy the old entries that are smaller than the added one
+                while (i < pOld.count && entry.getKey().compareTo(pOld.buffer, pOld.indexPosition(i)) > 0)
+                    pOld.copyIndexEntry(i++, index);
+                index.put(entry.getKey().toByteArray()).putLong(offset).putInt(entry.getValue().length);
+                offset += entry.getValue().length;
+            }
+            while (i < pOld.count)
+                pOld.copyIndexEntry(i++, index);
+            ((Buffer) index).flip();
+
+            TrustManagerUtil.writeAtomically(path, pChannel -> {
+                while (index.hasRemaining())
+                    pChannel.write(index);
+                if (oldDataLength > 0)
+                {
+                    try (FileChannel old = FileChannel.open(path, StandardOpenOption.READ))
+                    {
+                        for (long position = pOld.dataPosition; position < pOld.dataPosition + oldDataLength; )
+                            position += old.transferTo(position, pOld.dataPosition + oldDataLength - position, pChannel);
+                    }
+                }
+                for (byte[] der : added.values())
+                {
+                    ByteBuffer buffer = ByteBuffer.wrap(der);
+                    while (buffer.hasRemaining())
+                        pChannel.write(buffer);
+                }
+            });
+        }
+        mapping = _map();
+        logged.clear();
+        Files.deleteIfExists(logPath);
+        TrustManagerUtil.syncDirectory(logPath.getParent());
+    }
+
+    private static ByteBuffer _read(FileChannel pChannel, int pLength) throws IOException
+    {
+        return _read(pChannel, 0, pLength);
+    }
+
+    private static ByteBuffer _read(FileChannel pChannel, long pPosition, int pLength) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(pLength);
+        while (buffer.hasRemaining())
+            if (pChannel.read(buffer, pPosition + buffer.position()) < 0)
+                throw new IOException("unexpected end of file");
+        ((Buffer) buffer).flip();
+        return buffer;
+    }
+
+    private static byte[] _sha256(byte[] pData)
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256").digest(pData);
+        } catch (NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static X509Certificate _decode(byte[] pDer)
+    {
+        try
+        {
+            return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(pDer));
+        } catch (CertificateException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static CertificateFingerprint _parseAlias(String pAlias)
+    {
+        if (pAlias == null || pAlias.length() != CertificateFingerprint.LENGTH * 3 - 1)
+            return null;
+        byte[] bytes = new byte[CertificateFingerprint.LENGTH];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            int high = Character.digit(pAlias.charAt(i * 3), 16);
+            int low = Character.digit(pAlias.charAt(i * 3 + 1), 16);
+            if (high < 0 || low < 0 || (i > 0 && pAlias.charAt(i * 3 - 1) != ':'))
+                return null;
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return CertificateFingerprint.fromBytes(bytes, 0);
+    }
+
+    /**
+     * The mapped file, or only its index if it was read into the heap for a merge. It is never modified, a merge maps
+     * the new file.
+     */
+    private static final class Mapping
+    {
+        private final ByteBuffer buffer;
+        private final int count;
+        private final int dataPosition;
+
+        Mapping(ByteBuffer pBuffer, int pCount)
+        {
+            buffer = pBuffer;
+            count = pCount;
+            dataPosition = HEADER_LENGTH + pCount * INDEX_ENTRY_LENGTH;
+        }
+
+        X509Certificate get(CertificateFingerprint pFingerprint) throws IOException
+        {
+            int index = find(pFingerprint);
+            if (index < 0)
+                return null;
+            int position = indexPosition(index);
+            return _decode(buffer.getLong(position + CertificateFingerprint.LENGTH), buffer.getInt(position + CertificateFingerprint.LENGTH + 8));
+        }
+
+        /**
+         * @return the position of the fingerprint in the index, -1 if it is not found
+         */
+        int find(CertificateFingerprint pFingerprint)
+        {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high)
+            {
+                int middle = (low + high) >>> 1;
+                int result = pFingerprint.compareTo(buffer, indexPosition(middle));
+                if (result > 0)
+                    low = middle + 1;
+                else if (result < 0)
+                    high = middle - 1;
+                else
+                    return middle;
+            }
+            return -1;
+        }
+
+        int indexPosition(int pIndex)
+        {
+            return HEADER_LENGTH + pIndex * INDEX_ENTRY_LENGTH;
+        }
+
+        void copyIndexEntry(int pIndex, ByteBuffer pTarget)
+        {
+            ByteBuffer entry = buffer.duplicate();
+            ((Buffer) entry).position(indexPosition(pIndex)).limit(indexPosition(pIndex) + INDEX_ENTRY_LENGTH);
+            pTarget.put(entry);
+        }
+
+        /**
+         * @throws IOException if the certificate is not within the file, ie. the index is damaged
+         */
+        private X509Certificate _decode(long pOffset, int pLength) throws IOException
+        {
+            if (pOffset < 0 || pLength <= 0 || pOffset > buffer.limit() - dataPosition - (long) pLength)
+                throw new IOException("trust index file is damaged, certificate at " + pOffset + " with " + pLength + " bytes is outside of the file");
+            byte[] der = new byte[pLength];
+            ByteBuffer certificate = buffer.duplicate();
+            ((Buffer) certificate).position((int) (dataPosition + pOffset));
+            certificate.get(der);
+            return MappedIndexCustomTrustStore._decode(der);
+        }
+    }
+}
@@ -1,17 +1,26 @@
 package de.adito.trustmanager.store;
 
+import de.adito.trustmanager.CertificateFacts;
+import de.adito.trustmanager.CertificateFingerprint;
+
 import java.security.cert.X509Certificate;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * A simple trustStore to save volatile certificates
+ * A simple trustStore to save volatile certificates. Every certificate can also be found by its fingerprint, no
+ * matter which alias it was added with. The store can be used by concurrent handshakes.
  */
 
 public class SimpleCustomTrustStore implements ICustomTrustStore
 {
     
-    private Map<String, X509Certificate> mapping = new HashMap<>();
+    private Map<String, X509Certificate> mapping = new ConcurrentHashMap<>();
+    private Map<CertificateFingerprint, X509Certificate> fingerprints = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
     
     @Override
     public X509Certificate get(String pAlias)
@@ -23,6 +32,33 @@ public class SimpleCustomTrustStore implements ICustomTrustStore
     public void add(String pAlias, X509Certificate pCertificate, boolean pPersist)
     {
         mapping.put(pAlias, pCertificate);
+        fingerprints.put(CertificateFacts.getFingerprint(pCertificate), pCertificate);
+        version.incrementAndGet();
+    }
+    
+    @Override
+    public X509Certificate get(CertificateFingerprint pFingerprint)
+    {
+        return fingerprints.get(pFingerprint);
+    }
+    
+    @Override
+    public void add(CertificateFingerprint pFingerprint, X509Certificate pCertificate, boolean pPersist)
+    {
+        fingerprints.put(pFingerprint, pCertificate);
+        version.incrementAndGet();
+    }
+    
+    @Override
+    public Collection<X509Certificate> getCertificates()
+    {
+        return Collections.unmodifiableCollection(fingerprints.values());
+    }
+    
+    @Override
+    public long getVersion()
+    {
+        return version.get();
     }
     
 }
@@ -0,0 +1,108 @@
+package de.adito.trustmanager;
+
+import de.adito.trustmanager.confirmingui.CertificateExceptionDetail;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of classifying the exceptions of self signed, untrusted root and wrong host chains. The classify benchmarks use a
+ * new exception for every call, so only the facts of the certificates are cached. The selfSigned benchmarks compare the
+ * uncached tiered check with the signature verification it replaces, for a certificate that is not self signed.
+ * <p>
+ * Run it with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=de.adito.trustmanager.Bench_CertificateExceptionDetail} or from the IDE.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Bench_CertificateExceptionDetail
+{
+    private X509Certificate[] selfSignedChain;
+    private X509Certificate[] untrustedChain;
+    private X509Certificate[] trustedChain;
+    private X509Certificate leaf;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        selfSignedChain = TestCertificates.selfSignedChain();
+        untrustedChain = TestCertificates.untrustedChain();
+        trustedChain = TestCertificates.trustedChain();
+        leaf = TestCertificates.get("leaf");
+    }
+
+    @Benchmark
+    public CertificateExceptionDetail classifySelfSigned() throws CertificateException
+    {
+        return CertificateExceptionDetail.createExceptionDetail(selfSignedChain, new BenchException("PKIX path building failed"), "self-signed.test");
+    }
+
+    @Benchmark
+    public CertificateExceptionDetail classifyUntrustedRoot() throws CertificateException
+    {
+        return CertificateExceptionDetail.createExceptionDetail(untrustedChain, new BenchException("PKIX path building failed"), "untrusted.test");
+    }
+
+    @Benchmark
+    public CertificateExceptionDetail classifyWrongHost() throws CertificateException
+    {
+        return CertificateExceptionDetail.createExceptionDetail(trustedChain, new BenchException("No name matching other.test found"), "other.test");
+    }
+
+    @Benchmark
+    public boolean selfSignedTiered() throws CertificateException
+    {
+        return CertificateFacts.checkSelfSigned(leaf);
+    }
+
+    @Benchmark
+    public boolean selfSignedVerify()
+    {
+        try
+        {
+            leaf.verify(leaf.getPublicKey());
+            return true;
+        } catch (GeneralSecurityException e)
+        {
+            return false;
+        }
+    }
+
+    public static void main(String[] pArgs) throws RunnerException
+    {
+        Options options = new OptionsBuilder()
+                .include(Bench_CertificateExceptionDetail.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+
+    /**
+     * Without stack trace, so creating the exception does not dominate the measurement.
+     */
+    private static class BenchException extends CertificateException
+    {
+        private static final long serialVersionUID = 1L;
+
+        BenchException(String pMessage)
+        {
+            super(pMessage);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace()
+        {
+            return this;
+        }
+    }
+}
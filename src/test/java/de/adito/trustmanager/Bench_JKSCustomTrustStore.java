@@ -0,0 +1,83 @@
+package de.adito.trustmanager;
+
+import de.adito.trustmanager.store.JKSCustomTrustStore;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read throughput of {@link JKSCustomTrustStore} while certificates are added permanently. The main method runs the
+ * benchmark with a growing number of reading threads and one writing thread, the reads should scale with the cores.
+ * <p>
+ * Run it with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=de.adito.trustmanager.Bench_JKSCustomTrustStore} or from the IDE.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Bench_JKSCustomTrustStore
+{
+    private Path path;
+    private JKSCustomTrustStore trustStore;
+    private CertificateFingerprint trusted;
+    private CertificateFingerprint unknown;
+    private X509Certificate certificate;
+    private int writes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        path = Files.createTempFile("trustStore", ".jks");
+        Files.delete(path);
+        trustStore = new JKSCustomTrustStore(path);
+        certificate = TestCertificates.get("selfsigned");
+        trustStore.add("selfsigned", certificate, true);
+        trusted = CertificateFacts.getFingerprint(certificate);
+        unknown = CertificateFacts.getFingerprint(TestCertificates.get("expired"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        Files.deleteIfExists(path);
+    }
+
+    @Benchmark
+    @Group("readWhileWriting")
+    public boolean read()
+    {
+        return trustStore.get(trusted) != null && trustStore.get(unknown) == null;
+    }
+
+    @Benchmark
+    @Group("readWhileWriting")
+    @GroupThreads(1)
+    public void write()
+    {
+        //the same certificate under a new alias, so the lookups above keep their result
+        trustStore.add("selfsigned" + (writes++ % 64), certificate, true);
+    }
+
+    public static void main(String[] pArgs) throws RunnerException
+    {
+        for (int readers = 1; readers <= Runtime.getRuntime().availableProcessors(); readers *= 2)
+        {
+            Options options = new OptionsBuilder()
+                    .include(Bench_JKSCustomTrustStore.class.getSimpleName())
+                    .threadGroups(readers, 1)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package de.adito.trustmanager;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.*;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Provides the certificates of testCertificates.jks, so tests can run without network access.
+ * ca signed leaf (localhost, *.example.org, 127.0.0.1) and revocable (CRL distribution point on 127.0.0.1:18573),
+ * otherca signed untrusted, selfsigned and expired are self signed.
+ */
+class TestCertificates
+{
+    static final String PASSWORD = "changeit";
+    private static KeyStore keyStore;
+
+    private TestCertificates()
+    {
+    }
+
+    static synchronized KeyStore getKeyStore()
+    {
+        if (keyStore == null)
+        {
+            try (InputStream is = TestCertificates.class.getResourceAsStream("testCertificates.jks"))
+            {
+                KeyStore ks = KeyStore.getInstance("JKS");
+                ks.load(is, PASSWORD.toCharArray());
+                keyStore = ks;
+            } catch (IOException | GeneralSecurityException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+        return keyStore;
+    }
+
+    static X509Certificate get(String pAlias)
+    {
+        try
+        {
+            return (X509Certificate) getKeyStore().getCertificate(pAlias);
+        } catch (KeyStoreException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static PrivateKey getPrivateKey(String pAlias)
+    {
+        try
+        {
+            return (PrivateKey) getKeyStore().getKey(pAlias, PASSWORD.toCharArray());
+        } catch (GeneralSecurityException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static X509Certificate[] trustedChain()
+    {
+        return new X509Certificate[]{get("leaf"), get("ca")};
+    }
+
+    static X509Certificate[] untrustedChain()
+    {
+        return new X509Certificate[]{get("untrusted"), get("otherca")};
+    }
+
+    static X509Certificate[] selfSignedChain()
+    {
+        return new X509Certificate[]{get("selfsigned")};
+    }
+
+    static X509Certificate[] expiredChain()
+    {
+        return new X509Certificate[]{get("expired")};
+    }
+
+    /**
+     * @return a trustManager that only trusts the given certificates as trust anchors
+     */
+    static X509ExtendedTrustManager trustManager(String... pTrustedAliases)
+    {
+        try
+        {
+            KeyStore ks = KeyStore.getInstance("JKS");
+            ks.load(null, PASSWORD.toCharArray());
+            for (String alias : pTrustedAliases)
+                ks.setCertificateEntry(alias, get(alias));
+            return TrustManagerBuilder.buildTrustManager(ks);
+        } catch (IOException | GeneralSecurityException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Delegates to another trustManager and counts the server checks.
+     */
+    static class CountingTrustManager extends X509ExtendedTrustManager
+    {
+        final AtomicInteger serverChecks = new AtomicInteger();
+        private final X509ExtendedTrustManager delegate;
+
+        CountingTrustManager(X509ExtendedTrustManager pDelegate)
+        {
+            delegate = pDelegate;
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] pChain, String pAuthType, Socket pSocket) throws CertificateException
+        {
+            delegate.checkClientTrusted(pChain, pAuthType, pSocket);
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] pChain, String pAuthType, Socket pSocket) throws CertificateException
+        {
+            serverChecks.incrementAndGet();
+            delegate.checkServerTrusted(pChain, pAuthType, pSocket);
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] pChain, String pAuthType, SSLEngine pSSLEngine) throws CertificateException
+        {
+            delegate.checkClientTrusted(pChain, pAuthType, pSSLEngine);
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] pChain, String pAuthType, SSLEngine pSSLEngine) throws CertificateException
+        {
+            serverChecks.incrementAndGet();
+            delegate.checkServerTrusted(pChain, pAuthType, pSSLEngine);
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] pChain, String pAuthType) throws CertificateException
+        {
+            delegate.checkClientTrusted(pChain, pAuthType);
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] pChain, String pAuthType) throws CertificateException
+        {
+            serverChecks.incrementAndGet();
+            delegate.checkServerTrusted(pChain, pAuthType);
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers()
+        {
+            return delegate.getAcceptedIssuers();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package de.adito.trustmanager;
+
+import de.adito.trustmanager.confirmingui.CertificateExceptionDetail;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.ResourceBundle;
+
+public class Test_CertificateExceptionDetail
+{
+    private final Locale defaultLocale = Locale.getDefault();
+
+    @After
+    public void tearDown()
+    {
+        Locale.setDefault(defaultLocale);
+    }
+
+    @Test
+    public void testExpiredMessage() throws CertificateException
+    {
+        for (Locale locale : new Locale[]{Locale.ENGLISH, Locale.GERMANY, Locale.US})
+        {
+            Locale.setDefault(locale);
+            CertificateExceptionDetail detail = CertificateExceptionDetail.createExceptionDetail(
+                    TestCertificates.expiredChain(), new CertificateException("PKIX path building failed"), "expired.test");
+            _assertMessage(detail, TestCertificates.expiredChain()[0], "expired.test");
+        }
+    }
+
+    @Test
+    public void testWrongHostMessage() throws CertificateException
+    {
+        for (Locale locale : new Locale[]{Locale.ENGLISH, Locale.GERMANY})
+        {
+            Locale.setDefault(locale);
+            CertificateExceptionDetail detail = CertificateExceptionDetail.createExceptionDetail(
+                    TestCertificates.trustedChain(), new CertificateException("No name matching other.test found"), "other.test");
+            _assertMessage(detail, TestCertificates.trustedChain()[0], "other.test");
+            _assertMessage(detail, TestCertificates.trustedChain()[0], null);
+        }
+    }
+
+    /**
+     * The message contains the current time, so it is rendered again if the second changed in between.
+     */
+    private static void _assertMessage(CertificateExceptionDetail pDetail, X509Certificate pCertificate, String pSimpleInfo)
+    {
+        String expected = null;
+        String message = null;
+        for (int i = 0; i < 3 && (expected == null || !expected.equals(message)); i++)
+        {
+            message = pDetail.makeExceptionMessage(pSimpleInfo);
+            expected = _makeFormerMessage(pDetail, pCertificate, pSimpleInfo);
+        }
+        Assert.assertEquals(expected, message);
+    }
+
+    /**
+     * The message as it was built before the templates were cached.
+     */
+    private static String _makeFormerMessage(CertificateExceptionDetail pDetail, X509Certificate pCertificate, String pSimpleInfo)
+    {
+        ResourceBundle bundle = ResourceBundle.getBundle("de.adito.trustmanager.dialogMessage", Locale.getDefault());
+        if (pSimpleInfo == null)
+            pSimpleInfo = bundle.getString("simpleInfoNull");
+        String message = bundle.getString("firstMsg") + "\n\n";
+        String errorCode = "";
+        for (CertificateExceptionDetail.EType type : pDetail.getTypes())
+        {
+            switch (type)
+            {
+                case EXPIRED:
+                    message += String.format(bundle.getString("expired1") + "%1$s " + bundle.getString("expired2") + "%2$s.\n",
+                                             _formatDate(pCertificate.getNotAfter()), _formatDate(new Date()));
+                    if (errorCode.isEmpty())
+                        errorCode = "SEC_ERROR_EXPIRED_CERTIFICATE";
+                    break;
+                case WRONG_HOST:
+                    message += bundle.getString("wrongHost") + "\n" + String.join(", ", CertificateFacts.getSubjectAlternativeNames(pCertificate)) + "\n";
+                    errorCode = "SSL_ERROR_BAD_CERT_DOMAIN";
+                    break;
+                case SELF_SIGNED:
+                    message += bundle.getString("selfSigned") + "\n";
+                    errorCode = "PKIX_ERROR_SELF_SIGNED_CERT";
+                    break;
+                case UNTRUSTED_ROOT:
+                    message += bundle.getString("untrustedRoot") + "\n";
+                    errorCode = "SEC_ERROR_UNKNOWN_ISSUER";
+                    break;
+                default:
+                    message += bundle.getString("unknown") + "\n";
+                    errorCode = "UNKNOWN_CERT_ERROR";
+                    break;
+            }
+        }
+        return message + "\n" + bundle.getString("errorCode") + "\t" + errorCode + "\n" +
+                bundle.getString("server") + "\t" + pSimpleInfo + "\n\n" +
+                bundle.getString("endWarningMsg") + "\n";
+    }
+
+    private static String _formatDate(Date pDate)
+    {
+        return DateFormat.getDateInstance(DateFormat.FULL, Locale.getDefault()).format(pDate) + ", " +
+                DateFormat.getTimeInstance(DateFormat.DEFAULT, Locale.getDefault()).format(pDate);
+    }
+}
@@ -0,0 +1,80 @@
+package de.adito.trustmanager;
+
+import de.adito.trustmanager.confirmingui.CertificateExceptionDetail;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.ArrayList;
+
+public class Test_CertificateFacts
+{
+    @Test
+    public void testSelfSigned() throws CertificateException
+    {
+        Assert.assertTrue("Certificate should be self signed", CertificateFacts.isSelfSigned(TestCertificates.get("selfsigned")));
+        Assert.assertTrue("Root certificate should be self signed", CertificateFacts.isSelfSigned(TestCertificates.get("ca")));
+        Assert.assertFalse("Certificate signed by a CA is not self signed", CertificateFacts.isSelfSigned(TestCertificates.get("leaf")));
+    }
+
+    @Test
+    public void testSelfSignedWithoutSignatureCheck() throws CertificateException
+    {
+        //the certificates of other issuers are rejected by their names, without verifying the signature
+        for (String alias : Arrays.asList("selfsigned", "ca", "otherca", "leaf", "untrusted", "expired", "revocable"))
+        {
+            X509Certificate certificate = TestCertificates.get(alias);
+            Assert.assertEquals("Wrong classification of " + alias, _verifies(certificate), CertificateFacts.checkSelfSigned(certificate));
+        }
+    }
+
+    @Test
+    public void testSubjectAlternativeNames()
+    {
+        Assert.assertEquals("Unexpected subject alternative names", Arrays.asList("localhost", "*.example.org", "127.0.0.1"),
+                            new ArrayList<>(CertificateFacts.getSubjectAlternativeNames(TestCertificates.get("leaf"))));
+        Assert.assertTrue("CA has no subject alternative names", CertificateFacts.getSubjectAlternativeNames(TestCertificates.get("ca")).isEmpty());
+    }
+
+    @Test
+    public void testValidity()
+    {
+        X509Certificate expired = TestCertificates.get("expired");
+        Assert.assertFalse("Certificate should be expired", CertificateFacts.isValidAt(expired, System.currentTimeMillis()));
+        Assert.assertEquals("Wrong notAfter", expired.getNotAfter().getTime(), CertificateFacts.getNotAfter(expired));
+    }
+
+    @Test
+    public void testFingerprintIsComputedOnce()
+    {
+        X509Certificate certificate = TestCertificates.get("leaf");
+        Assert.assertSame("Fingerprint should be remembered per certificate", CertificateFacts.getFingerprint(certificate),
+                          CertificateFacts.getFingerprint(certificate));
+    }
+
+    @Test
+    public void testExceptionDetailIsCreatedOnce() throws CertificateException
+    {
+        X509Certificate[] chain = TestCertificates.selfSignedChain();
+        CertificateException exception = new CertificateException("PKIX path building failed");
+        CertificateExceptionDetail detail = CertificateExceptionDetail.createExceptionDetail(chain, exception, "self-signed.test");
+        Assert.assertSame("Detail of the same exception should be reused", detail,
+                          CertificateExceptionDetail.createExceptionDetail(chain, exception, "self-signed.test"));
+        Assert.assertNotSame("Detail for another host must not be reused", detail,
+                             CertificateExceptionDetail.createExceptionDetail(chain, exception, "other.test"));
+    }
+
+    private static boolean _verifies(X509Certificate pCertificate)
+    {
+        try
+        {
+            pCertificate.verify(pCertificate.getPublicKey());
+            return true;
+        } catch (Exception e)
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package de.adito.trustmanager;
+
+import de.adito.trustmanager.store.JKSCustomTrustStore;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+
+public class Test_CertificateFingerprint
+{
+    @Test
+    public void testMatchesSHA256() throws Exception
+    {
+        X509Certificate certificate = TestCertificates.get("leaf");
+        byte[] expected = MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded());
+        CertificateFingerprint fingerprint = CertificateFingerprint.of(certificate);
+
+        Assert.assertArrayEquals("Fingerprint is not the SHA-256 hash of the certificate", expected, fingerprint.toByteArray());
+        Assert.assertEquals("Hex form does not match", TrustManagerUtil.toHexString(expected), fingerprint.toHexString());
+        Assert.assertEquals("Fingerprint did not survive its byte form", fingerprint, CertificateFingerprint.fromBytes(expected, 0));
+    }
+
+    @Test
+    public void testEquality()
+    {
+        CertificateFingerprint leaf = CertificateFingerprint.of(TestCertificates.get("leaf"));
+        Assert.assertEquals("Same certificate should have the same fingerprint", leaf, CertificateFingerprint.of(TestCertificates.get("leaf")));
+        Assert.assertEquals("Same certificate should have the same hashCode", leaf.hashCode(),
+                            CertificateFingerprint.of(TestCertificates.get("leaf")).hashCode());
+        Assert.assertNotEquals("Different certificates should have different fingerprints", leaf,
+                               CertificateFingerprint.of(TestCertificates.get("ca")));
+        Assert.assertNotEquals("Chain fingerprint should differ from the certificate fingerprint", leaf,
+                               CertificateFingerprint.ofChain(TestCertificates.trustedChain()));
+    }
+
+    @Test
+    public void testLegacyAliasIsFoundByFingerprint() throws Exception
+    {
+        Path path = Files.createTempFile("trustStore", ".jks");
+        Files.delete(path);
+        try
+        {
+            X509Certificate certificate = TestCertificates.get("selfsigned");
+            new JKSCustomTrustStore(path).add(TrustManagerUtil.hashSHA1(certificate), certificate, true);
+
+            JKSCustomTrustStore reloaded = new JKSCustomTrustStore(path);
+            Assert.assertEquals("Certificate persisted with a SHA-1 alias should be found by its fingerprint", certificate,
+                                reloaded.get(CertificateFingerprint.of(certificate)));
+        } finally
+        {
+            Files.deleteIfExists(path);
+        }
+    }
+}
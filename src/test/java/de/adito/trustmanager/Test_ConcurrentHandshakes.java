@@ -0,0 +1,120 @@
+package de.adito.trustmanager;
+
+import de.adito.trustmanager.confirmingui.CertificateExceptionDetail;
+import de.adito.trustmanager.store.JKSCustomTrustStore;
+import org.junit.*;
+
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.io.IOException;
+import java.nio.file.*;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hammers checkServerTrusted from several threads with trusted, self signed and untrusted chains. Two default
+ * trustManagers are used, so every chain passes through the evaluation of multiple trustManagers.
+ */
+public class Test_ConcurrentHandshakes
+{
+    private static final int THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    private static final int HANDSHAKES_PER_THREAD = 300;
+
+    private Path path;
+
+    @Before
+    public void setup() throws IOException
+    {
+        System.setProperty(CustomTrustManager.VERDICT_CACHE_SIZE_SYSTEM_PROPERTY, "0");
+        path = Files.createTempDirectory("trustmanager").resolve("trustStore.jks");
+    }
+
+    @After
+    public void cleanup() throws IOException
+    {
+        System.clearProperty(CustomTrustManager.VERDICT_CACHE_SIZE_SYSTEM_PROPERTY);
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(path.getParent());
+    }
+
+    @Test
+    public void testMixedChainsFromManyThreads() throws Exception
+    {
+        AtomicInteger askedForTrusted = new AtomicInteger();
+        AtomicInteger askedForSelfSigned = new AtomicInteger();
+        AtomicInteger askedForUntrusted = new AtomicInteger();
+        AtomicInteger wrongTypes = new AtomicInteger();
+
+        List<X509ExtendedTrustManager> defaultTrustManagers = Arrays.asList(TestCertificates.trustManager("expired"),
+                                                                              TestCertificates.trustManager("ca"));
+        CustomTrustManager trustManager = new CustomTrustManager(new JKSCustomTrustStore(path), defaultTrustManagers)
+        {
+            @Override
+            protected boolean checkCertificateAndShouldPersist(X509Certificate[] pChain, CertificateException pE, String pSimpleInfo)
+                    throws CertificateException
+            {
+                List<CertificateExceptionDetail.EType> types = CertificateExceptionDetail.createExceptionDetail(pChain, pE, pSimpleInfo).getTypes();
+                if (pChain[0].equals(TestCertificates.get("selfsigned")))
+                {
+                    askedForSelfSigned.incrementAndGet();
+                    if (!types.contains(CertificateExceptionDetail.EType.SELF_SIGNED))
+                        wrongTypes.incrementAndGet();
+                    return false;
+                }
+                if (pChain[0].equals(TestCertificates.get("untrusted")))
+                    askedForUntrusted.incrementAndGet();
+                else
+                    askedForTrusted.incrementAndGet();
+                throw pE;
+            }
+        };
+
+        X509Certificate[][] chains = {TestCertificates.trustedChain(), TestCertificates.selfSignedChain(),
+                                      TestCertificates.trustedChain(), TestCertificates.untrustedChain()};
+        AtomicInteger rejectedTrusted = new AtomicInteger();
+        AtomicInteger rejectedSelfSigned = new AtomicInteger();
+        AtomicInteger rejectedUntrusted = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++)
+        {
+            int offset = t;
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < HANDSHAKES_PER_THREAD; i++)
+                {
+                    int index = (i + offset) % chains.length;
+                    try
+                    {
+                        trustManager.checkServerTrusted(chains[index], "RSA");
+                    } catch (CertificateException e)
+                    {
+                        if (index == 1)
+                            rejectedSelfSigned.incrementAndGet();
+                        else if (index == 3)
+                            rejectedUntrusted.incrementAndGet();
+                        else
+                            rejectedTrusted.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures)
+            future.get(2, TimeUnit.MINUTES);
+        executor.shutdown();
+
+        int untrustedHandshakes = THREADS * HANDSHAKES_PER_THREAD / chains.length;
+        Assert.assertEquals("Trusted chains must never be rejected", 0, rejectedTrusted.get());
+        Assert.assertEquals("Trusted chains must never reach the user", 0, askedForTrusted.get());
+        Assert.assertEquals("Self signed chain was accepted by the user and must not be rejected", 0, rejectedSelfSigned.get());
+        Assert.assertTrue("Self signed chain should have been shown to the user", askedForSelfSigned.get() > 0);
+        Assert.assertEquals("Self signed chain was classified wrong", 0, wrongTypes.get());
+        Assert.assertEquals("Untrusted chains must always be rejected", untrustedHandshakes, rejectedUntrusted.get());
+        Assert.assertEquals("Every untrusted handshake should have been shown to the user", untrustedHandshakes, askedForUntrusted.get());
+    }
+}
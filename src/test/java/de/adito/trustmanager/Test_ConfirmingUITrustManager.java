@@ -0,0 +1,96 @@
+package de.adito.trustmanager;
+
+import de.adito.trustmanager.confirmingui.ConfirmingUITrustManager;
+import de.adito.trustmanager.store.SimpleCustomTrustStore;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.swing.*;
+import java.security.cert.CertificateException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Test_ConfirmingUITrustManager
+{
+    @Test
+    public void testConcurrentHandshakesShareOneDialog() throws Exception
+    {
+        int threads = 10;
+        CompletableFuture<ETrustDecision> dialog = new CompletableFuture<>();
+        ConfirmingUITrustManager trustManager = _createTrustManager(new AtomicInteger(), dialog);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> handshakes = new ArrayList<>();
+        for (int i = 0; i < threads; i++)
+            handshakes.add(executor.submit(() -> {
+                trustManager.checkServerTrusted(TestCertificates.selfSignedChain(), "RSA");
+                return null;
+            }));
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (trustManager.getCoalescedCount() < threads - 1 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        dialog.complete(ETrustDecision.TRUST_ONCE);
+        for (Future<?> handshake : handshakes)
+            handshake.get(10, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        Assert.assertEquals("One dialog should have been shown", 1, trustManager.getDialogCount());
+        Assert.assertEquals("All other handshakes should have waited for the same dialog", threads - 1, trustManager.getCoalescedCount());
+    }
+
+    @Test
+    public void testEventDispatchThreadShowsOwnDialog() throws Exception
+    {
+        AtomicInteger dialogs = new AtomicInteger();
+        CompletableFuture<ETrustDecision> pendingDialog = new CompletableFuture<>();
+        ConfirmingUITrustManager trustManager = _createTrustManager(dialogs, pendingDialog);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> handshake = executor.submit(() -> {
+            trustManager.checkServerTrusted(TestCertificates.selfSignedChain(), "RSA");
+            return null;
+        });
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (dialogs.get() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        //waiting for the pending dialog would never return, because it needs the event dispatch thread
+        CompletableFuture<Void> edtHandshake = new CompletableFuture<>();
+        SwingUtilities.invokeLater(() -> {
+            try
+            {
+                trustManager.checkServerTrusted(TestCertificates.selfSignedChain(), "RSA");
+                edtHandshake.complete(null);
+            } catch (CertificateException e)
+            {
+                edtHandshake.completeExceptionally(e);
+            }
+        });
+        try
+        {
+            edtHandshake.get(10, TimeUnit.SECONDS);
+        } finally
+        {
+            pendingDialog.complete(ETrustDecision.TRUST_ONCE);
+        }
+        handshake.get(10, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        Assert.assertEquals("Event dispatch thread should have shown its own dialog", 2, trustManager.getDialogCount());
+        Assert.assertEquals(0, trustManager.getCoalescedCount());
+    }
+
+    /**
+     * The first dialog is answered by pFirstDialog, every further dialog trusts the certificate right away.
+     */
+    private static ConfirmingUITrustManager _createTrustManager(AtomicInteger pDialogs, CompletableFuture<ETrustDecision> pFirstDialog)
+    {
+        return new ConfirmingUITrustManager(new SimpleCustomTrustStore(), Collections.singletonList(TestCertificates.trustManager("ca")),
+                                            (pChain, pException, pSimpleInfo) -> pDialogs.getAndIncrement() == 0 ?
+                                                    pFirstDialog : CompletableFuture.completedFuture(ETrustDecision.TRUST_ONCE))
+        {
+        };
+    }
+}
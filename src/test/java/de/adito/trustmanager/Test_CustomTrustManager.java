@@ -0,0 +1,355 @@
+package de.adito.trustmanager;
+
+import de.adito.trustmanager.store.ICustomTrustStore;
+import de.adito.trustmanager.store.SimpleCustomTrustStore;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.security.cert.CRLReason;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateRevokedException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Test_CustomTrustManager
+{
+    @After
+    public void clearProperties()
+    {
+        System.clearProperty(CustomTrustManager.CUSTOM_TRUST_STORE_FIRST_SYSTEM_PROPERTY);
+        System.clearProperty(CustomTrustManager.PARALLEL_VALIDATION_SYSTEM_PROPERTY);
+        System.clearProperty(CustomTrustManager.ACCEPTED_ISSUERS_CUSTOM_STORE_SYSTEM_PROPERTY);
+        System.clearProperty(CustomTrustManager.ADAPTIVE_ORDER_SYSTEM_PROPERTY);
+        System.clearProperty(CustomTrustManager.VERDICT_CACHE_SIZE_SYSTEM_PROPERTY);
+    }
+
+    @Test
+    public void testValidationStopsAtFirstAcceptance() throws CertificateException
+    {
+        TestCertificates.CountingTrustManager first = new TestCertificates.CountingTrustManager(TestCertificates.trustManager("ca"));
+        TestCertificates.CountingTrustManager second = new TestCertificates.CountingTrustManager(TestCertificates.trustManager("ca"));
+        AtomicInteger decisions = new AtomicInteger();
+        CustomTrustManager trustManager = _createTrustManager(new SimpleCustomTrustStore(), Arrays.asList(first, second), decisions);
+
+        trustManager.checkServerTrusted(TestCertificates.trustedChain(), "RSA");
+        Assert.assertEquals("First trustManager should have been asked", 1, first.serverChecks.get());
+        Assert.assertEquals("Second trustManager should not have been asked", 0, second.serverChecks.get());
+    }
+
+    @Test
+    public void testParallelValidation() throws CertificateException
+    {
+        System.setProperty(CustomTrustManager.PARALLEL_VALIDATION_SYSTEM_PROPERTY, "true");
+        TestCertificates.CountingTrustManager slow = new TestCertificates.CountingTrustManager(TestCertificates.trustManager("expired"))
+        {
+            @Override
+            public void checkServerTrusted(X509Certificate[] pChain, String pAuthType) throws CertificateException
+            {
+                try
+                {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                super.checkServerTrusted(pChain, pAuthType);
+            }
+        };
+        TestCertificates.CountingTrustManager accepting = new TestCertificates.CountingTrustManager(TestCertificates.trustManager("ca"));
+        AtomicInteger decisions = new AtomicInteger();
+        CustomTrustManager trustManager = _createTrustManager(new SimpleCustomTrustStore(), Arrays.asList(slow, accepting), decisions);
+
+        long start = System.nanoTime();
+        trustManager.checkServerTrusted(TestCertificates.trustedChain(), "RSA");
+        Assert.assertTrue("Handshake should not wait for the slow trustManager", System.nanoTime() - start < 500_000_000L);
+
+        trustManager.checkServerTrusted(TestCertificates.selfSignedChain(), "RSA");
+        Assert.assertEquals("Self signed chain should have been shown to the user once", 1, decisions.get());
+    }
+
+    @Test
+    public void testParallelRevocationWins() throws InterruptedException
+    {
+        System.setProperty(CustomTrustManager.PARALLEL_VALIDATION_SYSTEM_PROPERTY, "true");
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch cancelled = new CountDownLatch(1);
+        TestCertificates.CountingTrustManager slow = new TestCertificates.CountingTrustManager(TestCertificates.trustManager("ca"))
+        {
+            @Override
+            public void checkServerTrusted(X509Certificate[] pChain, String pAuthType) throws CertificateException
+            {
+                started.countDown();
+                try
+                {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e)
+                {
+                    cancelled.countDown();
+                    throw new CertificateException(e);
+                }
+                super.checkServerTrusted(pChain, pAuthType);
+            }
+        };
+        TestCertificates.CountingTrustManager revoking = new TestCertificates.CountingTrustManager(TestCertificates.trustManager("ca"))
+        {
+            @Override
+            public void checkServerTrusted(X509Certificate[] pChain, String pAuthType) throws CertificateException
+            {
+                try
+                {
+                    started.await();
+                } catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                throw _revoked(pChain);
+            }
+        };
+        AtomicInteger decisions = new AtomicInteger();
+        CustomTrustManager trustManager = _createTrustManager(new SimpleCustomTrustStore(), Arrays.asList(slow, revoking), decisions);
+
+        try
+        {
+            trustManager.checkServerTrusted(TestCertificates.trustedChain(), "RSA");
+            Assert.fail("Revoked chain should have been rejected");
+        } catch (CertificateException e)
+        {
+            Assert.assertTrue(e.getCause().getCause() instanceof CertificateRevokedException);
+        }
+        Assert.assertEquals("Revoked chain should not have been shown to the user", 0, decisions.get());
+        Assert.assertTrue("Slow validation should have been cancelled", cancelled.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCustomTrustStoreFirstSkipsDefaultTrustManagers() throws CertificateException
+    {
+        System.setProperty(CustomTrustManager.CUSTOM_TRUST_STORE_FIRST_SYSTEM_PROPERTY, "true");
+        ICustomTrustStore trustStore = new SimpleCustomTrustStore();
+        X509Certificate[] chain = TestCertificates.selfSignedChain();
+        trustStore.add(TrustManagerUtil.hashSHA1(chain[0]), chain[0], false);
+
+        TestCertificates.CountingTrustManager counting = new TestCertificates.CountingTrustManager(TestCertificates.trustManager("ca"));
+        AtomicInteger decisions = new AtomicInteger();
+        CustomTrustManager trustManager = _createTrustManager(trustStore, Collections.singletonList(counting), decisions);
+
+        trustManager.checkServerTrusted(chain, "RSA");
+        Assert.assertEquals("Default trustManagers should not have been asked", 0, counting.serverChecks.get());
+        Assert.assertEquals("User should not have been asked", 0, decisions.get());
+    }
+
+    @Test
+    public void testCustomTrustStoreLastByDefault() throws CertificateException
+    {
+        ICustomTrustStore trustStore = new SimpleCustomTrustStore();
+        X509Certificate[] chain = TestCertificates.selfSignedChain();
+        trustStore.add(TrustManagerUtil.hashSHA1(chain[0]), chain[0], false);
+
+        TestCertificates.CountingTrustManager counting = new TestCertificates.CountingTrustManager(TestCertificates.trustManager("ca"));
+        AtomicInteger decisions = new AtomicInteger();
+        CustomTrustManager trustManager = _createTrustManager(trustStore, Collections.singletonList(counting), decisions);
+
+        trustManager.checkServerTrusted(chain, "RSA");
+        Assert.assertEquals("Default trustManager should have been asked first", 1, counting.serverChecks.get());
+        Assert.assertEquals("Accepted certificate should have been found in the custom trustStore", 0, decisions.get());
+    }
+
+    @Test
+    public void testSha1AliasOfAliasOnlyStoreFound() throws CertificateException
+    {
+        Map<String, X509Certificate> aliases = new HashMap<>();
+        ICustomTrustStore trustStore = new ICustomTrustStore()
+        {
+            @Override
+            public X509Certificate get(String pAlias)
+            {
+                return aliases.get(pAlias);
+            }
+
+            @Override
+            public void add(String pAlias, X509Certificate pCertificate, boolean pPersistent)
+            {
+                aliases.put(pAlias, pCertificate);
+            }
+        };
+        X509Certificate[] chain = TestCertificates.selfSignedChain();
+        trustStore.add(TrustManagerUtil.hashSHA1(chain[0]), chain[0], true);
+
+        AtomicInteger decisions = new AtomicInteger();
+        CustomTrustManager trustManager = _createTrustManager(trustStore, Collections.singletonList(TestCertificates.trustManager("ca")), decisions);
+
+        trustManager.checkServerTrusted(chain, "RSA");
+        Assert.assertEquals("Certificate stored under its SHA-1 alias should have been found", 0, decisions.get());
+        Assert.assertEquals("Certificate should not have been stored again", 1, aliases.size());
+    }
+
+    @Test
+    public void testAcceptedIssuersWithoutDuplicates()
+    {
+        CustomTrustManager trustManager = _createTrustManager(new SimpleCustomTrustStore(), Arrays.asList(
+                TestCertificates.trustManager("ca"), TestCertificates.trustManager("ca")), new AtomicInteger());
+
+        X509Certificate[] issuers = trustManager.getAcceptedIssuers();
+        Assert.assertArrayEquals(new X509Certificate[]{TestCertificates.get("ca")}, issuers);
+        issuers[0] = null;
+        Assert.assertArrayEquals("Modifying the returned array should not change the snapshot",
+                                 new X509Certificate[]{TestCertificates.get("ca")}, trustManager.getAcceptedIssuers());
+    }
+
+    @Test
+    public void testAcceptedIssuersIncludeCustomTrustStore()
+    {
+        System.setProperty(CustomTrustManager.ACCEPTED_ISSUERS_CUSTOM_STORE_SYSTEM_PROPERTY, "true");
+        ICustomTrustStore trustStore = new SimpleCustomTrustStore();
+        TestCertificates.CountingTrustManager counting = new TestCertificates.CountingTrustManager(TestCertificates.trustManager("ca"))
+        {
+            @Override
+            public X509Certificate[] getAcceptedIssuers()
+            {
+                serverChecks.incrementAndGet();
+                return super.getAcceptedIssuers();
+            }
+        };
+        CustomTrustManager trustManager = _createTrustManager(trustStore, Collections.singletonList(counting), new AtomicInteger());
+
+        Assert.assertEquals(1, trustManager.getAcceptedIssuers().length);
+        trustStore.add(CertificateFacts.getFingerprint(TestCertificates.get("selfsigned")), TestCertificates.get("selfsigned"), false);
+        trustStore.add(CertificateFacts.getFingerprint(TestCertificates.get("ca")), TestCertificates.get("ca"), false);
+        Assert.assertArrayEquals("Added certificate should be announced once",
+                                 new X509Certificate[]{TestCertificates.get("ca"), TestCertificates.get("selfsigned")},
+                                 trustManager.getAcceptedIssuers());
+        trustManager.getAcceptedIssuers();
+        Assert.assertEquals("Issuers of the default trustManager should have been collected once", 1, counting.serverChecks.get());
+
+        trustManager.invalidateVerdictCache();
+        trustManager.getAcceptedIssuers();
+        Assert.assertEquals("Issuers should have been collected again after the invalidation", 2, counting.serverChecks.get());
+    }
+
+    @Test
+    public void testAdaptiveOrderRoutesByIssuer() throws CertificateException
+    {
+        System.setProperty(CustomTrustManager.ADAPTIVE_ORDER_SYSTEM_PROPERTY, "true");
+        System.setProperty(CustomTrustManager.VERDICT_CACHE_SIZE_SYSTEM_PROPERTY, "0");
+        TestCertificates.CountingTrustManager other = new TestCertificates.CountingTrustManager(TestCertificates.trustManager("otherca"));
+        TestCertificates.CountingTrustManager accepting = new TestCertificates.CountingTrustManager(TestCertificates.trustManager("ca"));
+        AtomicInteger decisions = new AtomicInteger();
+        CustomTrustManager trustManager = _createTrustManager(new SimpleCustomTrustStore(), Arrays.asList(other, accepting), decisions);
+
+        for (int i = 0; i < 3; i++)
+            trustManager.checkServerTrusted(TestCertificates.trustedChain(), "RSA");
+        Assert.assertEquals("First trustManager should only have rejected the first chain", 1, other.serverChecks.get());
+        Assert.assertEquals(3, accepting.serverChecks.get());
+        Assert.assertEquals(0, decisions.get());
+
+        //the second trustManager is preferred now, but the chains of otherca are still accepted by the first one
+        trustManager.checkServerTrusted(TestCertificates.untrustedChain(), "RSA");
+        trustManager.checkServerTrusted(TestCertificates.untrustedChain(), "RSA");
+        Assert.assertEquals(3, other.serverChecks.get());
+        Assert.assertEquals("Second trustManager should only have rejected the first chain of otherca", 4, accepting.serverChecks.get());
+        Assert.assertEquals(0, decisions.get());
+
+        List<TrustManagerStatistics> statistics = trustManager.getStatistics();
+        Assert.assertEquals(2, statistics.get(0).getAccepted());
+        Assert.assertEquals(1, statistics.get(0).getRejected());
+        Assert.assertEquals(3, statistics.get(1).getAccepted());
+        Assert.assertEquals(1, statistics.get(1).getRejected());
+        Assert.assertEquals(1, statistics.get(0).getRoutedIssuers());
+        Assert.assertEquals(1, statistics.get(1).getRoutedIssuers());
+        Assert.assertSame(accepting, statistics.get(1).getTrustManager());
+    }
+
+    @Test
+    public void testAdaptiveOrderKeepsRejectionOrder() throws CertificateException
+    {
+        System.setProperty(CustomTrustManager.ADAPTIVE_ORDER_SYSTEM_PROPERTY, "true");
+        System.setProperty(CustomTrustManager.VERDICT_CACHE_SIZE_SYSTEM_PROPERTY, "0");
+        TestCertificates.CountingTrustManager other = new TestCertificates.CountingTrustManager(TestCertificates.trustManager("otherca"));
+        TestCertificates.CountingTrustManager accepting = new TestCertificates.CountingTrustManager(TestCertificates.trustManager("ca"));
+        AtomicInteger decisions = new AtomicInteger();
+        CustomTrustManager trustManager = _createTrustManager(new SimpleCustomTrustStore(), Arrays.asList(other, accepting), decisions);
+
+        trustManager.checkServerTrusted(TestCertificates.trustedChain(), "RSA");
+        trustManager.checkServerTrusted(TestCertificates.selfSignedChain(), "RSA");
+        Assert.assertEquals("Self signed chain should have been shown to the user once", 1, decisions.get());
+        Assert.assertEquals("Every trustManager should have rejected the self signed chain once", 2, other.serverChecks.get());
+        Assert.assertEquals(2, accepting.serverChecks.get());
+    }
+
+    @Test
+    public void testAdaptiveOrderThrowsRevocationOfPreferred() throws CertificateException
+    {
+        System.setProperty(CustomTrustManager.ADAPTIVE_ORDER_SYSTEM_PROPERTY, "true");
+        System.setProperty(CustomTrustManager.VERDICT_CACHE_SIZE_SYSTEM_PROPERTY, "0");
+        X509ExtendedTrustManager accepting = TestCertificates.trustManager("ca");
+        AtomicInteger firstChecks = new AtomicInteger();
+        TestCertificates.CountingTrustManager first = new TestCertificates.CountingTrustManager(TestCertificates.trustManager("otherca"))
+        {
+            @Override
+            public void checkServerTrusted(X509Certificate[] pChain, String pAuthType) throws CertificateException
+            {
+                //rejects the first chain, so the second trustManager becomes the preferred one
+                if (firstChecks.incrementAndGet() > 1)
+                    accepting.checkServerTrusted(pChain, pAuthType);
+                else
+                    super.checkServerTrusted(pChain, pAuthType);
+            }
+        };
+        AtomicInteger secondChecks = new AtomicInteger();
+        TestCertificates.CountingTrustManager second = new TestCertificates.CountingTrustManager(accepting)
+        {
+            @Override
+            public void checkServerTrusted(X509Certificate[] pChain, String pAuthType) throws CertificateException
+            {
+                if (secondChecks.incrementAndGet() > 1)
+                    throw _revoked(pChain);
+                super.checkServerTrusted(pChain, pAuthType);
+            }
+        };
+        AtomicInteger decisions = new AtomicInteger();
+        CustomTrustManager trustManager = _createTrustManager(new SimpleCustomTrustStore(), Arrays.asList(first, second), decisions);
+
+        trustManager.checkServerTrusted(TestCertificates.trustedChain(), "RSA");
+        try
+        {
+            trustManager.checkServerTrusted(TestCertificates.trustedChain(), "RSA");
+            Assert.fail("Revocation of the preferred trustManager should have been thrown");
+        } catch (CertificateException e)
+        {
+            Assert.assertTrue(e.getCause().getCause() instanceof CertificateRevokedException);
+        }
+        Assert.assertEquals("First trustManager should not have been asked after the revocation", 1, firstChecks.get());
+        Assert.assertEquals(0, decisions.get());
+    }
+
+    private static CertificateException _revoked(X509Certificate[] pChain)
+    {
+        CertificateRevokedException revoked = new CertificateRevokedException(new Date(), CRLReason.KEY_COMPROMISE,
+                                                                              pChain[1].getSubjectX500Principal(), Collections.emptyMap());
+        return new CertificateException(new CertPathValidatorException("revoked", revoked, null, -1, CertPathValidatorException.BasicReason.REVOKED));
+    }
+
+    private static CustomTrustManager _createTrustManager(ICustomTrustStore pTrustStore, List<X509ExtendedTrustManager> pDelegates,
+                                                          AtomicInteger pDecisions)
+    {
+        return new CustomTrustManager(pTrustStore, pDelegates)
+        {
+            @Override
+            protected boolean checkCertificateAndShouldPersist(X509Certificate[] pChain, CertificateException pE, String pSimpleInfo)
+            {
+                pDecisions.incrementAndGet();
+                return false;
+            }
+        };
+    }
+}
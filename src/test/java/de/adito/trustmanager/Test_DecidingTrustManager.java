@@ -0,0 +1,138 @@
+package de.adito.trustmanager;
+
+import de.adito.trustmanager.store.SimpleCustomTrustStore;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Test_DecidingTrustManager
+{
+    @Test
+    public void testDefaultDecisionAfterTimeout() throws CertificateException
+    {
+        CompletableFuture<ETrustDecision> neverDecided = new CompletableFuture<>();
+        DecidingTrustManager trustManager = new DecidingTrustManager(new SimpleCustomTrustStore(),
+                                                                     Collections.singletonList(TestCertificates.trustManager("ca")),
+                                                                     (pChain, pException, pSimpleInfo) -> neverDecided,
+                                                                     100, ETrustDecision.TRUST_ONCE);
+        trustManager.checkServerTrusted(TestCertificates.selfSignedChain(), "RSA");
+        Assert.assertTrue("Pending decision should have been cancelled after the timeout", neverDecided.isCancelled());
+    }
+
+    @Test(expected = CertificateException.class)
+    public void testRejectAfterTimeout() throws CertificateException
+    {
+        DecidingTrustManager trustManager = new DecidingTrustManager(new SimpleCustomTrustStore(),
+                                                                     Collections.singletonList(TestCertificates.trustManager("ca")),
+                                                                     (pChain, pException, pSimpleInfo) -> new CompletableFuture<>(),
+                                                                     100, ETrustDecision.REJECT);
+        trustManager.checkServerTrusted(TestCertificates.selfSignedChain(), "RSA");
+    }
+
+    @Test(expected = CertificateException.class)
+    public void testUnknownDefaultDecisionRejects() throws CertificateException
+    {
+        System.setProperty(DecidingTrustManager.DECISION_TIMEOUT_SYSTEM_PROPERTY, "100");
+        System.setProperty(DecidingTrustManager.DEFAULT_DECISION_SYSTEM_PROPERTY, "trust_once");
+        try
+        {
+            DecidingTrustManager trustManager = new DecidingTrustManager(new SimpleCustomTrustStore(),
+                                                                         Collections.singletonList(TestCertificates.trustManager("ca")),
+                                                                         (pChain, pException, pSimpleInfo) -> new CompletableFuture<>());
+            trustManager.checkServerTrusted(TestCertificates.selfSignedChain(), "RSA");
+        } finally
+        {
+            System.clearProperty(DecidingTrustManager.DECISION_TIMEOUT_SYSTEM_PROPERTY);
+            System.clearProperty(DecidingTrustManager.DEFAULT_DECISION_SYSTEM_PROPERTY);
+        }
+    }
+
+    @Test
+    public void testConcurrentHandshakesShareOneDecision() throws Exception
+    {
+        int threads = 10;
+        AtomicInteger requests = new AtomicInteger();
+        CompletableFuture<ETrustDecision> decision = new CompletableFuture<>();
+        DecidingTrustManager trustManager = new DecidingTrustManager(new SimpleCustomTrustStore(),
+                                                                     Collections.singletonList(TestCertificates.trustManager("ca")),
+                                                                     (pChain, pException, pSimpleInfo) -> {
+                                                                         requests.incrementAndGet();
+                                                                         return decision;
+                                                                     }, 0, ETrustDecision.REJECT);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> handshakes = new ArrayList<>();
+        for (int i = 0; i < threads; i++)
+            handshakes.add(executor.submit(() -> {
+                trustManager.checkServerTrusted(TestCertificates.selfSignedChain(), "RSA");
+                return null;
+            }));
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (trustManager.getCoalescedCount() < threads - 1 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        decision.complete(ETrustDecision.TRUST_ONCE);
+        for (Future<?> handshake : handshakes)
+            handshake.get(10, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        Assert.assertEquals("Provider should have been asked once", 1, requests.get());
+        Assert.assertEquals("Provider should have been asked once", 1, trustManager.getDecisionCount());
+        Assert.assertEquals("All other handshakes should have waited for the same decision", threads - 1, trustManager.getCoalescedCount());
+    }
+
+    @Test
+    public void testHandshakeWhileStoringWaitsForDecision() throws Exception
+    {
+        CountDownLatch adding = new CountDownLatch(1);
+        CountDownLatch added = new CountDownLatch(1);
+        AtomicInteger adds = new AtomicInteger();
+        SimpleCustomTrustStore trustStore = new SimpleCustomTrustStore()
+        {
+            @Override
+            public void add(CertificateFingerprint pFingerprint, X509Certificate pCertificate, boolean pPersist)
+            {
+                adds.incrementAndGet();
+                adding.countDown();
+                try
+                {
+                    added.await();
+                } catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                super.add(pFingerprint, pCertificate, pPersist);
+            }
+        };
+        DecidingTrustManager trustManager = new DecidingTrustManager(trustStore, Collections.singletonList(TestCertificates.trustManager("ca")),
+                                                                     (pChain, pException, pSimpleInfo) ->
+                                                                             CompletableFuture.completedFuture(ETrustDecision.PERSIST),
+                                                                     0, ETrustDecision.REJECT);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Future<?> first = executor.submit(() -> {
+            trustManager.checkServerTrusted(TestCertificates.selfSignedChain(), "RSA");
+            return null;
+        });
+        Assert.assertTrue(adding.await(10, TimeUnit.SECONDS));
+        Future<?> second = executor.submit(() -> {
+            trustManager.checkServerTrusted(TestCertificates.selfSignedChain(), "RSA");
+            return null;
+        });
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (trustManager.getCoalescedCount() == 0 && trustManager.getDecisionCount() == 1 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        added.countDown();
+        first.get(10, TimeUnit.SECONDS);
+        second.get(10, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        Assert.assertEquals("Handshake during the store should have waited for the decision", 1, trustManager.getDecisionCount());
+        Assert.assertEquals("Certificate should have been stored once", 1, adds.get());
+    }
+}
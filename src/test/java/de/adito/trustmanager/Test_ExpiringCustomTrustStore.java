@@ -0,0 +1,100 @@
+package de.adito.trustmanager;
+
+import de.adito.trustmanager.store.ExpiringCustomTrustStore;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.security.cert.X509Certificate;
+
+public class Test_ExpiringCustomTrustStore
+{
+    @Test
+    public void testTimeToLive() throws InterruptedException
+    {
+        ExpiringCustomTrustStore trustStore = new ExpiringCustomTrustStore(10, 100);
+        X509Certificate certificate = TestCertificates.get("selfsigned");
+        trustStore.add("selfsigned", certificate, false);
+        Assert.assertEquals("Certificate should be trusted", certificate, trustStore.get("selfsigned"));
+        Assert.assertEquals("Certificate should be found by fingerprint", certificate,
+                            trustStore.get(CertificateFacts.getFingerprint(certificate)));
+
+        Thread.sleep(200);
+        Assert.assertNull("Certificate should have expired", trustStore.get("selfsigned"));
+        Assert.assertNull("Certificate should have expired", trustStore.get(CertificateFacts.getFingerprint(certificate)));
+        Assert.assertEquals("Expired certificate should have been removed", 0, trustStore.size());
+    }
+
+    @Test
+    public void testExpiredCertificateIsTrustedOnce()
+    {
+        ExpiringCustomTrustStore trustStore = new ExpiringCustomTrustStore(10, 60_000);
+        X509Certificate expired = TestCertificates.get("expired");
+        trustStore.add("expired", expired, false);
+        Assert.assertEquals("Accepted expired certificate should be trusted for the time to live", expired, trustStore.get("expired"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws InterruptedException
+    {
+        ExpiringCustomTrustStore trustStore = new ExpiringCustomTrustStore(2, 60_000);
+        X509Certificate selfSigned = TestCertificates.get("selfsigned");
+        X509Certificate leaf = TestCertificates.get("leaf");
+        X509Certificate ca = TestCertificates.get("ca");
+        trustStore.add("selfsigned", selfSigned, false);
+        Thread.sleep(5);
+        trustStore.add("leaf", leaf, false);
+        Thread.sleep(5);
+        Assert.assertNotNull(trustStore.get("selfsigned"));
+        Thread.sleep(5);
+
+        trustStore.add("ca", ca, false);
+        Assert.assertEquals("Store should be bounded", 2, trustStore.size());
+        Assert.assertNull("Least recently used certificate should have been evicted", trustStore.get("leaf"));
+        Assert.assertEquals(selfSigned, trustStore.get("selfsigned"));
+        Assert.assertEquals(ca, trustStore.get("ca"));
+    }
+
+    @Test
+    public void testFullStoreEvictsTenth()
+    {
+        ExpiringCustomTrustStore trustStore = new ExpiringCustomTrustStore(20, 60_000);
+        for (int i = 0; i < 20; i++)
+            trustStore.add(_fingerprint(i), TestCertificates.get("selfsigned"), false);
+        trustStore.add(_fingerprint(20), TestCertificates.get("selfsigned"), false);
+        Assert.assertEquals("Full store should have been shrunk to 90%", 18, trustStore.size());
+        trustStore.add(_fingerprint(21), TestCertificates.get("selfsigned"), false);
+        Assert.assertEquals("Store with room left should not evict", 19, trustStore.size());
+    }
+
+    @Test
+    public void testEvictedCertificateLeavesNoAlias() throws InterruptedException
+    {
+        ExpiringCustomTrustStore trustStore = new ExpiringCustomTrustStore(1, 60_000);
+        String[] names = {"selfsigned", "leaf", "ca", "otherca"};
+        Thread[] threads = new Thread[names.length];
+        for (int t = 0; t < threads.length; t++)
+        {
+            String name = names[t];
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 2000; i++)
+                    trustStore.add(name + i, TestCertificates.get(name), false);
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        for (String name : names)
+            for (int i = 0; i < 2000; i++)
+                if (trustStore.get(name + i) != null)
+                    Assert.assertNotNull("Alias " + name + i + " should only be found while its certificate is stored",
+                                         trustStore.get(CertificateFacts.getFingerprint(TestCertificates.get(name))));
+    }
+
+    private static CertificateFingerprint _fingerprint(int pNumber)
+    {
+        byte[] bytes = new byte[CertificateFingerprint.LENGTH];
+        bytes[0] = (byte) pNumber;
+        return CertificateFingerprint.fromBytes(bytes, 0);
+    }
+}
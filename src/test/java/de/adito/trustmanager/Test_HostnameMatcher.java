@@ -0,0 +1,74 @@
+package de.adito.trustmanager;
+
+import de.adito.trustmanager.confirmingui.CertificateExceptionDetail;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.security.cert.CertificateException;
+import java.util.Collections;
+
+public class Test_HostnameMatcher
+{
+    @Test
+    public void testExactNames()
+    {
+        HostnameMatcher matcher = CertificateFacts.getHostnameMatcher(TestCertificates.get("leaf"));
+        Assert.assertTrue(matcher.matches("localhost"));
+        Assert.assertTrue("Host names are case-insensitive", matcher.matches("LocalHost"));
+        Assert.assertTrue("A trailing dot is ignored", matcher.matches("localhost."));
+        Assert.assertFalse(matcher.matches("otherhost"));
+        Assert.assertFalse(matcher.matches(""));
+    }
+
+    @Test
+    public void testWildcard()
+    {
+        HostnameMatcher matcher = CertificateFacts.getHostnameMatcher(TestCertificates.get("leaf"));
+        Assert.assertTrue(matcher.matches("www.example.org"));
+        Assert.assertTrue(matcher.matches("WWW.Example.ORG"));
+        Assert.assertFalse("The wildcard does not match the parent domain", matcher.matches("example.org"));
+        Assert.assertFalse("The wildcard matches only one label", matcher.matches("a.www.example.org"));
+        Assert.assertFalse(matcher.matches("www.example.com"));
+        Assert.assertFalse(matcher.matches(".example.org"));
+    }
+
+    @Test
+    public void testIpAddresses()
+    {
+        HostnameMatcher matcher = CertificateFacts.getHostnameMatcher(TestCertificates.get("leaf"));
+        Assert.assertTrue(matcher.matches("127.0.0.1"));
+        Assert.assertFalse(matcher.matches("127.0.0.2"));
+        Assert.assertFalse("An IP address does not match a DNS name", CertificateFacts.getHostnameMatcher(TestCertificates.get("selfsigned"))
+                .matches("127.0.0.1"));
+    }
+
+    @Test
+    public void testCommonNameOnlyWithoutDnsNames()
+    {
+        Assert.assertTrue(CertificateFacts.getHostnameMatcher(TestCertificates.get("ca")).matches("trustmanager test ca"));
+        Assert.assertFalse("The common name is ignored if there are DNS names",
+                           CertificateFacts.getHostnameMatcher(TestCertificates.get("untrusted")).matches("nobody"));
+    }
+
+    @Test
+    public void testIndexIsReused()
+    {
+        Assert.assertSame(CertificateFacts.getHostnameMatcher(TestCertificates.get("leaf")),
+                          CertificateFacts.getHostnameMatcher(TestCertificates.get("leaf")));
+        Assert.assertEquals(Collections.singleton("self-signed.test"),
+                            CertificateFacts.getHostnameMatcher(TestCertificates.get("selfsigned")).getNames());
+    }
+
+    @Test
+    public void testWrongHostDetail() throws CertificateException
+    {
+        CertificateException exception = new CertificateException("No subject alternative DNS name matching other.test found.");
+        CertificateExceptionDetail detail = CertificateExceptionDetail.createExceptionDetail(TestCertificates.trustedChain(), exception, "other.test");
+        Assert.assertEquals(Collections.singletonList(CertificateExceptionDetail.EType.WRONG_HOST), detail.getTypes());
+        Assert.assertTrue(detail.makeExceptionMessage("other.test").contains("localhost, *.example.org, 127.0.0.1"));
+
+        exception = new CertificateException("some other failure");
+        detail = CertificateExceptionDetail.createExceptionDetail(TestCertificates.trustedChain(), exception, "www.example.org");
+        Assert.assertEquals(Collections.singletonList(CertificateExceptionDetail.EType.UNKNOWN), detail.getTypes());
+    }
+}
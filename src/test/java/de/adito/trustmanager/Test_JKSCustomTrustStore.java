@@ -0,0 +1,195 @@
+package de.adito.trustmanager;
+
+import de.adito.trustmanager.store.JKSCustomTrustStore;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Test_JKSCustomTrustStore
+{
+    private Path directory;
+    private Path path;
+
+    @Before
+    public void createPath() throws IOException
+    {
+        directory = Files.createTempDirectory("trustStore");
+        path = directory.resolve("trustStore.jks");
+    }
+
+    @After
+    public void deletePath() throws IOException
+    {
+        System.clearProperty(JKSCustomTrustStore.GROUP_COMMIT_WINDOW_SYSTEM_PROPERTY);
+        System.clearProperty(JKSCustomTrustStore.RELOAD_INTERVAL_SYSTEM_PROPERTY);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory))
+        {
+            for (Path file : files)
+                Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testCertificatesAndVersion()
+    {
+        JKSCustomTrustStore trustStore = new JKSCustomTrustStore(path);
+        long version = trustStore.getVersion();
+        Assert.assertTrue(trustStore.getCertificates().isEmpty());
+
+        trustStore.add("selfsigned", TestCertificates.get("selfsigned"), true);
+        Assert.assertNotEquals("Permanent certificate should change the version", version, trustStore.getVersion());
+        version = trustStore.getVersion();
+        trustStore.add("expired", TestCertificates.get("expired"), false);
+        Assert.assertNotEquals("Volatile certificate should change the version", version, trustStore.getVersion());
+        Assert.assertEquals(2, trustStore.getCertificates().size());
+        Assert.assertTrue(trustStore.getCertificates().contains(TestCertificates.get("expired")));
+    }
+
+    @Test
+    public void testSha1AliasFoundByFingerprint()
+    {
+        X509Certificate certificate = TestCertificates.get("selfsigned");
+        new JKSCustomTrustStore(path).add(TrustManagerUtil.hashSHA1(certificate), certificate, true);
+
+        Assert.assertEquals("Certificate stored under its SHA-1 alias should be indexed by its fingerprint", certificate,
+                            new JKSCustomTrustStore(path).get(CertificateFacts.getFingerprint(certificate)));
+    }
+
+    @Test
+    public void testAtomicWriteLeavesNoTemporaryFile() throws IOException
+    {
+        JKSCustomTrustStore trustStore = new JKSCustomTrustStore(path);
+        trustStore.add("selfsigned", TestCertificates.get("selfsigned"), true);
+        trustStore.add("expired", TestCertificates.get("expired"), true);
+
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory))
+        {
+            stream.forEach(files::add);
+        }
+        Assert.assertEquals("Only the trustStore should exist", 1, files.size());
+        Assert.assertEquals("Both certificates should have been written", TestCertificates.get("expired"),
+                            new JKSCustomTrustStore(path).get("expired"));
+    }
+
+    @Test
+    public void testAtomicWriteKeepsPermissions() throws IOException
+    {
+        Assume.assumeTrue(Files.getFileStore(directory).supportsFileAttributeView(PosixFileAttributeView.class));
+        JKSCustomTrustStore trustStore = new JKSCustomTrustStore(path);
+        trustStore.add("selfsigned", TestCertificates.get("selfsigned"), true);
+        Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-r--r--");
+        Files.setPosixFilePermissions(path, permissions);
+
+        trustStore.add("expired", TestCertificates.get("expired"), true);
+        Assert.assertEquals("Replaced trustStore should keep its permissions", permissions, Files.getPosixFilePermissions(path));
+    }
+
+    @Test
+    public void testConcurrentAddsAreWrittenTogether() throws Exception
+    {
+        System.setProperty(JKSCustomTrustStore.GROUP_COMMIT_WINDOW_SYSTEM_PROPERTY, "50");
+        AtomicInteger writes = new AtomicInteger();
+        JKSCustomTrustStore trustStore = new JKSCustomTrustStore(path)
+        {
+            @Override
+            protected void saveKeyStore(KeyStore pKeyStore)
+            {
+                writes.incrementAndGet();
+                super.saveKeyStore(pKeyStore);
+            }
+        };
+
+        int threadCount = 16;
+        X509Certificate certificate = TestCertificates.get("selfsigned");
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++)
+        {
+            String alias = "certificate" + i;
+            Thread thread = new Thread(() -> {
+                try
+                {
+                    start.await();
+                } catch (InterruptedException e)
+                {
+                    return;
+                }
+                trustStore.add(alias, certificate, true);
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+
+        Assert.assertTrue("Concurrent adds should share writes, but there were " + writes.get(), writes.get() < threadCount);
+        JKSCustomTrustStore reloaded = new JKSCustomTrustStore(path);
+        for (int i = 0; i < threadCount; i++)
+            Assert.assertNotNull("Certificate " + i + " should have been written", reloaded.get("certificate" + i));
+    }
+
+    @Test
+    public void testCertificateOfOtherStoreIsReloaded()
+    {
+        System.setProperty(JKSCustomTrustStore.RELOAD_INTERVAL_SYSTEM_PROPERTY, "0");
+        JKSCustomTrustStore first = new JKSCustomTrustStore(path);
+        JKSCustomTrustStore second = new JKSCustomTrustStore(path);
+        X509Certificate selfSigned = TestCertificates.get("selfsigned");
+        first.add("selfsigned", selfSigned, true);
+
+        Assert.assertNull("Certificate should not be known before the reload", second.get("selfsigned"));
+        Assert.assertTrue("File should have changed", second.reloadIfChanged());
+        Assert.assertFalse("File should not have changed again", second.reloadIfChanged());
+        Assert.assertEquals("Certificate should be known after the reload", selfSigned, second.get("selfsigned"));
+        Assert.assertEquals("Certificate should be found by fingerprint after the reload", selfSigned,
+                            second.get(CertificateFacts.getFingerprint(selfSigned)));
+    }
+
+    @Test
+    public void testWritesOfOtherStoresAreMerged()
+    {
+        System.setProperty(JKSCustomTrustStore.RELOAD_INTERVAL_SYSTEM_PROPERTY, "0");
+        JKSCustomTrustStore first = new JKSCustomTrustStore(path);
+        JKSCustomTrustStore second = new JKSCustomTrustStore(path);
+        first.add("selfsigned", TestCertificates.get("selfsigned"), true);
+        second.add("expired", TestCertificates.get("expired"), true);
+
+        JKSCustomTrustStore reloaded = new JKSCustomTrustStore(path);
+        Assert.assertNotNull("Certificate of the first store should not have been overwritten", reloaded.get("selfsigned"));
+        Assert.assertNotNull("Certificate of the second store should have been written", reloaded.get("expired"));
+        Assert.assertNotNull("Second store should know the certificate of the first one", second.get("selfsigned"));
+    }
+
+    @Test
+    public void testBackgroundReload() throws InterruptedException
+    {
+        System.setProperty(JKSCustomTrustStore.RELOAD_INTERVAL_SYSTEM_PROPERTY, "20");
+        JKSCustomTrustStore first = new JKSCustomTrustStore(path);
+        JKSCustomTrustStore second = new JKSCustomTrustStore(path);
+        first.add("selfsigned", TestCertificates.get("selfsigned"), true);
+
+        for (int i = 0; i < 100 && second.get("selfsigned") == null; i++)
+            Thread.sleep(20);
+        Assert.assertNotNull("Certificate should have been reloaded in the background", second.get("selfsigned"));
+    }
+}
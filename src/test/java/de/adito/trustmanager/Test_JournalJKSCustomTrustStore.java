@@ -0,0 +1,163 @@
+package de.adito.trustmanager;
+
+import de.adito.trustmanager.store.JKSCustomTrustStore;
+import de.adito.trustmanager.store.JournalJKSCustomTrustStore;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class Test_JournalJKSCustomTrustStore
+{
+    private Path path;
+    private Path journal;
+    private Path compacting;
+
+    @Before
+    public void createPath() throws IOException
+    {
+        path = Files.createTempFile("trustStore", ".jks");
+        Files.delete(path);
+        journal = Paths.get(path + JournalJKSCustomTrustStore.JOURNAL_SUFFIX);
+        compacting = Paths.get(path + JournalJKSCustomTrustStore.COMPACTING_JOURNAL_SUFFIX);
+    }
+
+    @After
+    public void deletePath() throws IOException
+    {
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(journal);
+        Files.deleteIfExists(compacting);
+    }
+
+    @Test
+    public void testAddAppendsToJournal()
+    {
+        X509Certificate selfSigned = TestCertificates.get("selfsigned");
+        X509Certificate expired = TestCertificates.get("expired");
+        JournalJKSCustomTrustStore trustStore = new JournalJKSCustomTrustStore(path, 100);
+        trustStore.add("selfsigned", selfSigned, true);
+        trustStore.add(CertificateFacts.getFingerprint(expired), expired, true);
+
+        Assert.assertFalse("KeyStore file should not have been written", Files.exists(path));
+        Assert.assertTrue("Journal should have been written", Files.exists(journal));
+
+        JournalJKSCustomTrustStore reloaded = new JournalJKSCustomTrustStore(path, 100);
+        Assert.assertEquals("Certificate should have been replayed", selfSigned, reloaded.get("selfsigned"));
+        Assert.assertEquals("Certificate should have been replayed", expired, reloaded.get(CertificateFacts.getFingerprint(expired)));
+    }
+
+    @Test
+    public void testReplayPublishesOneSnapshot()
+    {
+        long emptyVersion = new JournalJKSCustomTrustStore(path, 100).getVersion();
+        JournalJKSCustomTrustStore trustStore = new JournalJKSCustomTrustStore(path, 100);
+        trustStore.add("selfsigned", TestCertificates.get("selfsigned"), true);
+        trustStore.add("expired", TestCertificates.get("expired"), true);
+        trustStore.add("SELFSIGNED", TestCertificates.get("ca"), true);
+
+        JournalJKSCustomTrustStore reloaded = new JournalJKSCustomTrustStore(path, 100);
+        Assert.assertEquals("Journal should have been published as one snapshot", emptyVersion + 1, reloaded.getVersion());
+        Assert.assertEquals("Later record should replace the earlier one", TestCertificates.get("ca"), reloaded.get("selfsigned"));
+        Assert.assertNull("Replaced certificate should not be found by its fingerprint",
+                          reloaded.get(CertificateFacts.getFingerprint(TestCertificates.get("selfsigned"))));
+        Assert.assertEquals(TestCertificates.get("expired"), reloaded.get("expired"));
+    }
+
+    @Test
+    public void testCompaction() throws IOException
+    {
+        X509Certificate selfSigned = TestCertificates.get("selfsigned");
+        JournalJKSCustomTrustStore trustStore = new JournalJKSCustomTrustStore(path, 100);
+        trustStore.add("selfsigned", selfSigned, true);
+        trustStore.compact();
+
+        Assert.assertEquals("Journal should be empty after the merge", 0, Files.size(journal));
+        Assert.assertFalse("Old journal should have been deleted", Files.exists(compacting));
+        Assert.assertEquals("Certificate should be part of the keyStore file", selfSigned, new JKSCustomTrustStore(path).get("selfsigned"));
+
+        X509Certificate expired = TestCertificates.get("expired");
+        trustStore.add("expired", expired, true);
+        JournalJKSCustomTrustStore reloaded = new JournalJKSCustomTrustStore(path, 100);
+        Assert.assertEquals("Certificate of the keyStore file should be loaded", selfSigned, reloaded.get("selfsigned"));
+        Assert.assertEquals("Certificate of the journal should be replayed", expired, reloaded.get("expired"));
+    }
+
+    @Test
+    public void testBackgroundCompaction() throws InterruptedException
+    {
+        JournalJKSCustomTrustStore trustStore = new JournalJKSCustomTrustStore(path, 2);
+        trustStore.add("selfsigned", TestCertificates.get("selfsigned"), true);
+        trustStore.add("expired", TestCertificates.get("expired"), true);
+
+        for (int i = 0; i < 100 && !Files.exists(path); i++)
+            Thread.sleep(50);
+        Assert.assertTrue("KeyStore file should have been written in the background", Files.exists(path));
+    }
+
+    @Test
+    public void testIncompleteRecordIsDropped() throws IOException
+    {
+        X509Certificate selfSigned = TestCertificates.get("selfsigned");
+        new JournalJKSCustomTrustStore(path, 100).add("selfsigned", selfSigned, true);
+        Files.write(journal, new byte[]{0, 8, 'e', 'x', 'p'}, StandardOpenOption.APPEND);
+
+        JournalJKSCustomTrustStore reloaded = new JournalJKSCustomTrustStore(path, 100);
+        Assert.assertEquals("Complete record should have been replayed", selfSigned, reloaded.get("selfsigned"));
+
+        X509Certificate expired = TestCertificates.get("expired");
+        reloaded.add("expired", expired, true);
+        Assert.assertEquals("Record after the dropped one should be replayed", expired,
+                            new JournalJKSCustomTrustStore(path, 100).get("expired"));
+    }
+
+    @Test
+    public void testIncompleteRecordOfInterruptedMergeIsCutOff() throws IOException
+    {
+        AtomicBoolean failSave = new AtomicBoolean(true);
+        JournalJKSCustomTrustStore trustStore = new JournalJKSCustomTrustStore(path, 100)
+        {
+            @Override
+            protected void saveKeyStore(KeyStore pKeyStore)
+            {
+                if (failSave.get())
+                    throw new IllegalStateException("merge interrupted");
+                super.saveKeyStore(pKeyStore);
+            }
+        };
+        X509Certificate selfSigned = TestCertificates.get("selfsigned");
+        trustStore.add("selfsigned", selfSigned, true);
+        _compactAndFail(trustStore);
+        Files.write(compacting, new byte[]{0, 8, 'e', 'x', 'p'}, StandardOpenOption.APPEND);
+
+        X509Certificate expired = TestCertificates.get("expired");
+        trustStore.add("expired", expired, true);
+        _compactAndFail(trustStore);
+        Assert.assertFalse("Journal should have been appended to the old one", Files.exists(journal) && Files.size(journal) > 0);
+
+        JournalJKSCustomTrustStore reloaded = new JournalJKSCustomTrustStore(path, 100);
+        Assert.assertEquals(selfSigned, reloaded.get("selfsigned"));
+        Assert.assertEquals("Record behind the incomplete one should be replayed", expired, reloaded.get("expired"));
+    }
+
+    private static void _compactAndFail(JournalJKSCustomTrustStore pTrustStore)
+    {
+        try
+        {
+            pTrustStore.compact();
+            Assert.fail("Merge should have been interrupted");
+        } catch (IllegalStateException e)
+        {
+            //the old journal is kept
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package de.adito.trustmanager;
+
+import de.adito.trustmanager.store.SimpleCustomTrustStore;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.security.KeyStoreException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Test_LazyTrustManager
+{
+    @Test
+    public void testCreationDoesNotWaitForSupplier() throws CertificateException
+    {
+        long start = System.nanoTime();
+        LazyTrustManager trustManager = new LazyTrustManager(() -> {
+            Thread.sleep(500);
+            return TestCertificates.trustManager("ca");
+        });
+        long creation = System.nanoTime() - start;
+        Assert.assertTrue("Creation should not wait for the supplier, took " + TimeUnit.NANOSECONDS.toMillis(creation) + "ms",
+                          creation < TimeUnit.MILLISECONDS.toNanos(250));
+        Assert.assertFalse("Supplier should still be running", trustManager.isInitialized());
+
+        trustManager.checkServerTrusted(TestCertificates.trustedChain(), "RSA");
+        Assert.assertTrue("First validation should have waited for the supplier", trustManager.isInitialized());
+    }
+
+    @Test
+    public void testFailingSupplier()
+    {
+        LazyTrustManager trustManager = new LazyTrustManager(() -> null);
+        try
+        {
+            trustManager.checkServerTrusted(TestCertificates.trustedChain(), "RSA");
+            Assert.fail("Missing trustManager should not accept any chain");
+        } catch (CertificateException e)
+        {
+            //expected
+        }
+        Assert.assertEquals("Missing trustManager has no issuers", 0, trustManager.getAcceptedIssuers().length);
+    }
+
+    @Test
+    public void testUnavailableTrustManagerSkipped() throws CertificateException
+    {
+        AtomicInteger decisions = new AtomicInteger();
+        List<X509ExtendedTrustManager> trustManagers = Arrays.asList(new LazyTrustManager(() -> null),
+                                                                     new LazyTrustManager(() -> {
+                                                                         throw new KeyStoreException("OS keyStore not available");
+                                                                     }),
+                                                                     new LazyTrustManager(() -> TestCertificates.trustManager("ca")));
+        CustomTrustManager trustManager = new CustomTrustManager(new SimpleCustomTrustStore(), trustManagers)
+        {
+            @Override
+            protected boolean checkCertificateAndShouldPersist(X509Certificate[] pChain, CertificateException pE, String pSimpleInfo)
+            {
+                decisions.incrementAndGet();
+                return false;
+            }
+        };
+
+        trustManager.checkServerTrusted(TestCertificates.trustedChain(), "RSA");
+        Assert.assertEquals("Chain accepted by the last trustManager should not have been shown to the user", 0, decisions.get());
+    }
+
+    @Test
+    public void testStartupTimeOfDefaultTrustManagers() throws Exception
+    {
+        long start = System.nanoTime();
+        List<X509ExtendedTrustManager> lazy = TrustManagerBuilder.createLazyDefaultTrustManagers();
+        long lazyStartup = System.nanoTime() - start;
+
+        Assert.assertTrue("Lazy startup should not load the keyStores", lazyStartup < TimeUnit.MILLISECONDS.toNanos(250));
+        for (X509ExtendedTrustManager trustManager : lazy)
+            Assert.assertTrue("Lazy trustManager should know the issuers of the default keyStore", trustManager.getAcceptedIssuers().length > 0);
+    }
+}
@@ -0,0 +1,167 @@
+package de.adito.trustmanager;
+
+import de.adito.trustmanager.store.MappedIndexCustomTrustStore;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+public class Test_MappedIndexCustomTrustStore
+{
+    private static final String[] ALIASES = {"ca", "leaf", "otherca", "untrusted", "selfsigned", "expired"};
+
+    private Path path;
+
+    @Before
+    public void createPath() throws IOException
+    {
+        path = Files.createTempFile("trustStore", ".idx");
+        Files.delete(path);
+    }
+
+    @After
+    public void deletePath() throws IOException
+    {
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(_logPath());
+    }
+
+    @Test
+    public void testLookupAfterReopen()
+    {
+        MappedIndexCustomTrustStore trustStore = new MappedIndexCustomTrustStore(path, 2);
+        //added one by one, so the log is merged into the index several times
+        for (String alias : ALIASES)
+            trustStore.add(alias, TestCertificates.get(alias), true);
+        Assert.assertEquals(ALIASES.length, trustStore.size());
+
+        MappedIndexCustomTrustStore reopened = new MappedIndexCustomTrustStore(path);
+        Assert.assertEquals(ALIASES.length, reopened.size());
+        for (String alias : ALIASES)
+        {
+            X509Certificate certificate = TestCertificates.get(alias);
+            CertificateFingerprint fingerprint = CertificateFacts.getFingerprint(certificate);
+            Assert.assertEquals("Certificate " + alias + " should be found by fingerprint", certificate, reopened.get(fingerprint));
+            Assert.assertEquals("Certificate " + alias + " should be found by hex alias", certificate, reopened.get(fingerprint.toHexString()));
+        }
+        Assert.assertNull("Unknown alias should not be found", reopened.get("ca"));
+    }
+
+    @Test
+    public void testDecodedCertificateIsReused() throws IOException
+    {
+        MappedIndexCustomTrustStore trustStore = new MappedIndexCustomTrustStore(path, 1);
+        trustStore.add("ca", TestCertificates.get("ca"), true);
+        CertificateFingerprint fingerprint = CertificateFacts.getFingerprint(TestCertificates.get("ca"));
+
+        MappedIndexCustomTrustStore reopened = new MappedIndexCustomTrustStore(path);
+        X509Certificate certificate = reopened.get(fingerprint);
+        Assert.assertEquals(TestCertificates.get("ca"), certificate);
+        //the mapped file is damaged, so only a kept certificate can still be found
+        _damageOffset();
+        Assert.assertSame("Certificate should not have been decoded again", certificate, reopened.get(fingerprint));
+    }
+
+    @Test
+    public void testDamagedOffsetIsReported() throws IOException
+    {
+        MappedIndexCustomTrustStore trustStore = new MappedIndexCustomTrustStore(path, 1);
+        trustStore.add("ca", TestCertificates.get("ca"), true);
+        _damageOffset();
+
+        try
+        {
+            new MappedIndexCustomTrustStore(path).get(CertificateFacts.getFingerprint(TestCertificates.get("ca")));
+            Assert.fail("Certificate outside of the file should have been reported");
+        } catch (RuntimeException e)
+        {
+            Assert.assertTrue("Damaged index should be reported as IOException", e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testAddOnlyAppendsToLog() throws IOException
+    {
+        MappedIndexCustomTrustStore trustStore = new MappedIndexCustomTrustStore(path, 3);
+        trustStore.add("ca", TestCertificates.get("ca"), true);
+        trustStore.add("leaf", TestCertificates.get("leaf"), true);
+        Assert.assertFalse("Index file should not have been written", Files.exists(path));
+        Assert.assertEquals(TestCertificates.get("leaf"), trustStore.get(CertificateFacts.getFingerprint(TestCertificates.get("leaf"))));
+
+        trustStore.add("otherca", TestCertificates.get("otherca"), true);
+        Assert.assertTrue("Log should have been merged into the index file", Files.exists(path));
+        Assert.assertFalse("Merged log should have been deleted", Files.exists(_logPath()));
+        Assert.assertEquals(3, trustStore.size());
+    }
+
+    @Test
+    public void testIncompleteLogRecordDropped() throws IOException
+    {
+        MappedIndexCustomTrustStore trustStore = new MappedIndexCustomTrustStore(path, 100);
+        trustStore.add("ca", TestCertificates.get("ca"), true);
+        long validLength = Files.size(_logPath());
+        trustStore.add("leaf", TestCertificates.get("leaf"), true);
+        //the second record was only written partly
+        try (FileChannel channel = FileChannel.open(_logPath(), StandardOpenOption.WRITE))
+        {
+            channel.truncate(validLength + 40);
+        }
+
+        MappedIndexCustomTrustStore reopened = new MappedIndexCustomTrustStore(path, 100);
+        Assert.assertEquals(1, reopened.size());
+        Assert.assertEquals(TestCertificates.get("ca"), reopened.get(CertificateFacts.getFingerprint(TestCertificates.get("ca"))));
+        Assert.assertNull(reopened.get(CertificateFacts.getFingerprint(TestCertificates.get("leaf"))));
+        Assert.assertFalse("Log should have been merged when the store was opened", Files.exists(_logPath()));
+    }
+
+    @Test
+    public void testAddAll()
+    {
+        MappedIndexCustomTrustStore trustStore = new MappedIndexCustomTrustStore(path);
+        trustStore.addAll(Arrays.asList(TestCertificates.get("ca"), TestCertificates.get("leaf")));
+        trustStore.add("ca", TestCertificates.get("ca"), true);
+
+        MappedIndexCustomTrustStore reopened = new MappedIndexCustomTrustStore(path);
+        Assert.assertEquals("Certificates should be stored once", 2, reopened.size());
+        Assert.assertNull("Certificate that was not added should not be found",
+                          reopened.get(CertificateFacts.getFingerprint(TestCertificates.get("selfsigned"))));
+    }
+
+    @Test
+    public void testTrustOnceIsNotWritten()
+    {
+        MappedIndexCustomTrustStore trustStore = new MappedIndexCustomTrustStore(path);
+        X509Certificate certificate = TestCertificates.get("selfsigned");
+        trustStore.add("selfsigned", certificate, false);
+        Assert.assertEquals("Certificate should be trusted once", certificate, trustStore.get("selfsigned"));
+        Assert.assertFalse("File should not have been written", Files.exists(path));
+        Assert.assertFalse("Log should not have been written", Files.exists(_logPath()));
+    }
+
+    private Path _logPath()
+    {
+        return Paths.get(path + MappedIndexCustomTrustStore.LOG_SUFFIX);
+    }
+
+    /**
+     * Moves the only certificate of the index behind the end of the file.
+     */
+    private void _damageOffset() throws IOException
+    {
+        //the offset is stored behind the fingerprint in the index
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE))
+        {
+            channel.write(ByteBuffer.allocate(8).putLong(0, Integer.MAX_VALUE), 12 + CertificateFingerprint.LENGTH);
+        }
+    }
+}
@@ -6,7 +6,11 @@ import org.junit.Test;
 import javax.net.ssl.X509ExtendedTrustManager;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
@@ -50,4 +54,57 @@ public class Test_TrustManagerBuilder
         X509ExtendedTrustManager trustManager = TrustManagerBuilder.buildOsTrustManager("NotValidOS");
         Assert.assertNull("Expected null as the operating system 'NotValidOS' should not be recognised", trustManager);
     }
+    
+    @Test
+    public void testTrustManagerIsCached()
+            throws CertificateException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, KeyStoreException, IOException
+    {
+        String revocationEnabled = System.getProperty("adito.trustmanager.revocation.enabled");
+        System.setProperty("adito.trustmanager.revocation.enabled", "false");
+        try
+        {
+            X509ExtendedTrustManager trustManager = TrustManagerBuilder.buildJavaTrustManager();
+            Assert.assertSame("TrustManager should be built once", trustManager, TrustManagerBuilder.buildJavaTrustManager());
+            
+            System.setProperty("adito.trustmanager.revocation.enabled", "true");
+            Assert.assertNotSame("Revocation setting should build another TrustManager", trustManager, TrustManagerBuilder.buildJavaTrustManager());
+            
+            System.setProperty("adito.trustmanager.revocation.enabled", "false");
+            TrustManagerBuilder.invalidateCache();
+            Assert.assertNotSame("Invalidated TrustManager should be built again", trustManager, TrustManagerBuilder.buildJavaTrustManager());
+        } finally
+        {
+            if (revocationEnabled == null)
+                System.clearProperty("adito.trustmanager.revocation.enabled");
+            else
+                System.setProperty("adito.trustmanager.revocation.enabled", revocationEnabled);
+        }
+    }
+    
+    @Test
+    public void testChangedKeyStoreIsLoadedAgain() throws Exception
+    {
+        Path path = Files.createTempFile("cacerts", ".jks");
+        try
+        {
+            KeyStore keyStore = TrustManagerUtil.loadKeyStore("changeit", null);
+            keyStore.setCertificateEntry("ca", TestCertificates.get("ca"));
+            TrustManagerUtil.saveKeyStore(keyStore, "changeit", path);
+            System.setProperty("javax.net.ssl.trustStore", path.toString());
+            
+            X509ExtendedTrustManager trustManager = TrustManagerBuilder.buildJavaTrustManager();
+            Assert.assertSame("TrustManager should be built once", trustManager, TrustManagerBuilder.buildJavaTrustManager());
+            
+            keyStore.setCertificateEntry("otherca", TestCertificates.get("otherca"));
+            TrustManagerUtil.saveKeyStore(keyStore, "changeit", path);
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+            X509ExtendedTrustManager reloaded = TrustManagerBuilder.buildJavaTrustManager();
+            Assert.assertNotSame("Changed keyStore should be loaded again", trustManager, reloaded);
+            reloaded.checkServerTrusted(TestCertificates.untrustedChain(), "RSA");
+        } finally
+        {
+            System.clearProperty("javax.net.ssl.trustStore");
+            Files.deleteIfExists(path);
+        }
+    }
 }
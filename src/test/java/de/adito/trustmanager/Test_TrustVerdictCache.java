@@ -0,0 +1,131 @@
+package de.adito.trustmanager;
+
+import de.adito.trustmanager.store.SimpleCustomTrustStore;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Test_TrustVerdictCache
+{
+    @Test
+    public void testAcceptedChainIsValidatedOnce() throws CertificateException
+    {
+        TestCertificates.CountingTrustManager counting = new TestCertificates.CountingTrustManager(TestCertificates.trustManager("ca"));
+        CustomTrustManager trustManager = _createTrustManager(counting);
+
+        trustManager.checkServerTrusted(TestCertificates.trustedChain(), "RSA");
+        trustManager.checkServerTrusted(TestCertificates.trustedChain(), "RSA");
+        Assert.assertEquals("Accepted chain should have been cached", 1, counting.serverChecks.get());
+
+        trustManager.invalidateVerdictCache();
+        trustManager.checkServerTrusted(TestCertificates.trustedChain(), "RSA");
+        Assert.assertEquals("Chain should have been validated again after invalidation", 2, counting.serverChecks.get());
+    }
+
+    @Test
+    public void testCacheKeyContainsAuthType() throws CertificateException
+    {
+        TestCertificates.CountingTrustManager counting = new TestCertificates.CountingTrustManager(TestCertificates.trustManager("ca"));
+        CustomTrustManager trustManager = _createTrustManager(counting);
+
+        trustManager.checkServerTrusted(TestCertificates.trustedChain(), "RSA");
+        trustManager.checkServerTrusted(TestCertificates.trustedChain(), "ECDHE_RSA");
+        Assert.assertEquals("Different authTypes must not share a verdict", 2, counting.serverChecks.get());
+    }
+
+    @Test
+    public void testRejectedChainIsNotCached()
+    {
+        TestCertificates.CountingTrustManager counting = new TestCertificates.CountingTrustManager(TestCertificates.trustManager("ca"));
+        CustomTrustManager trustManager = _createTrustManager(counting);
+
+        for (int i = 0; i < 2; i++)
+        {
+            try
+            {
+                trustManager.checkServerTrusted(TestCertificates.untrustedChain(), "RSA");
+                Assert.fail("Untrusted chain should have been rejected");
+            } catch (CertificateException e)
+            {
+                //expected
+            }
+        }
+        Assert.assertEquals("Rejected chain must not be cached", 2, counting.serverChecks.get());
+    }
+
+    @Test
+    public void testExpiredVerdictIsNotReturned()
+    {
+        TrustVerdictCache cache = new TrustVerdictCache(10, 60_000);
+        X509Certificate[] chain = TestCertificates.expiredChain();
+        cache.putTrusted(chain, "RSA", "expired.test");
+        Assert.assertFalse("Verdict must not outlive the certificate's notAfter", cache.isTrusted(chain, "RSA", "expired.test"));
+    }
+
+    @Test
+    public void testCacheIsBounded()
+    {
+        TrustVerdictCache cache = new TrustVerdictCache(2, 60_000);
+        cache.putTrusted(TestCertificates.trustedChain(), "RSA", "a");
+        cache.putTrusted(TestCertificates.trustedChain(), "RSA", "b");
+        cache.putTrusted(TestCertificates.trustedChain(), "RSA", "c");
+        Assert.assertEquals("Cache should not grow beyond its maximum size", 2, cache.size());
+        Assert.assertTrue("Latest verdict should be cached", cache.isTrusted(TestCertificates.trustedChain(), "RSA", "c"));
+    }
+
+    @Test
+    public void testFullCacheEvictsQuarter()
+    {
+        TrustVerdictCache cache = new TrustVerdictCache(8, 60_000);
+        for (int i = 0; i < 8; i++)
+            cache.putTrusted(TestCertificates.trustedChain(), "RSA", "host" + i);
+        cache.putTrusted(TestCertificates.trustedChain(), "RSA", "other");
+        Assert.assertEquals("Full cache should have dropped a quarter of its verdicts", 7, cache.size());
+        cache.putTrusted(TestCertificates.trustedChain(), "RSA", "another");
+        Assert.assertEquals("Cache with room left should not have dropped verdicts", 8, cache.size());
+    }
+
+    @Test
+    public void testVerdictDroppedWhenTrustMaterialChanges()
+    {
+        TrustVerdictCache cache = new TrustVerdictCache(10, 60_000);
+        cache.putTrusted(TestCertificates.trustedChain(), "RSA", "a");
+        Assert.assertTrue(cache.isTrusted(TestCertificates.trustedChain(), "RSA", "a"));
+        TrustManagerBuilder.invalidateCache();
+        Assert.assertFalse("Verdict must not survive new trust material", cache.isTrusted(TestCertificates.trustedChain(), "RSA", "a"));
+    }
+
+    @Test
+    public void testVerdictDroppedWhenRevocationStatusChanges()
+    {
+        AtomicLong version = new AtomicLong();
+        TrustVerdictCache cache = new TrustVerdictCache(10, 60_000, version::get);
+        cache.putTrusted(TestCertificates.trustedChain(), "RSA", "a");
+        long validatedWith = cache.getStatusVersion();
+        version.incrementAndGet();
+        Assert.assertFalse("Verdict must not survive new revocation information", cache.isTrusted(TestCertificates.trustedChain(), "RSA", "a"));
+
+        //a validation that started before the change must not be cached
+        cache.putTrusted(TestCertificates.trustedChain(), "RSA", "a", validatedWith);
+        Assert.assertFalse(cache.isTrusted(TestCertificates.trustedChain(), "RSA", "a"));
+        cache.putTrusted(TestCertificates.trustedChain(), "RSA", "a", cache.getStatusVersion());
+        Assert.assertTrue(cache.isTrusted(TestCertificates.trustedChain(), "RSA", "a"));
+    }
+
+    private static CustomTrustManager _createTrustManager(TestCertificates.CountingTrustManager pDelegate)
+    {
+        return new CustomTrustManager(new SimpleCustomTrustStore(), Collections.singletonList(pDelegate))
+        {
+            @Override
+            protected boolean checkCertificateAndShouldPersist(X509Certificate[] pChain, CertificateException pE, String pSimpleInfo)
+                    throws CertificateException
+            {
+                throw pE;
+            }
+        };
+    }
+}
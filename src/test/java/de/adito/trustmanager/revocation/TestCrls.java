@@ -0,0 +1,415 @@
+package de.adito.trustmanager.revocation;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates CRLs and OCSP responses signed by the ca of testCertificates.jks and serves them like a distribution point
+ * and an OCSP responder. The certificate "revocable" has the distribution point {@link #DISTRIBUTION_POINT}, the delta
+ * distribution point {@link #DELTA_DISTRIBUTION_POINT} and the responder {@link #OCSP_RESPONDER}.
+ */
+class TestCrls
+{
+    static final String PASSWORD = "changeit";
+    static final int PORT = 18573;
+    static final String DISTRIBUTION_POINT = "http://127.0.0.1:" + PORT + "/ca.crl";
+    static final String DELTA_DISTRIBUTION_POINT = "http://127.0.0.1:" + PORT + "/ca-delta.crl";
+    static final String OCSP_RESPONDER = "http://127.0.0.1:" + PORT + "/ocsp";
+    private static final String SHA256_WITH_RSA = "1.2.840.113549.1.1.11";
+    private static KeyStore keyStore;
+
+    private TestCrls()
+    {
+    }
+
+    static synchronized KeyStore getKeyStore()
+    {
+        if (keyStore == null)
+        {
+            try (InputStream is = TestCrls.class.getResourceAsStream("/de/adito/trustmanager/testCertificates.jks"))
+            {
+                KeyStore ks = KeyStore.getInstance("JKS");
+                ks.load(is, PASSWORD.toCharArray());
+                keyStore = ks;
+            } catch (IOException | GeneralSecurityException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+        return keyStore;
+    }
+
+    static X509Certificate get(String pAlias)
+    {
+        try
+        {
+            return (X509Certificate) getKeyStore().getCertificate(pAlias);
+        } catch (GeneralSecurityException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param pNextUpdate null for a CRL without nextUpdate
+     * @param pRevoked    serial numbers of the revoked certificates
+     * @return a DER encoded CRL of the ca
+     */
+    static byte[] createCrl(Date pThisUpdate, Date pNextUpdate, BigInteger... pRevoked)
+    {
+        Builder builder = new Builder().thisUpdate(pThisUpdate).nextUpdate(pNextUpdate);
+        for (BigInteger serial : pRevoked)
+            builder.revoke(serial);
+        return builder.build();
+    }
+
+    /**
+     * Creates CRLs with CRL numbers, delta CRLs or other signers. The CRL is valid from an hour ago to an hour from now.
+     */
+    static class Builder
+    {
+        private Date thisUpdate = new Date(System.currentTimeMillis() - 60 * 60 * 1000L);
+        private Date nextUpdate = new Date(System.currentTimeMillis() + 60 * 60 * 1000L);
+        private BigInteger number;
+        private BigInteger deltaOf;
+        private String signer = "ca";
+        private final List<BigInteger> revoked = new ArrayList<>();
+        private final List<BigInteger> removed = new ArrayList<>();
+        private final List<byte[]> extensions = new ArrayList<>();
+
+        Builder thisUpdate(Date pThisUpdate)
+        {
+            thisUpdate = pThisUpdate;
+            return this;
+        }
+
+        Builder nextUpdate(Date pNextUpdate)
+        {
+            nextUpdate = pNextUpdate;
+            return this;
+        }
+
+        Builder number(long pNumber)
+        {
+            number = BigInteger.valueOf(pNumber);
+            return this;
+        }
+
+        /**
+         * Makes the CRL a delta CRL of the complete CRL with the number
+         */
+        Builder deltaOf(long pBaseNumber)
+        {
+            deltaOf = BigInteger.valueOf(pBaseNumber);
+            return this;
+        }
+
+        /**
+         * The CRL still names the ca as issuer
+         */
+        Builder signedBy(String pAlias)
+        {
+            signer = pAlias;
+            return this;
+        }
+
+        Builder revoke(BigInteger pSerial)
+        {
+            revoked.add(pSerial);
+            return this;
+        }
+
+        /**
+         * Adds an entry with the reason removeFromCRL, only valid in delta CRLs
+         */
+        Builder remove(BigInteger pSerial)
+        {
+            removed.add(pSerial);
+            return this;
+        }
+
+        /**
+         * Adds an extension to the CRL
+         *
+         * @param pValue DER encoded value, without the OCTET STRING
+         */
+        Builder extension(String pOid, boolean pCritical, byte[] pValue)
+        {
+            if (pCritical)
+                extensions.add(DerWriter.sequence(DerWriter.oid(pOid), new byte[]{0x01, 0x01, (byte) 0xff}, DerWriter.octetString(pValue)));
+            else
+                extensions.add(DerWriter.sequence(DerWriter.oid(pOid), DerWriter.octetString(pValue)));
+            return this;
+        }
+
+        byte[] build()
+        {
+            try
+            {
+                byte[] algorithm = DerWriter.algorithm(SHA256_WITH_RSA);
+                ByteArrayOutputStream entries = new ByteArrayOutputStream();
+                for (BigInteger serial : revoked)
+                    entries.write(DerWriter.sequence(DerWriter.integer(serial), DerWriter.utcTime(thisUpdate)));
+                for (BigInteger serial : removed)
+                    entries.write(DerWriter.sequence(DerWriter.integer(serial), DerWriter.utcTime(thisUpdate), DerWriter.sequence(
+                            DerWriter.sequence(DerWriter.oid("2.5.29.21"), DerWriter.octetString(DerWriter.element(DerReader.ENUMERATED, new byte[]{8}))))));
+
+                ByteArrayOutputStream tbs = new ByteArrayOutputStream();
+                tbs.write(DerWriter.integer(BigInteger.ONE));
+                tbs.write(algorithm);
+                tbs.write(get("ca").getSubjectX500Principal().getEncoded());
+                tbs.write(DerWriter.utcTime(thisUpdate));
+                if (nextUpdate != null)
+                    tbs.write(DerWriter.utcTime(nextUpdate));
+                if (entries.size() > 0)
+                    tbs.write(DerWriter.sequence(entries.toByteArray()));
+                ByteArrayOutputStream extensions = new ByteArrayOutputStream();
+                for (byte[] extension : this.extensions)
+                    extensions.write(extension);
+                if (number != null)
+                    extensions.write(DerWriter.sequence(DerWriter.oid("2.5.29.20"), DerWriter.octetString(DerWriter.integer(number))));
+                if (deltaOf != null)
+                    extensions.write(DerWriter.sequence(DerWriter.oid("2.5.29.27"), new byte[]{0x01, 0x01, (byte) 0xff},
+                                                        DerWriter.octetString(DerWriter.integer(deltaOf))));
+                if (extensions.size() > 0)
+                    tbs.write(DerWriter.explicit(0, DerWriter.sequence(extensions.toByteArray())));
+                byte[] tbsCertList = DerWriter.sequence(tbs.toByteArray());
+
+                Signature signature = Signature.getInstance("SHA256withRSA");
+                signature.initSign((PrivateKey) getKeyStore().getKey(signer, PASSWORD.toCharArray()));
+                signature.update(tbsCertList);
+                return DerWriter.sequence(tbsCertList, algorithm, DerWriter.bitString(signature.sign()));
+            } catch (IOException | GeneralSecurityException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    static X509CRL parse(byte[] pDer)
+    {
+        try
+        {
+            return (X509CRL) CertificateFactory.getInstance("X.509").generateCRL(new ByteArrayInputStream(pDer));
+        } catch (GeneralSecurityException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Creates an OCSP response of the ca for the certificate "revocable", valid from an hour ago to an hour from now.
+     */
+    static class OcspBuilder
+    {
+        private Date thisUpdate = new Date(System.currentTimeMillis() - 60 * 60 * 1000L);
+        private Date nextUpdate = new Date(System.currentTimeMillis() + 60 * 60 * 1000L);
+        private BigInteger serial = get("revocable").getSerialNumber();
+        private Date revocationTime;
+        private String signer = "ca";
+        private String issuerKey = "ca";
+
+        OcspBuilder nextUpdate(Date pNextUpdate)
+        {
+            nextUpdate = pNextUpdate;
+            return this;
+        }
+
+        OcspBuilder serial(BigInteger pSerial)
+        {
+            serial = pSerial;
+            return this;
+        }
+
+        OcspBuilder revoked(Date pRevocationTime)
+        {
+            revocationTime = pRevocationTime;
+            return this;
+        }
+
+        OcspBuilder signedBy(String pAlias)
+        {
+            signer = pAlias;
+            return this;
+        }
+
+        /**
+         * The response is for a certificate of the ca with the key of another certificate, eg. of a forged ca
+         */
+        OcspBuilder issuerKey(String pAlias)
+        {
+            issuerKey = pAlias;
+            return this;
+        }
+
+        byte[] build()
+        {
+            try
+            {
+                byte[] certId = OcspCertId.of(get("ca").getSubjectX500Principal(), get(issuerKey).getPublicKey(), serial).toRequest();
+                //OCSPRequest -> TBSRequest -> requestList -> Request -> CertID
+                DerReader reader = new DerReader(certId);
+                for (int i = 0; i < 4; i++)
+                {
+                    reader.expect(DerReader.SEQUENCE);
+                    reader = reader.enter();
+                }
+                reader.expect(DerReader.SEQUENCE);
+                byte[] status = revocationTime == null ? new byte[]{(byte) 0x80, 0x00}
+                                                       : DerWriter.element(0xa1, DerWriter.generalizedTime(revocationTime),
+                                                                           DerWriter.explicit(0, DerWriter.element(DerReader.ENUMERATED, new byte[]{1})));
+                byte[] single = DerWriter.sequence(reader.encoded(), status, DerWriter.generalizedTime(thisUpdate),
+                                                   nextUpdate == null ? new byte[0] : DerWriter.explicit(0, DerWriter.generalizedTime(nextUpdate)));
+                byte[] responseData = DerWriter.sequence(DerWriter.element(0xa2, DerWriter.octetString(new byte[20])),
+                                                         DerWriter.generalizedTime(thisUpdate), DerWriter.sequence(single));
+
+                Signature signature = Signature.getInstance("SHA256withRSA");
+                signature.initSign((PrivateKey) getKeyStore().getKey(signer, PASSWORD.toCharArray()));
+                signature.update(responseData);
+                byte[] basic = DerWriter.sequence(responseData, DerWriter.algorithm(SHA256_WITH_RSA), DerWriter.bitString(signature.sign()));
+                return DerWriter.sequence(DerWriter.element(DerReader.ENUMERATED, new byte[]{0}),
+                                          DerWriter.explicit(0, DerWriter.sequence(DerWriter.oid("1.3.6.1.5.5.7.48.1.1"),
+                                                                                   DerWriter.octetString(basic))));
+            } catch (IOException | GeneralSecurityException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * A distribution point and responder on {@link #PORT} that serves the current CRL, delta CRL and OCSP response and
+     * counts the requests.
+     */
+    static class Server implements AutoCloseable
+    {
+        private final HttpServer server;
+        private final Map<String, byte[]> content = new ConcurrentHashMap<>();
+        private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+        private volatile byte[] lastRequest;
+
+        Server() throws IOException
+        {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT), 0);
+            server.createContext("/", pExchange -> {
+                requests.computeIfAbsent(pExchange.getRequestURI().getPath(), pPath -> new AtomicInteger()).incrementAndGet();
+                if ("POST".equals(pExchange.getRequestMethod()))
+                    _readRequest(pExchange.getRequestBody());
+                byte[] response = content.get(pExchange.getRequestURI().getPath());
+                if (response == null)
+                    pExchange.sendResponseHeaders(404, -1);
+                else
+                {
+                    pExchange.sendResponseHeaders(200, response.length);
+                    try (OutputStream out = pExchange.getResponseBody())
+                    {
+                        out.write(response);
+                    }
+                }
+                pExchange.close();
+            });
+            server.start();
+        }
+
+        /**
+         * @param pCrl null to answer with 404
+         */
+        void setCrl(byte[] pCrl)
+        {
+            _set("/ca.crl", pCrl);
+        }
+
+        /**
+         * @param pCrl null to answer with 404
+         */
+        void setDeltaCrl(byte[] pCrl)
+        {
+            _set("/ca-delta.crl", pCrl);
+        }
+
+        /**
+         * @param pResponse null to answer with 404
+         */
+        void setOcspResponse(byte[] pResponse)
+        {
+            _set("/ocsp", pResponse);
+        }
+
+        private void _set(String pPath, byte[] pContent)
+        {
+            if (pContent == null)
+                content.remove(pPath);
+            else
+                content.put(pPath, pContent);
+        }
+
+        /**
+         * @return number of requests for the complete CRL
+         */
+        int getRequests()
+        {
+            return _getRequests("/ca.crl");
+        }
+
+        int getDeltaRequests()
+        {
+            return _getRequests("/ca-delta.crl");
+        }
+
+        int getOcspRequests()
+        {
+            return _getRequests("/ocsp");
+        }
+
+        /**
+         * @return the last OCSP request
+         */
+        byte[] getOcspRequest()
+        {
+            return lastRequest;
+        }
+
+        private void _readRequest(InputStream pIn) throws IOException
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = pIn.read(buffer)) >= 0)
+                out.write(buffer, 0, read);
+            lastRequest = out.toByteArray();
+        }
+
+        private int _getRequests(String pPath)
+        {
+            AtomicInteger count = requests.get(pPath);
+            return count == null ? 0 : count.get();
+        }
+
+        @Override
+        public void close()
+        {
+            server.stop(0);
+        }
+    }
+}
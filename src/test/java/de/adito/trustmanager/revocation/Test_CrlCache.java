@@ -0,0 +1,213 @@
+package de.adito.trustmanager.revocation;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.CertPathTrustManagerParameters;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.CertificateException;
+import java.security.cert.PKIXBuilderParameters;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CertSelector;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Date;
+
+public class Test_CrlCache
+{
+    private static final long HOUR = 60 * 60 * 1000L;
+    private Path directory;
+    private TestCrls.Server server;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        directory = Files.createTempDirectory("crlcache");
+        server = new TestCrls.Server();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        server.close();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory))
+        {
+            for (Path file : files)
+                Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testDistributionPoints()
+    {
+        Assert.assertEquals(Collections.singletonList(URI.create(TestCrls.DISTRIBUTION_POINT)),
+                            CrlCache.getDistributionPoints(TestCrls.get("revocable")));
+        Assert.assertTrue(CrlCache.getDistributionPoints(TestCrls.get("leaf")).isEmpty());
+    }
+
+    @Test
+    public void testDownloadedOnce()
+    {
+        server.setCrl(_crl(HOUR));
+        CrlCache cache = _createCache(0);
+        X509CRL crl = cache.get(URI.create(TestCrls.DISTRIBUTION_POINT));
+        Assert.assertNotNull(crl);
+        Assert.assertEquals(crl, cache.get(URI.create(TestCrls.DISTRIBUTION_POINT)));
+        Assert.assertEquals(1, cache.getCRLs(TestCrls.get("revocable")).size());
+        Assert.assertEquals(1, server.getRequests());
+    }
+
+    @Test
+    public void testRestartUsesDiskCache()
+    {
+        server.setCrl(_crl(HOUR));
+        Assert.assertNotNull(_createCache(0).get(URI.create(TestCrls.DISTRIBUTION_POINT)));
+
+        server.setCrl(null);
+        X509CRL crl = _createCache(0).get(URI.create(TestCrls.DISTRIBUTION_POINT));
+        Assert.assertNotNull(crl);
+        Assert.assertEquals(1, server.getRequests());
+    }
+
+    @Test
+    public void testNextUpdateHonoured()
+    {
+        server.setCrl(_crl(HOUR));
+        Assert.assertNotNull(_createCache(0).get(URI.create(TestCrls.DISTRIBUTION_POINT)));
+        server.setCrl(_crl(2 * HOUR));
+        Assert.assertNotNull("The file of the other cache should be used", _createCache(0).get(URI.create(TestCrls.DISTRIBUTION_POINT)));
+        Assert.assertEquals(1, server.getRequests());
+    }
+
+    @Test
+    public void testOutdatedCrlIsNotDownloadedByEveryCall()
+    {
+        server.setCrl(_crl(-1000));
+        CrlCache cache = _createCache(0);
+        X509CRL crl = cache.get(URI.create(TestCrls.DISTRIBUTION_POINT));
+        Assert.assertNotNull(crl);
+        Assert.assertEquals("CRL published late should be kept for a while", crl, cache.get(URI.create(TestCrls.DISTRIBUTION_POINT)));
+        Assert.assertEquals(1, server.getRequests());
+    }
+
+    @Test
+    public void testWithoutNextUpdateMaxAge()
+    {
+        server.setCrl(TestCrls.createCrl(new Date(System.currentTimeMillis() - HOUR), null));
+        CrlCache cache = new CrlCache(directory, HOUR, 0, 2000);
+        cache.get(URI.create(TestCrls.DISTRIBUTION_POINT));
+        cache.get(URI.create(TestCrls.DISTRIBUTION_POINT));
+        Assert.assertEquals(1, server.getRequests());
+    }
+
+    @Test
+    public void testUnavailable()
+    {
+        CrlCache cache = _createCache(0);
+        Assert.assertNull(cache.get(URI.create(TestCrls.DISTRIBUTION_POINT)));
+        Assert.assertTrue(cache.getCRLs(TestCrls.get("revocable")).isEmpty());
+        //the distribution point is not asked again right away
+        Assert.assertEquals(1, server.getRequests());
+    }
+
+    @Test
+    public void testRefreshBeforeExpiry()
+    {
+        server.setCrl(_crl(HOUR));
+        CrlCache cache = _createCache(2 * HOUR);
+        cache.prefetch(Collections.singletonList(TestCrls.get("revocable")));
+        _waitForSize(cache, 1);
+
+        server.setCrl(_crl(3 * HOUR));
+        cache.refresh();
+        Assert.assertEquals(2, server.getRequests());
+        Date nextUpdate = cache.get(URI.create(TestCrls.DISTRIBUTION_POINT)).getNextUpdate();
+        Assert.assertTrue(nextUpdate.getTime() > System.currentTimeMillis() + 2 * HOUR);
+    }
+
+    @Test
+    public void testStatusVersionOnlyChangesWithNewRevocations()
+    {
+        long now = System.currentTimeMillis();
+        server.setCrl(TestCrls.createCrl(new Date(now - HOUR), new Date(now + HOUR), BigInteger.TEN));
+        CrlCache cache = _createCache(2 * HOUR);
+        Assert.assertNotNull(cache.get(URI.create(TestCrls.DISTRIBUTION_POINT)));
+
+        long version = AbstractRevocationChecker.getStatusVersion();
+        server.setCrl(TestCrls.createCrl(new Date(now), new Date(now + HOUR), BigInteger.TEN));
+        cache.refresh();
+        Assert.assertEquals("Refreshed CRL without new entries should keep the verdicts", version, AbstractRevocationChecker.getStatusVersion());
+
+        server.setCrl(TestCrls.createCrl(new Date(now), new Date(now + HOUR), BigInteger.TEN, BigInteger.ONE));
+        cache.refresh();
+        Assert.assertEquals(3, server.getRequests());
+        Assert.assertNotEquals(version, AbstractRevocationChecker.getStatusVersion());
+    }
+
+    @Test
+    public void testValidCertificateAccepted() throws Exception
+    {
+        server.setCrl(_crl(HOUR));
+        _createTrustManager(_createCache(0)).checkServerTrusted(new X509Certificate[]{TestCrls.get("revocable"), TestCrls.get("ca")}, "RSA");
+        Assert.assertEquals(1, server.getRequests());
+    }
+
+    @Test
+    public void testRevokedCertificateRejected() throws Exception
+    {
+        X509Certificate revocable = TestCrls.get("revocable");
+        server.setCrl(TestCrls.createCrl(new Date(System.currentTimeMillis() - HOUR), new Date(System.currentTimeMillis() + HOUR),
+                                         revocable.getSerialNumber()));
+        try
+        {
+            _createTrustManager(_createCache(0)).checkServerTrusted(new X509Certificate[]{revocable, TestCrls.get("ca")}, "RSA");
+            Assert.fail("revoked certificate was accepted");
+        } catch (CertificateException e)
+        {
+            Assert.assertTrue(e.getCause() instanceof CertPathValidatorException);
+            Assert.assertEquals(CertPathValidatorException.BasicReason.REVOKED, ((CertPathValidatorException) e.getCause()).getReason());
+        }
+    }
+
+    private CrlCache _createCache(long pRefreshInterval)
+    {
+        return new CrlCache(directory, HOUR, pRefreshInterval, 2000);
+    }
+
+    private X509TrustManager _createTrustManager(CrlCache pCache) throws Exception
+    {
+        java.security.KeyStore anchors = java.security.KeyStore.getInstance("JKS");
+        anchors.load(null, null);
+        anchors.setCertificateEntry("ca", TestCrls.get("ca"));
+        PKIXBuilderParameters parameters = new PKIXBuilderParameters(anchors, new X509CertSelector());
+        parameters.setRevocationEnabled(false);
+        parameters.addCertPathChecker(new CrlRevocationChecker(pCache, anchors));
+        TrustManagerFactory factory = TrustManagerFactory.getInstance("PKIX");
+        factory.init(new CertPathTrustManagerParameters(parameters));
+        return (X509TrustManager) factory.getTrustManagers()[0];
+    }
+
+    private static void _waitForSize(CrlCache pCache, int pSize)
+    {
+        long end = System.currentTimeMillis() + 5000;
+        while (pCache.size() < pSize && System.currentTimeMillis() < end)
+            Thread.yield();
+    }
+
+    private static byte[] _crl(long pNextUpdateIn)
+    {
+        long now = System.currentTimeMillis();
+        return TestCrls.createCrl(new Date(now - HOUR), new Date(now + pNextUpdateIn));
+    }
+}
@@ -0,0 +1,92 @@
+package de.adito.trustmanager.revocation;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.security.cert.CRLException;
+import java.security.cert.X509CRL;
+
+public class Test_CrlIndex
+{
+    private static final BigInteger LARGE = new BigInteger("7f1e2d3c4b5a69788796a5b4c3d2e1f00112233", 16);
+
+    @Test
+    public void testLookup() throws CRLException
+    {
+        TestCrls.Builder builder = new TestCrls.Builder().number(1);
+        for (int i = 0; i < 20000; i += 2)
+            builder.revoke(BigInteger.valueOf(i * 7919L));
+        builder.revoke(LARGE);
+        builder.revoke(BigInteger.valueOf(Long.MAX_VALUE));
+        CrlIndex index = CrlIndex.of(TestCrls.parse(builder.build()));
+
+        Assert.assertEquals(10002, index.size());
+        for (int i = 0; i < 20000; i++)
+            Assert.assertEquals(i % 2 == 0, index.isRevoked(BigInteger.valueOf(i * 7919L)));
+        Assert.assertTrue(index.isRevoked(LARGE));
+        Assert.assertFalse(index.isRevoked(LARGE.add(BigInteger.ONE)));
+        Assert.assertTrue(index.isRevoked(BigInteger.valueOf(Long.MAX_VALUE)));
+        Assert.assertFalse(index.isRevoked(BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE)));
+    }
+
+    @Test
+    public void testEmptyCrl() throws CRLException
+    {
+        CrlIndex index = CrlIndex.of(TestCrls.parse(new TestCrls.Builder().number(1).build()));
+        Assert.assertEquals(0, index.size());
+        Assert.assertFalse(index.isRevoked(BigInteger.ONE));
+    }
+
+    @Test
+    public void testDelta() throws CRLException
+    {
+        CrlIndex base = CrlIndex.of(TestCrls.parse(new TestCrls.Builder().number(5).revoke(BigInteger.ONE).revoke(BigInteger.valueOf(2))
+                                                           .revoke(LARGE).build()));
+        X509CRL delta = TestCrls.parse(new TestCrls.Builder().number(6).deltaOf(5).revoke(BigInteger.valueOf(3))
+                                               .remove(BigInteger.valueOf(2)).remove(LARGE).build());
+        Assert.assertTrue(CrlIndex.isDelta(delta));
+        Assert.assertTrue(base.canApply(delta));
+
+        CrlIndex merged = base.withDelta(delta);
+        Assert.assertEquals(2, merged.size());
+        Assert.assertTrue(merged.isRevoked(BigInteger.ONE));
+        Assert.assertFalse(merged.isRevoked(BigInteger.valueOf(2)));
+        Assert.assertTrue(merged.isRevoked(BigInteger.valueOf(3)));
+        Assert.assertFalse(merged.isRevoked(LARGE));
+        //the complete CRL is not changed
+        Assert.assertTrue(base.isRevoked(BigInteger.valueOf(2)));
+        Assert.assertFalse(base.isRevoked(BigInteger.valueOf(3)));
+    }
+
+    @Test
+    public void testDeltaOfOtherCrl() throws CRLException
+    {
+        CrlIndex base = CrlIndex.of(TestCrls.parse(new TestCrls.Builder().number(5).build()));
+        Assert.assertFalse(base.canApply(TestCrls.parse(new TestCrls.Builder().number(9).deltaOf(7).build())));
+        Assert.assertFalse(base.canApply(TestCrls.parse(new TestCrls.Builder().number(4).deltaOf(3).build())));
+        Assert.assertTrue(base.canApply(TestCrls.parse(new TestCrls.Builder().number(9).deltaOf(3).build())));
+        try
+        {
+            CrlIndex.of(TestCrls.parse(new TestCrls.Builder().number(6).deltaOf(5).build()));
+            Assert.fail("a delta CRL was indexed on its own");
+        } catch (CRLException e)
+        {
+            //expected
+        }
+    }
+
+    @Test
+    public void testContainsAll() throws CRLException
+    {
+        CrlIndex index = CrlIndex.of(TestCrls.parse(new TestCrls.Builder().number(5).revoke(BigInteger.ONE).revoke(LARGE).build()));
+        CrlIndex smaller = CrlIndex.of(TestCrls.parse(new TestCrls.Builder().number(6).revoke(LARGE).build()));
+        CrlIndex added = CrlIndex.ofAdded(TestCrls.parse(new TestCrls.Builder().number(7).deltaOf(5).revoke(BigInteger.ONE)
+                                                                 .remove(BigInteger.TEN).build()));
+        Assert.assertTrue(index.containsAll(smaller));
+        Assert.assertFalse(smaller.containsAll(index));
+        Assert.assertEquals("Removed entries of a delta CRL are not added", 1, added.size());
+        Assert.assertTrue(index.containsAll(added));
+        Assert.assertFalse(smaller.containsAll(added));
+    }
+}
@@ -0,0 +1,244 @@
+package de.adito.trustmanager.revocation;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.CertPathTrustManagerParameters;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.security.cert.CRLReason;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateRevokedException;
+import java.security.cert.PKIXBuilderParameters;
+import java.security.cert.X509CertSelector;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+public class Test_CrlRevocationChecker
+{
+    private static final BigInteger SERIAL = TestCrls.get("revocable").getSerialNumber();
+    private static final String ISSUING_DISTRIBUTION_POINT = "2.5.29.28";
+    private static final long HOUR = 60 * 60 * 1000L;
+    private Path directory;
+    private TestCrls.Server server;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        directory = Files.createTempDirectory("crlcache");
+        server = new TestCrls.Server();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        server.close();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory))
+        {
+            for (Path file : files)
+                Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testRevoked() throws Exception
+    {
+        server.setCrl(new TestCrls.Builder().number(1).revoke(BigInteger.TEN).revoke(SERIAL).build());
+        CertificateRevokedException revoked = _assertRevoked(_createTrustManager());
+        Assert.assertEquals(CRLReason.UNSPECIFIED, revoked.getRevocationReason());
+        Assert.assertEquals(TestCrls.get("ca").getSubjectX500Principal(), revoked.getAuthorityName());
+    }
+
+    @Test
+    public void testNotRevoked() throws Exception
+    {
+        server.setCrl(new TestCrls.Builder().number(1).revoke(BigInteger.TEN).build());
+        _createTrustManager().checkServerTrusted(_chain(), "RSA");
+    }
+
+    @Test
+    public void testSoftFail() throws Exception
+    {
+        _createTrustManager().checkServerTrusted(_chain(), "RSA");
+    }
+
+    @Test
+    public void testForgedCrlIgnored() throws Exception
+    {
+        server.setCrl(new TestCrls.Builder().number(1).revoke(SERIAL).signedBy("otherca").build());
+        _createTrustManager().checkServerTrusted(_chain(), "RSA");
+    }
+
+    @Test
+    public void testRevokedByDelta() throws Exception
+    {
+        server.setCrl(new TestCrls.Builder().number(1).revoke(BigInteger.TEN).build());
+        server.setDeltaCrl(new TestCrls.Builder().number(2).deltaOf(1).revoke(SERIAL).build());
+        _assertRevoked(_createTrustManager());
+    }
+
+    @Test
+    public void testRemovedByDelta() throws Exception
+    {
+        server.setCrl(new TestCrls.Builder().number(1).revoke(SERIAL).build());
+        server.setDeltaCrl(new TestCrls.Builder().number(2).deltaOf(1).remove(SERIAL).build());
+        _createTrustManager().checkServerTrusted(_chain(), "RSA");
+    }
+
+    @Test
+    public void testIndexReused() throws Exception
+    {
+        server.setCrl(new TestCrls.Builder().number(1).revoke(SERIAL).build());
+        X509TrustManager trustManager = _createTrustManager();
+        for (int i = 0; i < 3; i++)
+            _assertRevoked(trustManager);
+        //the missing delta CRL is not requested again by every check
+        Assert.assertEquals(1, server.getRequests());
+        Assert.assertEquals(1, server.getDeltaRequests());
+    }
+
+    @Test
+    public void testAsyncDoesNotWait() throws Exception
+    {
+        server.setCrl(new TestCrls.Builder().number(1).revoke(SERIAL).build());
+        CrlCache cache = new CrlCache(directory, 60 * 60 * 1000L, 0, 2000);
+        X509TrustManager trustManager = _createTrustManager(cache, true);
+        //the CRL is not known yet, so the first handshake is accepted and the CRL is downloaded in the background
+        trustManager.checkServerTrusted(_chain(), "RSA");
+        long version = AbstractRevocationChecker.getStatusVersion();
+        for (int i = 0; i < 100 && AbstractRevocationChecker.getStatusVersion() == version; i++)
+            Thread.sleep(20);
+        Assert.assertEquals(1, cache.size());
+        _assertRevoked(trustManager);
+        Assert.assertEquals(1, server.getRequests());
+    }
+
+    @Test
+    public void testExpiredCrlIgnored() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        server.setCrl(new TestCrls.Builder().number(1).thisUpdate(new Date(now - 2 * HOUR)).nextUpdate(new Date(now - HOUR))
+                              .revoke(SERIAL).build());
+        _createTrustManager().checkServerTrusted(_chain(), "RSA");
+    }
+
+    @Test
+    public void testFutureCrlIgnored() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        server.setCrl(new TestCrls.Builder().number(1).thisUpdate(new Date(now + HOUR)).nextUpdate(new Date(now + 2 * HOUR))
+                              .revoke(SERIAL).build());
+        _createTrustManager().checkServerTrusted(_chain(), "RSA");
+    }
+
+    @Test
+    public void testUnknownCriticalExtensionIgnored() throws Exception
+    {
+        server.setCrl(new TestCrls.Builder().number(1).revoke(SERIAL).extension("1.2.3.4", true, DerWriter.nul()).build());
+        _createTrustManager().checkServerTrusted(_chain(), "RSA");
+    }
+
+    @Test
+    public void testUnknownExtensionAccepted() throws Exception
+    {
+        server.setCrl(new TestCrls.Builder().number(1).revoke(SERIAL).extension("1.2.3.4", false, DerWriter.nul()).build());
+        _assertRevoked(_createTrustManager());
+    }
+
+    @Test
+    public void testIssuingDistributionPointOfCertificate() throws Exception
+    {
+        server.setCrl(new TestCrls.Builder().number(1).revoke(SERIAL)
+                              .extension(ISSUING_DISTRIBUTION_POINT, true, _issuingDistributionPoint(TestCrls.DISTRIBUTION_POINT)).build());
+        _assertRevoked(_createTrustManager());
+    }
+
+    @Test
+    public void testIssuingDistributionPointOfOtherPartitionIgnored() throws Exception
+    {
+        server.setCrl(new TestCrls.Builder().number(1).revoke(SERIAL)
+                              .extension(ISSUING_DISTRIBUTION_POINT, true, _issuingDistributionPoint("http://127.0.0.1/other.crl")).build());
+        _createTrustManager().checkServerTrusted(_chain(), "RSA");
+    }
+
+    @Test
+    public void testCaCertificateCrlIgnored() throws Exception
+    {
+        server.setCrl(new TestCrls.Builder().number(1).revoke(SERIAL)
+                              .extension(ISSUING_DISTRIBUTION_POINT, true, DerWriter.sequence(_true(0x82))).build());
+        _createTrustManager().checkServerTrusted(_chain(), "RSA");
+    }
+
+    @Test
+    public void testIndirectCrlIgnored() throws Exception
+    {
+        server.setCrl(new TestCrls.Builder().number(1).revoke(SERIAL)
+                              .extension(ISSUING_DISTRIBUTION_POINT, true, DerWriter.sequence(_true(0x84))).build());
+        _createTrustManager().checkServerTrusted(_chain(), "RSA");
+    }
+
+    private CertificateRevokedException _assertRevoked(X509TrustManager pTrustManager)
+    {
+        try
+        {
+            pTrustManager.checkServerTrusted(_chain(), "RSA");
+            Assert.fail("revoked certificate was accepted");
+            return null;
+        } catch (CertificateException e)
+        {
+            Assert.assertTrue(e.getCause() instanceof CertPathValidatorException);
+            CertPathValidatorException cause = (CertPathValidatorException) e.getCause();
+            Assert.assertEquals(CertPathValidatorException.BasicReason.REVOKED, cause.getReason());
+            Assert.assertTrue(cause.getCause() instanceof CertificateRevokedException);
+            return (CertificateRevokedException) cause.getCause();
+        }
+    }
+
+    private X509TrustManager _createTrustManager() throws Exception
+    {
+        return _createTrustManager(new CrlCache(directory, 60 * 60 * 1000L, 0, 2000), false);
+    }
+
+    private X509TrustManager _createTrustManager(CrlCache pCache, boolean pAsync) throws Exception
+    {
+        KeyStore anchors = KeyStore.getInstance("JKS");
+        anchors.load(null, null);
+        anchors.setCertificateEntry("ca", TestCrls.get("ca"));
+        PKIXBuilderParameters parameters = new PKIXBuilderParameters(anchors, new X509CertSelector());
+        parameters.setRevocationEnabled(false);
+        parameters.addCertPathChecker(new CrlRevocationChecker(pCache, anchors, pAsync));
+        TrustManagerFactory factory = TrustManagerFactory.getInstance("PKIX");
+        factory.init(new CertPathTrustManagerParameters(parameters));
+        return (X509TrustManager) factory.getTrustManagers()[0];
+    }
+
+    /**
+     * @return an IssuingDistributionPoint with a fullName of one URI that only contains user certificates
+     */
+    private static byte[] _issuingDistributionPoint(String pUri)
+    {
+        byte[] uri = DerWriter.element(0x86, pUri.getBytes(StandardCharsets.US_ASCII));
+        return DerWriter.sequence(DerWriter.element(0xa0, DerWriter.element(0xa0, uri)), _true(0x81));
+    }
+
+    private static byte[] _true(int pTag)
+    {
+        return DerWriter.element(pTag, new byte[]{(byte) 0xff});
+    }
+
+    private static X509Certificate[] _chain()
+    {
+        return new X509Certificate[]{TestCrls.get("revocable"), TestCrls.get("ca")};
+    }
+}
@@ -0,0 +1,188 @@
+package de.adito.trustmanager.revocation;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.CertPathTrustManagerParameters;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.URI;
+import java.security.KeyStore;
+import java.security.cert.CRLReason;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateRevokedException;
+import java.security.cert.PKIXBuilderParameters;
+import java.security.cert.X509CertSelector;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Date;
+
+public class Test_OcspRevocationChecker
+{
+    private TestCrls.Server server;
+    private OcspCache cache;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new TestCrls.Server();
+        cache = new OcspCache(60 * 60 * 1000L, 2000);
+    }
+
+    @After
+    public void tearDown()
+    {
+        server.close();
+    }
+
+    @Test
+    public void testResponders()
+    {
+        Assert.assertEquals(Collections.singletonList(URI.create(TestCrls.OCSP_RESPONDER)),
+                            OcspCache.getResponders(TestCrls.get("revocable")));
+        Assert.assertTrue(OcspCache.getResponders(TestCrls.get("ca")).isEmpty());
+    }
+
+    @Test
+    public void testGood() throws Exception
+    {
+        server.setOcspResponse(new TestCrls.OcspBuilder().build());
+        _createTrustManager().checkServerTrusted(_chain(), "RSA");
+        Assert.assertEquals(1, server.getOcspRequests());
+        Assert.assertNotNull(server.getOcspRequest());
+    }
+
+    @Test
+    public void testRevoked() throws Exception
+    {
+        Date revocationTime = new Date(System.currentTimeMillis() / 1000 * 1000 - 10 * 60 * 1000L);
+        server.setOcspResponse(new TestCrls.OcspBuilder().revoked(revocationTime).build());
+        CertificateRevokedException revoked = _assertRevoked(_createTrustManager());
+        Assert.assertEquals(CRLReason.KEY_COMPROMISE, revoked.getRevocationReason());
+        Assert.assertEquals(revocationTime, revoked.getRevocationDate());
+        Assert.assertEquals(TestCrls.get("ca").getSubjectX500Principal(), revoked.getAuthorityName());
+    }
+
+    @Test
+    public void testCached() throws Exception
+    {
+        server.setOcspResponse(new TestCrls.OcspBuilder().revoked(new Date()).build());
+        X509TrustManager trustManager = _createTrustManager();
+        for (int i = 0; i < 3; i++)
+            _assertRevoked(trustManager);
+        Assert.assertEquals(1, server.getOcspRequests());
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testSoftFail() throws Exception
+    {
+        X509TrustManager trustManager = _createTrustManager();
+        trustManager.checkServerTrusted(_chain(), "RSA");
+        //the responder is not asked again right away
+        trustManager.checkServerTrusted(_chain(), "RSA");
+        Assert.assertEquals(1, server.getOcspRequests());
+    }
+
+    @Test
+    public void testForgedResponseIgnored() throws Exception
+    {
+        server.setOcspResponse(new TestCrls.OcspBuilder().revoked(new Date()).signedBy("otherca").build());
+        _createTrustManager().checkServerTrusted(_chain(), "RSA");
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testOtherCertificateIgnored() throws Exception
+    {
+        server.setOcspResponse(new TestCrls.OcspBuilder().serial(BigInteger.TEN).revoked(new Date()).build());
+        _createTrustManager().checkServerTrusted(_chain(), "RSA");
+    }
+
+    @Test
+    public void testExpiredResponseIgnored() throws Exception
+    {
+        server.setOcspResponse(new TestCrls.OcspBuilder().nextUpdate(new Date(System.currentTimeMillis() - 30 * 60 * 1000L))
+                                       .revoked(new Date()).build());
+        _createTrustManager().checkServerTrusted(_chain(), "RSA");
+    }
+
+    @Test
+    public void testStapledResponse() throws Exception
+    {
+        byte[] response = new TestCrls.OcspBuilder().revoked(new Date()).build();
+        Assert.assertTrue(cache.addStapledResponse(TestCrls.get("revocable"), TestCrls.get("ca"), response));
+        _assertRevoked(_createTrustManager());
+        Assert.assertEquals(0, server.getOcspRequests());
+    }
+
+    @Test
+    public void testStapledResponseOfForgedIssuer() throws Exception
+    {
+        //a server can't replace the status with a response of a forged issuer, it is cached for the forged key only
+        byte[] response = new TestCrls.OcspBuilder().signedBy("otherca").issuerKey("otherca").build();
+        Assert.assertFalse(cache.addStapledResponse(TestCrls.get("revocable"), TestCrls.get("ca"), response));
+        Assert.assertTrue(cache.addStapledResponse(TestCrls.get("revocable"), TestCrls.get("otherca"), response));
+        server.setOcspResponse(new TestCrls.OcspBuilder().revoked(new Date()).build());
+        _assertRevoked(_createTrustManager());
+        Assert.assertEquals(1, server.getOcspRequests());
+    }
+
+    @Test
+    public void testAsyncDoesNotWait() throws Exception
+    {
+        server.setOcspResponse(new TestCrls.OcspBuilder().revoked(new Date()).build());
+        X509TrustManager trustManager = _createTrustManager(true);
+        //the status is not known yet, so the first handshake is accepted and the responder is asked in the background
+        trustManager.checkServerTrusted(_chain(), "RSA");
+        for (int i = 0; i < 100 && cache.size() == 0; i++)
+            Thread.sleep(20);
+        _assertRevoked(trustManager);
+        Assert.assertEquals(1, server.getOcspRequests());
+    }
+
+    private CertificateRevokedException _assertRevoked(X509TrustManager pTrustManager)
+    {
+        try
+        {
+            pTrustManager.checkServerTrusted(_chain(), "RSA");
+            Assert.fail("revoked certificate was accepted");
+            return null;
+        } catch (CertificateException e)
+        {
+            Assert.assertTrue(e.getCause() instanceof CertPathValidatorException);
+            CertPathValidatorException cause = (CertPathValidatorException) e.getCause();
+            Assert.assertEquals(CertPathValidatorException.BasicReason.REVOKED, cause.getReason());
+            Assert.assertTrue(cause.getCause() instanceof CertificateRevokedException);
+            return (CertificateRevokedException) cause.getCause();
+        }
+    }
+
+    private X509TrustManager _createTrustManager() throws Exception
+    {
+        return _createTrustManager(false);
+    }
+
+    private X509TrustManager _createTrustManager(boolean pAsync) throws Exception
+    {
+        KeyStore anchors = KeyStore.getInstance("JKS");
+        anchors.load(null, null);
+        anchors.setCertificateEntry("ca", TestCrls.get("ca"));
+        PKIXBuilderParameters parameters = new PKIXBuilderParameters(anchors, new X509CertSelector());
+        parameters.setRevocationEnabled(false);
+        parameters.addCertPathChecker(new OcspRevocationChecker(cache, anchors, pAsync));
+        TrustManagerFactory factory = TrustManagerFactory.getInstance("PKIX");
+        factory.init(new CertPathTrustManagerParameters(parameters));
+        return (X509TrustManager) factory.getTrustManagers()[0];
+    }
+
+    private static X509Certificate[] _chain()
+    {
+        return new X509Certificate[]{TestCrls.get("revocable"), TestCrls.get("ca")};
+    }
+}